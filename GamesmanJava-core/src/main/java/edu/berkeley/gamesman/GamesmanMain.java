@@ -8,6 +8,7 @@ import edu.berkeley.gamesman.core.Configuration;
 import edu.berkeley.gamesman.core.State;
 import edu.berkeley.gamesman.database.Database;
 import edu.berkeley.gamesman.game.Game;
+import edu.berkeley.gamesman.solver.SolveManifest;
 import edu.berkeley.gamesman.solver.Solver;
 import edu.berkeley.gamesman.util.DebugFacility;
 import edu.berkeley.gamesman.util.Pair;
@@ -53,9 +54,43 @@ public final class GamesmanMain extends GamesmanApplication {
 		} else {
 			assert Util.debug(DebugFacility.CORE, "Defaulting to solve...");
 			String uri = conf.getProperty("gamesman.db.uri", null);
+			boolean resuming = false;
+			SolveManifest manifest = SolveManifest.open(conf);
+			if (manifest != null) {
+				try {
+					manifest.close();
+				} catch (IOException e) {
+					throw new Error(e);
+				}
+				if (manifest.isDone()) {
+					System.out.println(uri + " is already solved (according to "
+							+ manifest.getPath() + ")");
+					return 0;
+				}
+				resuming = manifest.isStarted();
+			}
 			Database db;
 			try {
-				db = Database.openDatabase(uri, conf, true, true);
+				if (resuming) {
+					// The database is opened as it was first written and the
+					// writing wrappers are told to start from what it holds
+					long numHashes = conf.getGame().numHashes();
+					db = Database.openDatabase(
+							conf.getProperty("gamesman.database"), uri, conf,
+							0L, numHashes, true, true);
+					String wrappers = conf.getProperty(
+							"gamesman.database.writing.wrapper", "");
+					if (!wrappers.isEmpty()) {
+						conf.setProperty("gamesman.database.resume", "true");
+						try {
+							db = Database.wrapDatabase(wrappers, db, conf, 0L,
+									numHashes, true, true);
+						} finally {
+							conf.props.remove("gamesman.database.resume");
+						}
+					}
+				} else
+					db = Database.openDatabase(uri, conf, true, true);
 			} catch (IOException e) {
 				throw new Error(e);
 			}
@@ -8,10 +8,13 @@ import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import edu.berkeley.gamesman.core.Configuration;
 import edu.berkeley.gamesman.database.wrapper.DatabaseWrapper;
 import edu.berkeley.gamesman.game.Game;
+import edu.berkeley.gamesman.game.TierGame;
 import edu.berkeley.gamesman.util.Util;
 
 /**
@@ -53,6 +56,10 @@ public abstract class Database implements Closeable {
 	 */
 	public final long numRecords;
 
+	private static final int GROUP_LOCKS = 64;
+
+	private final Object[] groupLocks;
+
 	/**
 	 * Note: If both writing and reading are enabled, it is still generally
 	 * assumed that you will be ignoring and/or overwriting any database file
@@ -78,9 +85,13 @@ public abstract class Database implements Closeable {
 		this.writing = writing;
 		assert reading || writing;
 		long recordStates = conf.getGame().recordStates();
-		myLogic = new DatabaseLogic(recordStates);
+		myLogic = new DatabaseLogic(recordStates, conf.getBoolean(
+				"gamesman.database.packed", false));
 		this.firstRecordIndex = firstRecordIndex;
 		this.numRecords = numRecords;
+		groupLocks = new Object[GROUP_LOCKS];
+		for (int i = 0; i < GROUP_LOCKS; i++)
+			groupLocks[i] = new Object();
 	}
 
 	/**
@@ -112,7 +123,37 @@ public abstract class Database implements Closeable {
 	 *         the number of records
 	 */
 	protected final long numBytes() {
-		return myLogic.getNumBytes(numRecords);
+		return myLogic.getNumBytes(firstRecordIndex, numRecords);
+	}
+
+	/**
+	 * @return The byte index of the first group of each tier which starts in
+	 *         this database, in order and beginning with firstByteIndex()
+	 *         (just firstByteIndex() if the game has no tiers). When records
+	 *         are packed, a group shared by two tiers is counted with the
+	 *         later one, and tiers which start in the same group are counted
+	 *         once.
+	 */
+	protected final long[] tierByteStarts() {
+		ArrayList<Long> starts = new ArrayList<Long>();
+		starts.add(firstByteIndex());
+		Game<?> g = conf.getGame();
+		if (g instanceof TierGame) {
+			TierGame game = (TierGame) g;
+			long lastRecord = firstRecordIndex + numRecords;
+			for (int tier = 1; tier < game.numberOfTiers(); tier++) {
+				long tierStart = game.hashOffsetForTier(tier);
+				if (tierStart <= firstRecordIndex || tierStart >= lastRecord)
+					continue;
+				long start = myLogic.getByteIndex(tierStart);
+				if (start > starts.get(starts.size() - 1))
+					starts.add(start);
+			}
+		}
+		long[] result = new long[starts.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = starts.get(i);
+		return result;
 	}
 
 	/**
@@ -136,6 +177,9 @@ public abstract class Database implements Closeable {
 		dh.location = dh.firstByteIndex = firstByteIndex;
 		dh.numBytes = numBytes;
 		dh.remainingBytes = numBytes;
+		dh.firstRecordIndex = dh.nextRecordIndex = myLogic
+				.getNumRecords(firstByteIndex);
+		dh.endRecordIndex = myLogic.getNumRecords(firstByteIndex + numBytes);
 		lowerPrepareReadRange(dh, firstByteIndex, numBytes);
 	}
 
@@ -184,6 +228,9 @@ public abstract class Database implements Closeable {
 			dh.remainingBytes = 0;
 		else
 			dh.remainingBytes = numBytes;
+		dh.firstRecordIndex = dh.nextRecordIndex = myLogic
+				.getNumRecords(firstByteIndex);
+		dh.endRecordIndex = myLogic.getNumRecords(firstByteIndex + numBytes);
 		lowerPrepareWriteRange(dh, firstByteIndex, numBytes);
 	}
 
@@ -395,6 +442,11 @@ public abstract class Database implements Closeable {
 	 */
 	public long readRecord(DatabaseHandle dh, long recordIndex)
 			throws IOException {
+		if (myLogic.packed) {
+			readFullBytes(dh, myLogic.getByteIndex(recordIndex),
+					dh.currentRecord, 0, myLogic.recordBytes);
+			return myLogic.getRecord(dh.currentRecord, 0, recordIndex);
+		}
 		return readRecordFromByteIndex(dh, myLogic.getByteIndex(recordIndex));
 	}
 
@@ -462,9 +514,62 @@ public abstract class Database implements Closeable {
 		}
 	}
 
+	/**
+	 * Writes a record at the given hash. When records are packed, this reads
+	 * back the rest of the record's group first so the other records in it are
+	 * preserved.
+	 * 
+	 * @param dh
+	 *            The handle to use for writing
+	 * @param recordIndex
+	 *            The hash of the game state where the record should be written
+	 * @param record
+	 *            The record to write
+	 * @throws IOException
+	 *             If an IOException occurs while writing
+	 */
 	public void writeRecord(DatabaseHandle dh, long recordIndex, long record)
 			throws IOException {
-		writeRecordFromByteIndex(dh, myLogic.getByteIndex(recordIndex), record);
+		long byteIndex = myLogic.getByteIndex(recordIndex);
+		if (myLogic.packed) {
+			synchronized (groupLock(byteIndex)) {
+				readGroup(dh, myLogic.groupStart(recordIndex), dh.currentRecord,
+						0, recordIndex, 1L);
+				myLogic.fillBytes(record, dh.currentRecord, 0, recordIndex);
+				writeFullBytes(dh, byteIndex, dh.currentRecord, 0,
+						myLogic.recordBytes);
+			}
+		} else
+			writeRecordFromByteIndex(dh, byteIndex, record);
+	}
+
+	/**
+	 * Atomically replaces a record if it currently holds the expected value.
+	 * This is only atomic with respect to other calls to compareAndSetRecord
+	 * (and writeRecord when records are packed) on this database, so any
+	 * thread updating these records concurrently must do so through this
+	 * method.
+	 * 
+	 * @param dh
+	 *            A handle which allows both reading and writing
+	 * @param recordIndex
+	 *            The hash of the game state whose record should be replaced
+	 * @param expected
+	 *            The record it must currently hold
+	 * @param record
+	 *            The record to replace it with
+	 * @return Whether the record was replaced
+	 * @throws IOException
+	 *             If an IOException occurs while reading or writing
+	 */
+	public boolean compareAndSetRecord(DatabaseHandle dh, long recordIndex,
+			long expected, long record) throws IOException {
+		synchronized (groupLock(myLogic.getByteIndex(recordIndex))) {
+			if (readRecord(dh, recordIndex) != expected)
+				return false;
+			writeRecord(dh, recordIndex, record);
+			return true;
+		}
 	}
 
 	protected void writeRecordFromByteIndex(DatabaseHandle dh, long byteIndex,
@@ -493,26 +598,156 @@ public abstract class Database implements Closeable {
 	public void prepareReadRecordRange(DatabaseHandle dh, long recordIndex,
 			long numRecords) throws IOException {
 		prepareReadRange(dh, myLogic.getByteIndex(recordIndex),
-				myLogic.getNumBytes(numRecords));
+				myLogic.getNumBytes(recordIndex, numRecords));
+		dh.firstRecordIndex = dh.nextRecordIndex = recordIndex;
+		dh.endRecordIndex = recordIndex + numRecords;
 	}
 
+	/**
+	 * Prepares a handle for writing a range of records with writeNextRecord.
+	 * When records are packed and the range does not begin and end on group
+	 * boundaries, its first and last groups are merged with the records
+	 * already stored there. Ranges which are written concurrently should not
+	 * share a group unless the underlying database makes every write visible
+	 * to other handles immediately.
+	 * 
+	 * @param dh
+	 *            The handle which will be used for writing
+	 * @param recordIndex
+	 *            The index of the first record to be written
+	 * @param numRecords
+	 *            The number of records to be written
+	 * @throws IOException
+	 *             If an IOException occurs during preparation
+	 */
 	public void prepareWriteRecordRange(DatabaseHandle dh, long recordIndex,
 			long numRecords) throws IOException {
 		prepareWriteRange(dh, myLogic.getByteIndex(recordIndex),
-				myLogic.getNumBytes(numRecords));
+				myLogic.getNumBytes(recordIndex, numRecords));
+		dh.firstRecordIndex = dh.nextRecordIndex = recordIndex;
+		dh.endRecordIndex = recordIndex + numRecords;
 	}
 
 	public long readNextRecord(DatabaseHandle dh) throws IOException {
+		if (myLogic.packed) {
+			long recordIndex = dh.nextRecordIndex++;
+			if (myLogic.isGroupStart(recordIndex)
+					|| dh.location == dh.firstByteIndex)
+				readFullBytes(dh, dh.currentRecord, 0, myLogic.recordBytes);
+			return myLogic.getRecord(dh.currentRecord, 0, recordIndex);
+		}
 		readFullBytes(dh, dh.currentRecord, 0, myLogic.recordBytes);
 		return myLogic.getRecord(dh.currentRecord, 0);
 	}
 
 	public void writeNextRecord(DatabaseHandle dh, long record)
 			throws IOException {
+		if (myLogic.packed) {
+			long recordIndex = dh.nextRecordIndex++;
+			myLogic.fillBytes(record, dh.currentRecord, 0, recordIndex);
+			if (myLogic.isGroupStart(recordIndex + 1)
+					|| recordIndex + 1 == dh.endRecordIndex) {
+				long groupStart = myLogic.groupStart(recordIndex);
+				if (groupStart < dh.firstRecordIndex
+						|| groupStart + myLogic.recordsPerGroup > dh.endRecordIndex) {
+					synchronized (groupLock(dh.location)) {
+						mergeGroup(dh, recordIndex, dh.currentRecord, 0,
+								dh.firstRecordIndex, dh.endRecordIndex
+										- dh.firstRecordIndex);
+						writeFullBytes(dh, dh.currentRecord, 0,
+								myLogic.recordBytes);
+					}
+				} else
+					writeFullBytes(dh, dh.currentRecord, 0, myLogic.recordBytes);
+			}
+			return;
+		}
 		myLogic.fillBytes(record, dh.currentRecord, 0);
 		writeFullBytes(dh, dh.currentRecord, 0, myLogic.recordBytes);
 	}
 
+	/**
+	 * When records are packed, replaces every record in a group which lies
+	 * outside the given range with the record currently stored in this
+	 * database. This allows a range which only partly covers its first or
+	 * last group to be written without overwriting its neighbours. Does
+	 * nothing if records are not packed.
+	 * 
+	 * @param dh
+	 *            A handle for this database
+	 * @param recordIndex
+	 *            The index of any record in the group
+	 * @param group
+	 *            The array containing the group
+	 * @param off
+	 *            The offset of the group in the array
+	 * @param firstRecordIndex
+	 *            The first record of the range being written
+	 * @param numRecords
+	 *            The number of records in the range being written
+	 * @throws IOException
+	 *             If an IOException occurs while reading the stored group
+	 */
+	public void mergeGroup(DatabaseHandle dh, long recordIndex, byte[] group,
+			int off, long firstRecordIndex, long numRecords)
+			throws IOException {
+		if (!myLogic.packed)
+			return;
+		long groupStart = myLogic.groupStart(recordIndex);
+		long groupEnd = groupStart + myLogic.recordsPerGroup;
+		long endRecordIndex = firstRecordIndex + numRecords;
+		if (groupStart >= firstRecordIndex && groupEnd <= endRecordIndex)
+			return;
+		byte[] stored = new byte[myLogic.recordBytes];
+		readGroup(dh, groupStart, stored, 0, firstRecordIndex, numRecords);
+		for (long r = groupStart; r < groupEnd; r++) {
+			if (r < firstRecordIndex || r >= endRecordIndex)
+				myLogic.fillBytes(myLogic.getRecord(stored, 0, r), group, off,
+						r);
+		}
+	}
+
+	/*
+	 * Reads whatever is currently stored for a group, bypassing any prepared
+	 * range on the handle. If none of this database's records in the group
+	 * lie outside the range being written there is nothing to keep and the
+	 * group is zeroed. Otherwise the stored group is read (anything past the
+	 * end of a new file is treated as zeros), which a write-only database
+	 * can't do.
+	 */
+	private void readGroup(DatabaseHandle dh, long groupStart, byte[] group,
+			int off, long writeFirst, long writeNum) throws IOException {
+		int len = myLogic.recordBytes;
+		int read = 0;
+		long keepFirst = Math.max(groupStart, firstRecordIndex);
+		long keepEnd = Math.min(groupStart + myLogic.recordsPerGroup,
+				firstRecordIndex + numRecords);
+		boolean keep = keepFirst < writeFirst
+				|| keepEnd > writeFirst + writeNum;
+		if (keep && !reading)
+			throw new UnsupportedOperationException(
+					"Can't write part of a packed group without reading the "
+							+ "rest of it from a write-only database");
+		long byteIndex = myLogic.getByteIndex(groupStart);
+		while (keep && read < len) {
+			int bytesRead = readBytes(dh, byteIndex + read, group, off + read,
+					len - read);
+			if (bytesRead <= 0)
+				break;
+			read += bytesRead;
+		}
+		Arrays.fill(group, off + read, off + len, (byte) 0);
+	}
+
+	/**
+	 * @param byteIndex
+	 *            The byte index of a group of packed records
+	 * @return The lock held while a record in the group is replaced
+	 */
+	protected final Object groupLock(long byteIndex) {
+		return groupLocks[(int) ((byteIndex >>> 3) % GROUP_LOCKS)];
+	}
+
 	public final void fill(DatabaseHandle dh, long record) throws IOException {
 		prepareWriteRecordRange(dh, firstRecordIndex, numRecords);
 		for (int i = 0; i < numRecords; i++) {
@@ -520,6 +755,68 @@ public abstract class Database implements Closeable {
 		}
 	}
 
+	/**
+	 * Whether records may be written to this database in any order and made
+	 * durable by flush at any time. Databases which can only be written
+	 * sequentially, such as GZippedDatabase, return false, and so must only
+	 * be written in order and never flushed before they're closed.
+	 * 
+	 * @return Whether writes may come in any order
+	 */
+	public boolean supportsRandomWrites() {
+		return true;
+	}
+
+	/**
+	 * Called by tier solvers once every record of a tier has been written.
+	 * Databases which hold records in memory may write that tier out to
+	 * where they keep them. Does nothing by default.
+	 * 
+	 * @param tier
+	 *            The tier
+	 * @throws IOException
+	 *             If an IOException occurs while writing
+	 */
+	public void tierFinished(int tier) throws IOException {
+	}
+
+	/**
+	 * Whether this database keeps the record of a position. Writes to records
+	 * which aren't kept are ignored, so a solver needn't find their values
+	 * (though it must still write something in their place when writing a
+	 * range in order). Every record is kept unless a subclass says otherwise.
+	 * 
+	 * @param recordIndex
+	 *            The hash of a position
+	 * @return Whether its record is kept
+	 */
+	public boolean keepsRecord(long recordIndex) {
+		return true;
+	}
+
+	/**
+	 * Whether reading the record of a position may read the record stored for
+	 * another position in the same tier (such as one symmetric to it), so
+	 * that a solver can't tell from a range of positions which records it
+	 * will read. No records are shared unless a subclass says otherwise.
+	 * 
+	 * @return Whether records may be shared between positions
+	 */
+	public boolean sharesRecords() {
+		return false;
+	}
+
+	/**
+	 * Makes every record written so far durable, so that it would survive the
+	 * process being killed. Databases which keep nothing apart from what they
+	 * have already handed to the operating system do nothing.
+	 * 
+	 * @throws IOException
+	 *             If an IOException occurs while writing
+	 */
+	public void flush() throws IOException {
+	}
+
 	@Override
 	public void close() throws IOException {
 	}
@@ -625,31 +922,84 @@ public abstract class Database implements Closeable {
 
 	public static Database openDatabase(DatabaseArgs args) throws IOException {
 		String[] classes = args.dbClassString.split(":");
-		for (int i = 0; i < classes.length - 1; i++) {
-			if (!classes[i].contains("."))
-				classes[i] = "edu.berkeley.gamesman.database.wrapper."
-						+ classes[i];
-		}
-		if (!classes[classes.length - 1].contains("."))
-			classes[classes.length - 1] = "edu.berkeley.gamesman.database."
-					+ classes[classes.length - 1];
+		String underlyingClass = classes[classes.length - 1];
+		if (!underlyingClass.contains("."))
+			underlyingClass = "edu.berkeley.gamesman.database."
+					+ underlyingClass;
 		Database result;
 		try {
 			Class<? extends Database> underlying = Class.forName(
-					classes[classes.length - 1]).asSubclass(Database.class);
+					underlyingClass).asSubclass(Database.class);
 			result = underlying.getConstructor(String.class,
 					Configuration.class, Long.TYPE, Long.TYPE, Boolean.TYPE,
 					Boolean.TYPE).newInstance(args.uri, args.conf,
 					args.firstRecordIndex, args.numRecords, args.reading,
 					args.writing);
-			for (int i = classes.length - 2; i >= 0; i--) {
+		} catch (ClassNotFoundException e) {
+			throw new Error(e);
+		} catch (IllegalArgumentException e) {
+			throw new Error(e);
+		} catch (SecurityException e) {
+			throw new Error(e);
+		} catch (InstantiationException e) {
+			throw new Error(e);
+		} catch (IllegalAccessException e) {
+			throw new Error(e);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			else
+				throw new Error(e.getCause());
+		} catch (NoSuchMethodException e) {
+			throw new Error(e);
+		}
+		if (classes.length == 1)
+			return result;
+		String wrappers = args.dbClassString.substring(0,
+				args.dbClassString.lastIndexOf(':'));
+		return wrapDatabase(wrappers, result, args.conf, args.firstRecordIndex,
+				args.numRecords, args.reading, args.writing);
+	}
+
+	/**
+	 * Wraps an open database in wrappers, the last of which is applied first
+	 * 
+	 * @param wrapperClasses
+	 *            The wrapper classes separated by colons (as in
+	 *            gamesman.database.writing.wrapper)
+	 * @param db
+	 *            The database to wrap
+	 * @param conf
+	 *            The configuration object
+	 * @param firstRecordIndex
+	 *            The first record in the database
+	 * @param numRecords
+	 *            The number of records in the database
+	 * @param reading
+	 *            Whether the database is read
+	 * @param writing
+	 *            Whether the database is written
+	 * @return The outermost wrapper
+	 * @throws IOException
+	 *             If a wrapper can't read the database it wraps
+	 */
+	public static Database wrapDatabase(String wrapperClasses, Database db,
+			Configuration conf, long firstRecordIndex, long numRecords,
+			boolean reading, boolean writing) throws IOException {
+		String[] classes = wrapperClasses.split(":");
+		Database result = db;
+		try {
+			for (int i = classes.length - 1; i >= 0; i--) {
+				String wrapperClass = classes[i];
+				if (!wrapperClass.contains("."))
+					wrapperClass = "edu.berkeley.gamesman.database.wrapper."
+							+ wrapperClass;
 				Class<? extends DatabaseWrapper> next = Class.forName(
-						classes[i]).asSubclass(DatabaseWrapper.class);
+						wrapperClass).asSubclass(DatabaseWrapper.class);
 				result = next.getConstructor(Database.class,
 						Configuration.class, Long.TYPE, Long.TYPE,
-						Boolean.TYPE, Boolean.TYPE).newInstance(result,
-						args.conf, args.firstRecordIndex, args.numRecords,
-						args.reading, args.writing);
+						Boolean.TYPE, Boolean.TYPE).newInstance(result, conf,
+						firstRecordIndex, numRecords, reading, writing);
 			}
 		} catch (ClassNotFoundException e) {
 			throw new Error(e);
@@ -11,6 +11,9 @@ public class DatabaseHandle {
 	public long location;
 	public long remainingBytes;
 	protected long firstByteIndex;
+	protected long firstRecordIndex;
+	protected long nextRecordIndex;
+	protected long endRecordIndex;
 	public long numBytes = -1;
 	protected final byte[] currentRecord;
 	protected final boolean reading;
@@ -1,22 +1,99 @@
 package edu.berkeley.gamesman.database;
 
+/**
+ * Converts between record indices and byte indices and between records and
+ * their stored bytes.<br />
+ * By default every record is rounded up to 1, 2, 4 or 8 bytes. In packed mode
+ * several records are stored together in an 8-byte group, either as digits in
+ * base recordStates or as fields of the smallest whole number of bits
+ * (whichever fits more records per group). recordBytes is then the size of a
+ * group rather than of a record, and any record range which does not start and
+ * end on a group boundary shares its first and last groups with its
+ * neighbours.
+ */
 public final class DatabaseLogic {
+	private static final int GROUP_SHIFT = 3;
 	private final int shamt;
 	public final int recordBytes;
 
+	/**
+	 * Whether several records are packed into each group
+	 */
+	public final boolean packed;
+
+	/**
+	 * The number of records stored in each group of recordBytes bytes (1 if
+	 * not packed)
+	 */
+	public final int recordsPerGroup;
+	private final long recordStates;
+	private final int bits;
+	private final long mask;
+	private final long[] powers;
+
 	public DatabaseLogic(long recordStates) {
+		this(recordStates, false);
+	}
+
+	/**
+	 * @param recordStates
+	 *            The number of possible records
+	 * @param packed
+	 *            Whether to pack several records into each 8-byte group. If
+	 *            packing cannot fit more records into 8 bytes than the
+	 *            unpacked layout, it is not used.
+	 */
+	public DatabaseLogic(long recordStates, boolean packed) {
+		this.recordStates = recordStates;
+		long states = recordStates;
 		int shamt = -1;
 		do {
 			shamt++;
-			recordStates >>= (8 << shamt);
-		} while (recordStates > 0);
-		this.shamt = shamt;
-		recordBytes = 1 << shamt;
+			states >>= (8 << shamt);
+		} while (states > 0);
+		int bits = 64 - Long.numberOfLeadingZeros(Math.max(recordStates - 1,
+				1));
+		int byBits = 64 / bits;
+		int byBase = 0;
+		// A single state needs no digits, so only bit fields are considered
+		if (packed && recordStates > 1) {
+			for (long pow = 1; pow <= Long.MAX_VALUE / recordStates; pow *= recordStates)
+				byBase++;
+		}
+		if (packed && Math.max(byBits, byBase) > (8 >> shamt)) {
+			this.packed = true;
+			this.shamt = GROUP_SHIFT;
+			if (byBase > byBits) {
+				recordsPerGroup = byBase;
+				powers = new long[byBase];
+				powers[0] = 1;
+				for (int i = 1; i < byBase; i++)
+					powers[i] = powers[i - 1] * recordStates;
+				this.bits = 0;
+				mask = 0L;
+			} else {
+				recordsPerGroup = byBits;
+				powers = null;
+				this.bits = bits;
+				mask = bits == 64 ? -1L : (1L << bits) - 1;
+			}
+		} else {
+			this.packed = false;
+			this.shamt = shamt;
+			recordsPerGroup = 1;
+			powers = null;
+			this.bits = 0;
+			mask = 0L;
+		}
+		recordBytes = 1 << this.shamt;
 	}
 
 	public long getByteIndex(long recordIndex) {
 		assert recordIndex >= 0;
-		return getNumBytes(recordIndex);
+		if (packed)
+			return (recordIndex / recordsPerGroup) << shamt;
+		else
+			return getNumBytes(recordIndex);
 	}
 
 	public long getRecord(byte[] bytes, int off) {
@@ -29,6 +106,28 @@ public final class DatabaseLogic {
 		return record;
 	}
 
+	/**
+	 * @param bytes
+	 *            The array containing the record
+	 * @param off
+	 *            The offset of the record's group (or of the record itself if
+	 *            not packed)
+	 * @param recordIndex
+	 *            The index of the record (used to find its place within the
+	 *            group)
+	 * @return The record
+	 */
+	public long getRecord(byte[] bytes, int off, long recordIndex) {
+		if (!packed)
+			return getRecord(bytes, off);
+		long group = getGroup(bytes, off);
+		int place = (int) (recordIndex % recordsPerGroup);
+		if (powers == null)
+			return (group >>> (place * bits)) & mask;
+		else
+			return group / powers[place] % recordStates;
+	}
+
 	public void fillBytes(long record, byte[] bytes, int off) {
 		for (int i = 0; i < recordBytes; i++) {
 			bytes[off++] = (byte) record;
@@ -36,11 +135,169 @@ public final class DatabaseLogic {
 		}
 	}
 
+	/**
+	 * Stores a record without disturbing the other records in its group
+	 *
+	 * @param record
+	 *            The record to store
+	 * @param bytes
+	 *            The array containing the record
+	 * @param off
+	 *            The offset of the record's group (or of the record itself if
+	 *            not packed)
+	 * @param recordIndex
+	 *            The index of the record (used to find its place within the
+	 *            group)
+	 */
+	public void fillBytes(long record, byte[] bytes, int off, long recordIndex) {
+		if (!packed) {
+			fillBytes(record, bytes, off);
+			return;
+		}
+		long group = getGroup(bytes, off);
+		int place = (int) (recordIndex % recordsPerGroup);
+		if (powers == null) {
+			int shift = place * bits;
+			group = (group & ~(mask << shift)) | (record << shift);
+		} else {
+			long pow = powers[place];
+			group += (record - group / pow % recordStates) * pow;
+		}
+		for (int i = 0; i < recordBytes; i++) {
+			bytes[off++] = (byte) group;
+			group >>>= 8;
+		}
+	}
+
+	/**
+	 * Reads consecutive records, a whole group at a time
+	 *
+	 * @param bytes
+	 *            The array containing the records
+	 * @param off
+	 *            The offset of the first record's group (which must be the
+	 *            group's first record)
+	 * @param records
+	 *            The array to read the records into
+	 * @param recordOff
+	 *            The index in records of the first record
+	 * @param numRecords
+	 *            The number of records to read
+	 */
+	public void getRecords(byte[] bytes, int off, long[] records,
+			int recordOff, int numRecords) {
+		int end = recordOff + numRecords;
+		while (recordOff < end) {
+			long group = getGroup(bytes, off);
+			int num = Math.min(recordsPerGroup, end - recordOff);
+			if (!packed)
+				records[recordOff++] = group;
+			else if (powers == null) {
+				for (int i = 0; i < num; i++, group >>>= bits)
+					records[recordOff++] = group & mask;
+			} else {
+				for (int i = 0; i < num; i++, group /= recordStates)
+					records[recordOff++] = group % recordStates;
+			}
+			off += recordBytes;
+		}
+	}
+
+	/**
+	 * Stores consecutive records, a whole group at a time. Places in the last
+	 * group past the final record are filled with zeros.
+	 *
+	 * @param records
+	 *            The records to store
+	 * @param recordOff
+	 *            The index in records of the first record
+	 * @param numRecords
+	 *            The number of records to store
+	 * @param bytes
+	 *            The array to store the records in
+	 * @param off
+	 *            The offset of the first record's group (which must be the
+	 *            group's first record)
+	 */
+	public void fillBytes(long[] records, int recordOff, int numRecords,
+			byte[] bytes, int off) {
+		int end = recordOff + numRecords;
+		while (recordOff < end) {
+			int num = Math.min(recordsPerGroup, end - recordOff);
+			long group = 0L;
+			if (!packed)
+				group = records[recordOff];
+			else if (powers == null) {
+				for (int i = num - 1; i >= 0; i--)
+					group = (group << bits) | records[recordOff + i];
+			} else {
+				for (int i = num - 1; i >= 0; i--)
+					group = group * recordStates + records[recordOff + i];
+			}
+			recordOff += num;
+			for (int i = 0; i < recordBytes; i++) {
+				bytes[off++] = (byte) group;
+				group >>>= 8;
+			}
+		}
+	}
+
+	private long getGroup(byte[] bytes, int off) {
+		long group = 0L;
+		for (int i = off + recordBytes - 1; i >= off; i--) {
+			group = (group << 8) | (bytes[i] & 0xFFL);
+		}
+		return group;
+	}
+
 	public long getNumBytes(long numRecords) {
-		return numRecords << shamt;
+		if (packed)
+			return ((numRecords + recordsPerGroup - 1) / recordsPerGroup) << shamt;
+		else
+			return numRecords << shamt;
+	}
+
+	/**
+	 * @param firstRecordIndex
+	 *            The index of the first record in the range
+	 * @param numRecords
+	 *            The number of records in the range
+	 * @return The number of bytes spanned by the range (when packed, this
+	 *         includes the whole of any group the range only partly covers)
+	 */
+	public long getNumBytes(long firstRecordIndex, long numRecords) {
+		if (!packed)
+			return getNumBytes(numRecords);
+		else if (numRecords == 0)
+			return 0L;
+		else
+			return getByteIndex(firstRecordIndex + numRecords - 1)
+					+ recordBytes - getByteIndex(firstRecordIndex);
 	}
 
 	public long getNumRecords(long numBytes) {
-		return numBytes >> shamt;
+		if (packed)
+			return (numBytes >> shamt) * recordsPerGroup;
+		else
+			return numBytes >> shamt;
+	}
+
+	/**
+	 * @param recordIndex
+	 *            A record index
+	 * @return Whether this record is the first in its group (always true if
+	 *         not packed)
+	 */
+	public boolean isGroupStart(long recordIndex) {
+		return recordIndex % recordsPerGroup == 0;
+	}
+
+	/**
+	 * @param recordIndex
+	 *            A record index
+	 * @return The index of the first record in the same group
+	 */
+	public long groupStart(long recordIndex) {
+		return recordIndex - recordIndex % recordsPerGroup;
 	}
 }
@@ -1,30 +1,78 @@
 package edu.berkeley.gamesman.database;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.database.codec.BlockCodec;
 import edu.berkeley.gamesman.database.util.SeekableInputStream;
 import edu.berkeley.gamesman.database.util.SeekableOutputStream;
 import edu.berkeley.gamesman.util.DebugFacility;
 import edu.berkeley.gamesman.util.Progressable;
 import edu.berkeley.gamesman.util.Util;
-import edu.berkeley.gamesman.util.ZipChunkInputStream;
-import edu.berkeley.gamesman.util.ZipChunkOutputStream;
 import edu.berkeley.gamesman.util.qll.Factory;
 import edu.berkeley.gamesman.util.qll.Pool;
 
 /**
  * A GZippedDatabase contains bytes GZipped in chunks. Subclasses need only
  * instantiate the reader and writer arguments to the constructor. These should
- * not already be GZipped, the GZippedDatabase will wrap them appropriately.
+ * not already be GZipped, the GZippedDatabase will wrap them appropriately.<br />
+ * Each entry is compressed independently by the BlockCodec named in
+ * gamesman.database.codec (DeflateCodec, which gzips, by default). A class
+ * name without a package is looked up in edu.berkeley.gamesman.database.codec.
+ * The codec is part of the configuration stored in the header, so a database
+ * is always read back with the codec it was written with.<br />
+ * When reading, inflated entries are kept in a cache of
+ * gamesman.database.gzip.cache bytes (16MB by default) shared by all handles.
+ * At least one entry is always cached. Only reading the compressed bytes of an
+ * entry is synchronized, so threads reading different entries inflate them in
+ * parallel and an entry which several threads want at once is only inflated
+ * once.<br />
+ * When a handle reads a prepared range spanning several entries, each time it
+ * moves to a new entry the next gamesman.database.gzip.readahead entries of
+ * the range (4 by default, 0 to disable) are inflated in the background by
+ * gamesman.database.gzip.readahead.threads daemon threads (by default one per
+ * processor, at most one per read-ahead entry), so a sequential scan
+ * rarely waits for an entry to be inflated. The cache always has room for the
+ * read-ahead entries, but if many handles scan at once it should be large
+ * enough to hold theirs too or they will be evicted before they are used.
  * 
  * @author dnspies
  */
 public abstract class GZippedDatabase extends Database {
+	private final class CachedEntry {
+		private final FutureTask<byte[]> inflated;
+		private volatile boolean referenced = true;
+
+		private CachedEntry(final int entry) {
+			inflated = new FutureTask<byte[]>(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws IOException {
+					return inflateEntry(entry);
+				}
+			});
+		}
+	}
+
+	private final ConcurrentHashMap<Integer, CachedEntry> entryCache;
+	private final ConcurrentLinkedQueue<Integer> cacheClock;
+	private final int maxCachedEntries;
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	private final int readAhead;
+	private final int readAheadThreads;
+	private ExecutorService readAheadService;
 	private long currentByteIndex;
 	private long remaining;
 	private final int numEntries;
@@ -32,8 +80,8 @@ public abstract class GZippedDatabase extends Database {
 	private final long firstByteIndex;
 	private final long numBytes;
 	private final int tableOffset;
-	private final ZipChunkOutputStream zcos;
-	private final ZipChunkInputStream zcis;
+	private final BlockCodec codec;
+	private final byte[] entryBuffer;
 	private final long[] entryTable;
 	private final SeekableInputStream reader;
 	private final SeekableOutputStream writer;
@@ -66,13 +114,20 @@ public abstract class GZippedDatabase extends Database {
 		super(conf, firstRecordIndex, numRecords, reading, writing);
 		this.reader = reader;
 		this.writer = writer;
-		firstByteIndex = myLogic.getByteIndex(firstRecordIndex);
-		numBytes = myLogic.getNumBytes(numRecords);
-		entrySize = conf.getNumBytes("entry.bytes", 1 << 16);
-		numEntries = (int) (numBytes / entrySize + 1);
+		firstByteIndex = firstByteIndex();
+		numBytes = numBytes();
+		long entrySize = conf.getNumBytes("entry.bytes", 1 << 16);
+		// Entries hold whole records (or whole groups of packed records)
+		entrySize -= entrySize % myLogic.recordBytes;
+		this.entrySize = Math.max(entrySize, myLogic.recordBytes);
+		numEntries = (int) (numBytes / this.entrySize + 1);
 		entryTable = new long[numEntries];
+		codec = makeCodec(conf, conf.getProperty("gamesman.database.codec",
+				"DeflateCodec"));
 		if (writing) {
-			remaining = entrySize;
+			if (this.entrySize > Integer.MAX_VALUE)
+				throw new Error("Entry size is too large to fit in int");
+			remaining = this.entrySize;
 			tableOffset = this.writeHeader(writer);
 			assert writer.getFilePointer() == tableOffset;
 			for (int i = 0; i < numEntries; i++)
@@ -81,37 +136,198 @@ public abstract class GZippedDatabase extends Database {
 			assert filePos == writer.getFilePointer();
 			currentEntry = 0;
 			entryTable[0] = filePos;
-			zcos = new ZipChunkOutputStream(writer, (int) Math.min(
-					Integer.MAX_VALUE, entrySize));
+			entryBuffer = new byte[(int) this.entrySize];
 			currentByteIndex = firstByteIndex;
-			zcis = null;
 		} else {
 			tableOffset = skipHeader(reader);
 			for (int i = 0; i < numEntries; i++)
 				entryTable[i] = reader.readLong();
-			final int bufferSize = (int) Math.min(Integer.MAX_VALUE, entrySize);
-			zcis = new ZipChunkInputStream(reader, bufferSize);
-			zcos = null;
+			entryBuffer = null;
 			currentByteIndex = -1L;
 		}
+		long cacheBytes = conf.getNumBytes("gamesman.database.gzip.cache",
+				1L << 24);
+		readAhead = writing ? 0 : conf.getInteger(
+				"gamesman.database.gzip.readahead", 4);
+		readAheadThreads = conf.getInteger(
+				"gamesman.database.gzip.readahead.threads", Math.min(
+						readAhead, Runtime.getRuntime().availableProcessors()));
+		if (!writing) {
+			maxCachedEntries = (int) Math.max(readAhead + 1, Math.min(
+					Integer.MAX_VALUE, cacheBytes / this.entrySize));
+			entryCache = new ConcurrentHashMap<Integer, CachedEntry>();
+			cacheClock = new ConcurrentLinkedQueue<Integer>();
+		} else {
+			maxCachedEntries = 0;
+			entryCache = null;
+			cacheClock = null;
+		}
+	}
+
+	/**
+	 * @param conf
+	 *            The configuration of the database being compressed
+	 * @param codecName
+	 *            The codec class (in edu.berkeley.gamesman.database.codec if
+	 *            it has no package)
+	 * @return A new instance of the codec, passed the configuration if it has
+	 *         a constructor which takes one
+	 */
+	public static BlockCodec makeCodec(Configuration conf, String codecName) {
+		if (codecName.indexOf('.') < 0)
+			codecName = "edu.berkeley.gamesman.database.codec." + codecName;
+		try {
+			Class<? extends BlockCodec> codecClass = Util.typedForName(
+					codecName, BlockCodec.class);
+			try {
+				return codecClass.getConstructor(Configuration.class)
+						.newInstance(conf);
+			} catch (NoSuchMethodException e) {
+				return codecClass.getConstructor().newInstance();
+			}
+		} catch (Exception e) {
+			throw new Error(e);
+		}
 	}
 
 	@Override
-	protected synchronized int readBytes(DatabaseHandle dh, long location,
-			byte[] array, int off, int len) throws IOException {
+	protected int readBytes(DatabaseHandle dh, long location, byte[] array,
+			int off, int len) throws IOException {
 		if (writing)
 			return len;
-		if (location != currentByteIndex) {
-			int readEntry = (int) ((location - firstByteIndex) / entrySize);
-			long entryStartByteIndex = firstByteIndex + readEntry * entrySize;
-			reader.seek(entryTable[readEntry]);
-			zcis.renew();
-			Util.skipFully(zcis, location - entryStartByteIndex);
-			currentByteIndex = location;
+		int readEntry = (int) ((location - firstByteIndex) / entrySize);
+		int entryOff = (int) (location - firstByteIndex - readEntry * entrySize);
+		if (readAhead > 0 && (entryOff == 0 || location == dh.firstByteIndex))
+			readAhead(readEntry, dh.firstByteIndex + dh.numBytes);
+		byte[] entryBytes = getEntry(readEntry);
+		len = Math.min(len, entryBytes.length - entryOff);
+		if (len <= 0)
+			return -1;
+		System.arraycopy(entryBytes, entryOff, array, off, len);
+		return len;
+	}
+
+	private byte[] getEntry(int entry) throws IOException {
+		CachedEntry cached = entryCache.get(entry);
+		if (cached == null) {
+			CachedEntry loading = new CachedEntry(entry);
+			cached = entryCache.putIfAbsent(entry, loading);
+			if (cached == null) {
+				cacheMisses.incrementAndGet();
+				cached = loading;
+				loading.inflated.run();
+				cacheClock.add(entry);
+				evictEntries();
+			} else
+				cacheHits.incrementAndGet();
+		} else {
+			cacheHits.incrementAndGet();
+			cached.referenced = true;
+		}
+		// A read-ahead entry still waiting for a thread is inflated here
+		// instead (this does nothing if it has been started)
+		if (!cached.inflated.isDone())
+			cached.inflated.run();
+		try {
+			return cached.inflated.get();
+		} catch (InterruptedException e) {
+			throw new Error(e);
+		} catch (ExecutionException e) {
+			entryCache.remove(entry, cached);
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			else
+				throw new Error(e.getCause());
+		}
+	}
+
+	private void readAhead(int readEntry, long rangeEnd) {
+		long rangeLastEntry = (rangeEnd - 1 - firstByteIndex) / entrySize;
+		int lastEntry = (int) Math.min(Math.min(numEntries - 1, rangeLastEntry),
+				readEntry + readAhead);
+		for (int entry = readEntry + 1; entry <= lastEntry; entry++) {
+			if (entryCache.containsKey(entry))
+				continue;
+			CachedEntry loading = new CachedEntry(entry);
+			if (entryCache.putIfAbsent(entry, loading) == null) {
+				cacheMisses.incrementAndGet();
+				getReadAheadService().execute(loading.inflated);
+				cacheClock.add(entry);
+				evictEntries();
+			}
+		}
+	}
+
+	private synchronized ExecutorService getReadAheadService() {
+		if (readAheadService == null) {
+			readAheadService = Executors.newFixedThreadPool(
+					Math.max(1, readAheadThreads), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "GZippedDatabase read-ahead");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return readAheadService;
+	}
+
+	/*
+	 * Second-chance eviction: entries are considered in the order they were
+	 * loaded, and any entry which has been read since it was last considered
+	 * is passed over once.
+	 */
+	private void evictEntries() {
+		while (entryCache.size() > maxCachedEntries) {
+			Integer entry = cacheClock.poll();
+			if (entry == null)
+				return;
+			CachedEntry cached = entryCache.get(entry);
+			if (cached == null)
+				continue;
+			if (cached.referenced) {
+				cached.referenced = false;
+				cacheClock.add(entry);
+			} else
+				entryCache.remove(entry, cached);
+		}
+	}
+
+	private byte[] inflateEntry(int entry) throws IOException {
+		long entryStart = entry * entrySize;
+		int entryLen = (int) Math.min(entrySize, numBytes - entryStart);
+		byte[] entryBytes = new byte[Math.max(entryLen, 0)];
+		if (entryLen <= 0)
+			return entryBytes;
+		byte[] zipped;
+		synchronized (this) {
+			reader.seek(entryTable[entry]);
+			zipped = new byte[reader.readInt()];
+			reader.readFully(zipped);
 		}
-		int bytesRead = zcis.read(array, off, len);
-		currentByteIndex += bytesRead;
-		return bytesRead;
+		codec.decompress(zipped, 0, zipped.length, entryBytes, 0, entryLen);
+		return entryBytes;
+	}
+
+	/**
+	 * @return The number of reads which found their entry already inflated
+	 *         (or being inflated by another thread)
+	 */
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	/**
+	 * @return The number of entries which have been inflated
+	 */
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	@Override
+	public boolean supportsRandomWrites() {
+		return false;
 	}
 
 	@Override
@@ -121,13 +337,12 @@ public abstract class GZippedDatabase extends Database {
 			throw new UnsupportedOperationException(
 					"Can only write sequentially");
 		int atTime = (int) Math.min(len, remaining);
-		zcos.write(array, off, atTime);
-		len -= atTime;
+		System.arraycopy(array, off, entryBuffer,
+				(int) (entrySize - remaining), atTime);
 		remaining -= atTime;
 		currentByteIndex += atTime;
 		if (remaining == 0) {
-			filePos += zcos.nextChunk();
-			zcos.flush();
+			filePos += writeEntry(entryBuffer, (int) entrySize);
 			assert filePos == writer.getFilePointer();
 			entryTable[++currentEntry] = filePos;
 			remaining = entrySize;
@@ -135,18 +350,37 @@ public abstract class GZippedDatabase extends Database {
 		return atTime;
 	}
 
+	private int writeEntry(byte[] entryBytes, int len) throws IOException {
+		byte[] zipped = codec.compress(entryBytes, 0, len);
+		writer.writeInt(zipped.length);
+		writer.write(zipped);
+		return 4 + zipped.length;
+	}
+
 	@Override
 	public void close() throws IOException {
 		if (writing) {
-			zcos.finish();
+			writeEntry(entryBuffer, (int) (entrySize - remaining));
 			writer.seek(tableOffset);
 			for (int i = 0; i < numEntries; i++) {
 				writer.writeLong(entryTable[i]);
 			}
 			writer.close();
 		} else {
-			if (zcis != null)
-				zcis.close();
+			ExecutorService service;
+			synchronized (this) {
+				service = readAheadService;
+				readAheadService = null;
+			}
+			if (service != null) {
+				service.shutdownNow();
+				try {
+					service.awaitTermination(1, TimeUnit.MINUTES);
+				} catch (InterruptedException e) {
+					throw new Error(e);
+				}
+			}
+			entryCache.clear();
 			reader.close();
 		}
 	}
@@ -198,27 +432,6 @@ public abstract class GZippedDatabase extends Database {
 	}
 
 	private static class Zipper {
-		private final Pool<ZipChunkOutputStream> chunkerPool = new Pool<ZipChunkOutputStream>(
-				new Factory<ZipChunkOutputStream>() {
-					@Override
-					public ZipChunkOutputStream newObject() {
-						try {
-							return new ZipChunkOutputStream(writeTo.writer,
-									entrySize, false);
-						} catch (IOException e) {
-							throw new Error(e);
-						}
-					}
-
-					@Override
-					public void reset(ZipChunkOutputStream t) {
-						try {
-							t.renew(false);
-						} catch (IOException e) {
-							throw new Error(e);
-						}
-					}
-				});
 		private final Pool<byte[]> bytePool = new Pool<byte[]>(
 				new Factory<byte[]>() {
 
@@ -281,11 +494,7 @@ public abstract class GZippedDatabase extends Database {
 						} else {
 							readBytes(len, byteIndex, entryBytes);
 						}
-						ZipChunkOutputStream chunker = chunkerPool.get();
-						chunker.startChunk();
-						chunker.write(entryBytes, 0, len);
-						chunker.finishChunk();
-						streams[j] = chunker;
+						zipped[j] = writeTo.codec.compress(entryBytes, 0, len);
 					} catch (IOException e) {
 						throw new Error(e);
 					}
@@ -313,7 +522,7 @@ public abstract class GZippedDatabase extends Database {
 		private final int nThreads;
 		private final CountDownLatch[] threadsFinished;
 		private final CountDownLatch[] memoryAcquired;
-		private final ZipChunkOutputStream[] streams;
+		private final byte[][] zipped;
 		private final Database readFrom;
 		private final GZippedDatabase writeTo;
 		private final Progressable progress;
@@ -338,7 +547,7 @@ public abstract class GZippedDatabase extends Database {
 			// No deadlock because newFixedThreadPool is a queue
 			memoryAcquired = new CountDownLatch[writeTo.numEntries];
 			threadsFinished = new CountDownLatch[writeTo.numEntries];
-			streams = new ZipChunkOutputStream[writeTo.numEntries];
+			zipped = new byte[writeTo.numEntries][];
 			this.readFrom = readFrom;
 			this.writeTo = writeTo;
 			this.progress = progress;
@@ -393,8 +602,9 @@ public abstract class GZippedDatabase extends Database {
 				}
 				if (failed != null)
 					throwError(failed);
-				streams[i].finishAndWriteChunk();
-				chunkerPool.release(streams[i]);
+				writeTo.writer.writeInt(zipped[i].length);
+				writeTo.writer.write(zipped[i]);
+				zipped[i] = null;
 				memoryChunks.release(2);
 				if (i < writeTo.numEntries - 1) {
 					bytesWritten += entrySize;
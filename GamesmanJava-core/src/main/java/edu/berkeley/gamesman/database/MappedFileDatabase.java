@@ -0,0 +1,169 @@
+package edu.berkeley.gamesman.database;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import edu.berkeley.gamesman.core.Configuration;
+
+/**
+ * A database which memory-maps its file rather than seeking and reading
+ * through a single shared stream. The file layout is identical to that of a
+ * {@link FileDatabase} (the standard header followed by the record bytes), so
+ * any existing database file can be opened with this class.<br />
+ * The record bytes are mapped in segments of at most 1GB. Each handle keeps
+ * its own views of the segments so any number of threads may read and write
+ * simultaneously without locking.
+ */
+public class MappedFileDatabase extends Database {
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	private static final int SEGMENT_MASK = (int) (SEGMENT_SIZE - 1);
+
+	private class MappedHandle extends DatabaseHandle {
+		private final ByteBuffer[] views;
+
+		private MappedHandle(int numBytes, boolean reading) {
+			super(numBytes, reading);
+			views = new ByteBuffer[segments.length];
+			for (int i = 0; i < segments.length; i++) {
+				views[i] = segments[i].duplicate();
+			}
+		}
+	}
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final MappedByteBuffer[] segments;
+	private final long headerLen;
+	private final long firstByteIndex;
+
+	/**
+	 * @param uri
+	 *            The file to map
+	 * @param conf
+	 *            The configuration object
+	 * @param firstRecordIndex
+	 *            The index of the first record contained in this database
+	 * @param numRecords
+	 *            The number of records contained in this database
+	 * @param reading
+	 *            Whether reading from this database
+	 * @param writing
+	 *            Whether writing to this database (if true, the header is
+	 *            written and the file is resized to hold every record)
+	 * @throws IOException
+	 *             If an IOException occurs while opening or mapping the file
+	 */
+	public MappedFileDatabase(String uri, Configuration conf,
+			long firstRecordIndex, long numRecords, boolean reading,
+			boolean writing) throws IOException {
+		super(conf, firstRecordIndex, numRecords, reading, writing);
+		raf = new RandomAccessFile(uri, writing ? "rw" : "r");
+		if (writing) {
+			headerLen = writeHeader(raf);
+		} else {
+			headerLen = skipHeader(raf);
+		}
+		firstByteIndex = firstByteIndex();
+		long numBytes = numBytes();
+		if (writing && raf.length() < headerLen + numBytes)
+			raf.setLength(headerLen + numBytes);
+		channel = raf.getChannel();
+		int numSegments = (int) ((numBytes + SEGMENT_SIZE - 1) >> SEGMENT_SHIFT);
+		segments = new MappedByteBuffer[numSegments];
+		MapMode mode = writing ? MapMode.READ_WRITE : MapMode.READ_ONLY;
+		for (int i = 0; i < numSegments; i++) {
+			long segStart = (long) i << SEGMENT_SHIFT;
+			long segBytes = Math.min(SEGMENT_SIZE, numBytes - segStart);
+			segments[i] = channel.map(mode, headerLen + segStart, segBytes);
+		}
+	}
+
+	@Override
+	public DatabaseHandle getHandle(boolean reading) {
+		assert reading ? this.reading : this.writing;
+		return new MappedHandle(myLogic.recordBytes, reading);
+	}
+
+	private ByteBuffer getView(DatabaseHandle dh, int segment) {
+		if (dh instanceof MappedHandle)
+			return ((MappedHandle) dh).views[segment];
+		else
+			return segments[segment].duplicate();
+	}
+
+	@Override
+	protected int readBytes(DatabaseHandle dh, long location, byte[] array,
+			int off, int len) {
+		long pos = location - firstByteIndex;
+		int segOff = (int) (pos & SEGMENT_MASK);
+		ByteBuffer view = getView(dh, (int) (pos >>> SEGMENT_SHIFT));
+		len = Math.min(len, view.capacity() - segOff);
+		view.position(segOff);
+		view.get(array, off, len);
+		return len;
+	}
+
+	@Override
+	protected int writeBytes(DatabaseHandle dh, long location, byte[] array,
+			int off, int len) {
+		long pos = location - firstByteIndex;
+		int segOff = (int) (pos & SEGMENT_MASK);
+		ByteBuffer view = getView(dh, (int) (pos >>> SEGMENT_SHIFT));
+		len = Math.min(len, view.capacity() - segOff);
+		view.position(segOff);
+		view.put(array, off, len);
+		return len;
+	}
+
+	/*
+	 * Records never straddle two segments (the segment size is a multiple of
+	 * the record size), so single records can be read and written with
+	 * absolute gets and puts directly on the shared buffers.
+	 */
+
+	@Override
+	protected long readRecordFromByteIndex(DatabaseHandle dh, long byteIndex) {
+		long pos = byteIndex - firstByteIndex;
+		MappedByteBuffer segment = segments[(int) (pos >>> SEGMENT_SHIFT)];
+		int segOff = (int) (pos & SEGMENT_MASK);
+		byte[] recordBytes = dh.currentRecord;
+		for (int i = 0; i < recordBytes.length; i++)
+			recordBytes[i] = segment.get(segOff + i);
+		return myLogic.getRecord(recordBytes, 0);
+	}
+
+	@Override
+	protected void writeRecordFromByteIndex(DatabaseHandle dh, long byteIndex,
+			long record) {
+		long pos = byteIndex - firstByteIndex;
+		MappedByteBuffer segment = segments[(int) (pos >>> SEGMENT_SHIFT)];
+		int segOff = (int) (pos & SEGMENT_MASK);
+		byte[] recordBytes = dh.currentRecord;
+		myLogic.fillBytes(record, recordBytes, 0);
+		for (int i = 0; i < recordBytes.length; i++)
+			segment.put(segOff + i, recordBytes[i]);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (writing) {
+			for (MappedByteBuffer segment : segments)
+				segment.force();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (writing) {
+			for (MappedByteBuffer segment : segments)
+				segment.force();
+		}
+		channel.close();
+		raf.close();
+	}
+}
@@ -0,0 +1,126 @@
+package edu.berkeley.gamesman.database;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import edu.berkeley.gamesman.core.Configuration;
+
+/**
+ * A file database which uses positional reads and writes on a FileChannel
+ * instead of seeking a shared stream. Nothing is shared between handles except
+ * the channel itself, so reads from different threads proceed in parallel.
+ * Unlike {@link MappedFileDatabase} this places no limit on the database size
+ * relative to the available address space. The file layout is the same as
+ * that of a {@link FileDatabase}.
+ */
+public class PositionalFileDatabase extends Database {
+	private class ChannelHandle extends DatabaseHandle {
+		private final ByteBuffer buffer;
+
+		private ChannelHandle(int numBytes, boolean reading) {
+			super(numBytes, reading);
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+		}
+	}
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final long headerLen;
+	private final long firstByteIndex;
+	private final int bufferSize;
+
+	/**
+	 * @param uri
+	 *            The file to open
+	 * @param conf
+	 *            The configuration object
+	 * @param firstRecordIndex
+	 *            The index of the first record contained in this database
+	 * @param numRecords
+	 *            The number of records contained in this database
+	 * @param reading
+	 *            Whether reading from this database
+	 * @param writing
+	 *            Whether writing to this database
+	 * @throws IOException
+	 *             If an IOException occurs while opening the file
+	 */
+	public PositionalFileDatabase(String uri, Configuration conf,
+			long firstRecordIndex, long numRecords, boolean reading,
+			boolean writing) throws IOException {
+		super(conf, firstRecordIndex, numRecords, reading, writing);
+		raf = new RandomAccessFile(uri, writing ? "rw" : "r");
+		if (writing) {
+			headerLen = writeHeader(raf);
+		} else {
+			headerLen = skipHeader(raf);
+		}
+		channel = raf.getChannel();
+		firstByteIndex = firstByteIndex();
+		int bufferSize = (int) Math.min(Integer.MAX_VALUE,
+				conf.getNumBytes("gamesman.database.handle.buffer", 1 << 16));
+		this.bufferSize = Math.max(bufferSize, myLogic.recordBytes);
+	}
+
+	@Override
+	public DatabaseHandle getHandle(boolean reading) {
+		assert reading ? this.reading : this.writing;
+		return new ChannelHandle(myLogic.recordBytes, reading);
+	}
+
+	private ByteBuffer getBuffer(DatabaseHandle dh, int len) {
+		if (dh instanceof ChannelHandle)
+			return ((ChannelHandle) dh).buffer;
+		else
+			return ByteBuffer.allocate(len);
+	}
+
+	@Override
+	protected int readBytes(DatabaseHandle dh, long location, byte[] array,
+			int off, int len) throws IOException {
+		ByteBuffer buffer = getBuffer(dh, len);
+		buffer.clear();
+		buffer.limit(Math.min(len, buffer.capacity()));
+		long filePos = location - firstByteIndex + headerLen;
+		while (buffer.hasRemaining()) {
+			int bytesRead = channel.read(buffer, filePos + buffer.position());
+			if (bytesRead < 0)
+				break;
+		}
+		buffer.flip();
+		int bytesRead = buffer.remaining();
+		if (bytesRead == 0)
+			return -1;
+		buffer.get(array, off, bytesRead);
+		return bytesRead;
+	}
+
+	@Override
+	protected int writeBytes(DatabaseHandle dh, long location, byte[] array,
+			int off, int len) throws IOException {
+		ByteBuffer buffer = getBuffer(dh, len);
+		buffer.clear();
+		len = Math.min(len, buffer.capacity());
+		buffer.put(array, off, len);
+		buffer.flip();
+		long filePos = location - firstByteIndex + headerLen;
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, filePos + buffer.position());
+		}
+		return len;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (writing)
+			channel.force(false);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		raf.close();
+	}
+}
@@ -0,0 +1,351 @@
+package edu.berkeley.gamesman.database;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.core.Value;
+import edu.berkeley.gamesman.game.TierGame;
+import edu.berkeley.gamesman.game.util.TierState;
+import edu.berkeley.gamesman.util.DebugFacility;
+import edu.berkeley.gamesman.util.RankBitVector;
+import edu.berkeley.gamesman.util.Util;
+
+/**
+ * A {@link Database} wrapper for tier games which only stores the records of
+ * positions reachable from a starting position. Which hashes are reachable is
+ * kept as a {@link RankBitVector} after the header in this database's file, and
+ * the records of reachable positions are stored in order in an inner database
+ * (gamesman.db.inner.uri, or this file with ".inner" appended) so that a
+ * hash's record is at its rank.<br />
+ * When opened for writing, the reachable positions are found by a pass
+ * forward through the tiers from the starting positions, and the inner
+ * database (of class gamesman.database.reachable.inner, FileDatabase by
+ * default) is created to hold them. Records of unreachable positions are
+ * dropped when written and read as 0. Only record-level reads and writes are
+ * supported, so this can't be used with caches which read bytes directly.<br />
+ * If gamesman.database.reachable.symmetric is set, only the positions which
+ * stand for their symmetries (see {@link TierGame#canonicalHash(long)}) are
+ * stored, and each other position reads the record of the one standing for
+ * it. The solver need then only solve those positions.<br />
+ * The main method converts a solved database.
+ */
+public final class ReachableDatabase extends Database {
+	private final TierGame myTierGame;
+	private final boolean symmetric;
+	private final RankBitVector reachable;
+	private final Database inner;
+
+	/**
+	 * A handle holding a handle for the inner database and the next hash to
+	 * be read or written. With symmetries, it also has its own copy of the
+	 * game for finding canonical hashes and a second inner handle for reading
+	 * the records of positions met while reading a range.
+	 */
+	private static final class ReachableHandle extends DatabaseHandle {
+		private final DatabaseHandle innerHandle;
+		private long nextHash;
+		private TierGame game;
+		private DatabaseHandle otherHandle;
+
+		private ReachableHandle(DatabaseHandle innerHandle, int numBytes,
+				boolean reading) {
+			super(numBytes, reading);
+			this.innerHandle = innerHandle;
+		}
+	}
+
+	public ReachableDatabase(String uri, Configuration conf,
+			long firstRecordIndex, long numRecords, boolean reading,
+			boolean writing) throws IOException {
+		super(conf, firstRecordIndex, numRecords, reading, writing);
+		myTierGame = (TierGame) conf.getGame();
+		symmetric = conf.getBoolean("gamesman.database.reachable.symmetric",
+				false);
+		String innerUri = conf.getProperty("gamesman.db.inner.uri", uri
+				+ ".inner");
+		if (writing) {
+			if (firstRecordIndex != 0 || numRecords != myTierGame.numHashes())
+				throw new Error("A ReachableDatabase must hold the whole game");
+			conf.setProperty("gamesman.db.inner.uri", innerUri);
+			reachable = findReachable(myTierGame, symmetric);
+			Util.debug(DebugFacility.DATABASE, reachable.numSet() + " of "
+					+ numRecords + " positions are "
+					+ (symmetric ? "reachable and canonical" : "reachable"));
+			DataOutputStream dos = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(uri)));
+			writeHeader(dos);
+			reachable.writeTo(dos);
+			dos.close();
+			Properties innerProps = new Properties();
+			innerProps.putAll(conf.props);
+			innerProps.setProperty("gamesman.database", conf.getProperty(
+					"gamesman.database.reachable.inner", "FileDatabase"));
+			Configuration innerConf;
+			try {
+				innerConf = new Configuration(innerProps);
+			} catch (ClassNotFoundException e) {
+				throw new Error(e);
+			}
+			inner = Database.openDatabase(innerConf.getProperty(
+					"gamesman.database"), innerUri, innerConf, 0L, reachable
+					.numSet(), reading, true);
+		} else {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(uri)));
+			skipHeader(in);
+			reachable = RankBitVector.readFrom(in);
+			in.close();
+			try {
+				inner = Database.openDatabase(innerUri);
+			} catch (ClassNotFoundException e) {
+				throw new Error(e);
+			}
+		}
+	}
+
+	/**
+	 * Marks every position reachable from a starting position. Each tier is
+	 * gone through in order and the children of each reachable position in it
+	 * are marked, so every child must be in a later tier.
+	 *
+	 * @param game
+	 *            The game
+	 * @param symmetric
+	 *            Whether to mark only the positions standing for their
+	 *            symmetries (so that only their children are marked in turn)
+	 * @return The set of reachable hashes
+	 */
+	public static RankBitVector findReachable(TierGame game, boolean symmetric) {
+		RankBitVector reachable = new RankBitVector(game.numHashes());
+		for (TierState start : game.startingPositions()) {
+			long hash = game.stateToHash(start);
+			reachable.set(symmetric ? game.canonicalHash(hash) : hash);
+		}
+		TierState position = game.newState();
+		TierState[] childStates = game.newStateArray(game.maxChildren());
+		long[] childHashes = new long[game.maxChildren()];
+		for (int tier = 0; tier < game.numberOfTiers(); tier++) {
+			long tierEnd = game.hashOffsetForTier(tier + 1);
+			for (long hash = reachable.nextSetBit(game.hashOffsetForTier(tier)); hash >= 0
+					&& hash < tierEnd; hash = reachable.nextSetBit(hash + 1)) {
+				game.hashToState(hash, position);
+				game.setState(position);
+				if (game.primitiveValue() != Value.UNDECIDED)
+					continue;
+				int numChildren = game.validMoveHashes(childHashes);
+				if (numChildren < 0) {
+					numChildren = game.validMoves(childStates);
+					for (int i = 0; i < numChildren; i++)
+						childHashes[i] = game.stateToHash(childStates[i]);
+				}
+				for (int i = 0; i < numChildren; i++) {
+					assert childHashes[i] >= tierEnd;
+					reachable.set(symmetric ? game.canonicalHash(childHashes[i])
+							: childHashes[i]);
+				}
+			}
+		}
+		reachable.buildIndex();
+		return reachable;
+	}
+
+	/**
+	 * @return The set of reachable hashes
+	 */
+	public RankBitVector getReachable() {
+		return reachable;
+	}
+
+	/**
+	 * @return Whether only positions standing for their symmetries are stored
+	 */
+	public boolean isSymmetric() {
+		return symmetric;
+	}
+
+	/**
+	 * @param rh
+	 *            The handle (whose game is used to find canonical hashes)
+	 * @param hash
+	 *            A position
+	 * @return The hash whose record is stored for it or -1 if there is none
+	 */
+	private long storedHash(ReachableHandle rh, long hash) {
+		if (reachable.get(hash))
+			return hash;
+		if (!symmetric)
+			return -1L;
+		if (rh.game == null)
+			rh.game = (TierGame) conf.cloneAll().getGame();
+		hash = rh.game.canonicalHash(hash);
+		return reachable.get(hash) ? hash : -1L;
+	}
+
+	@Override
+	public boolean keepsRecord(long recordIndex) {
+		return reachable.get(recordIndex);
+	}
+
+	@Override
+	public boolean sharesRecords() {
+		return symmetric;
+	}
+
+	@Override
+	public long readRecord(DatabaseHandle dh, long recordIndex)
+			throws IOException {
+		ReachableHandle rh = (ReachableHandle) dh;
+		long stored = storedHash(rh, recordIndex);
+		if (stored < 0)
+			return 0L;
+		return inner.readRecord(rh.innerHandle, reachable.rank(stored));
+	}
+
+	@Override
+	public void writeRecord(DatabaseHandle dh, long recordIndex, long r)
+			throws IOException {
+		if (reachable.get(recordIndex))
+			inner.writeRecord(((ReachableHandle) dh).innerHandle,
+					reachable.rank(recordIndex), r);
+	}
+
+	@Override
+	public void prepareReadRecordRange(DatabaseHandle dh, long recordIndex,
+			long numRecords) throws IOException {
+		ReachableHandle rh = (ReachableHandle) dh;
+		long first = reachable.rank(recordIndex);
+		inner.prepareReadRecordRange(rh.innerHandle, first,
+				reachable.rank(recordIndex + numRecords) - first);
+		rh.nextHash = recordIndex;
+	}
+
+	@Override
+	public void prepareWriteRecordRange(DatabaseHandle dh, long recordIndex,
+			long numRecords) throws IOException {
+		ReachableHandle rh = (ReachableHandle) dh;
+		long first = reachable.rank(recordIndex);
+		inner.prepareWriteRecordRange(rh.innerHandle, first,
+				reachable.rank(recordIndex + numRecords) - first);
+		rh.nextHash = recordIndex;
+	}
+
+	@Override
+	public long readNextRecord(DatabaseHandle dh) throws IOException {
+		ReachableHandle rh = (ReachableHandle) dh;
+		long hash = rh.nextHash++;
+		if (reachable.get(hash))
+			return inner.readNextRecord(rh.innerHandle);
+		long stored = storedHash(rh, hash);
+		if (stored < 0)
+			return 0L;
+		if (rh.otherHandle == null)
+			rh.otherHandle = inner.getHandle(true);
+		return inner.readRecord(rh.otherHandle, reachable.rank(stored));
+	}
+
+	@Override
+	public void writeNextRecord(DatabaseHandle dh, long record)
+			throws IOException {
+		ReachableHandle rh = (ReachableHandle) dh;
+		if (reachable.get(rh.nextHash++))
+			inner.writeNextRecord(rh.innerHandle, record);
+	}
+
+	@Override
+	public boolean compareAndSetRecord(DatabaseHandle dh, long recordIndex,
+			long expected, long record) throws IOException {
+		ReachableHandle rh = (ReachableHandle) dh;
+		long stored = storedHash(rh, recordIndex);
+		if (stored < 0)
+			return expected == 0L;
+		return inner.compareAndSetRecord(rh.innerHandle, reachable.rank(stored),
+				expected, record);
+	}
+
+	@Override
+	public DatabaseHandle getHandle(boolean reading) {
+		return new ReachableHandle(inner.getHandle(reading),
+				myLogic.recordBytes, reading);
+	}
+
+	@Override
+	protected int readBytes(DatabaseHandle dh, long location, byte[] array,
+			int off, int len) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	protected int writeBytes(DatabaseHandle dh, long location, byte[] array,
+			int off, int len) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	protected void lowerPrepareReadRange(DatabaseHandle dh,
+			long firstByteIndex, long numBytes) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	protected void lowerPrepareWriteRange(DatabaseHandle dh,
+			long firstByteIndex, long numBytes) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		inner.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		inner.close();
+	}
+
+	/**
+	 * Copies the reachable records of a solved database into a new
+	 * ReachableDatabase
+	 *
+	 * @param args
+	 *            The solved database, the new database file and optionally
+	 *            the file for its records and whether to store only the
+	 *            positions standing for their symmetries ("true" or "false")
+	 */
+	public static void main(String[] args) throws IOException,
+			ClassNotFoundException {
+		Database solved = Database.openDatabase(args[0]);
+		Properties props = new Properties();
+		props.putAll(solved.conf.props);
+		props.setProperty("gamesman.database.reachable.inner",
+				solved.conf.getProperty("gamesman.database"));
+		props.setProperty("gamesman.database",
+				ReachableDatabase.class.getName());
+		props.setProperty("gamesman.db.uri", args[1]);
+		if (args.length > 2)
+			props.setProperty("gamesman.db.inner.uri", args[2]);
+		else
+			props.remove("gamesman.db.inner.uri");
+		if (args.length > 3)
+			props.setProperty("gamesman.database.reachable.symmetric", args[3]);
+		Configuration conf = new Configuration(props);
+		ReachableDatabase db = new ReachableDatabase(args[1], conf, 0L,
+				conf.getGame().numHashes(), false, true);
+		DatabaseHandle readHandle = solved.getHandle(true);
+		DatabaseHandle writeHandle = db.getHandle(false);
+		solved.prepareReadRecordRange(readHandle, 0L, solved.numRecords);
+		db.prepareWriteRecordRange(writeHandle, 0L, db.numRecords);
+		for (long hash = 0L; hash < solved.numRecords; hash++)
+			db.writeNextRecord(writeHandle, solved.readNextRecord(readHandle));
+		solved.close();
+		db.close();
+		System.out.println(db.reachable.numSet() + " of " + db.numRecords
+				+ " positions are stored");
+	}
+}
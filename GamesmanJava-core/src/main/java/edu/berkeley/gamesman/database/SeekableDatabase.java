@@ -76,6 +76,12 @@ public abstract class SeekableDatabase extends Database {
 		return len;
 	}
 
+	@Override
+	public synchronized void flush() throws IOException {
+		if (out != null)
+			out.flush();
+	}
+
 	@Override
 	public synchronized void close() throws IOException {
 		if (out != null)
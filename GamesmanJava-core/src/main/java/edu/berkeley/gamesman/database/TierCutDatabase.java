@@ -3,23 +3,44 @@ package edu.berkeley.gamesman.database;
 import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 import edu.berkeley.gamesman.core.Configuration;
 import edu.berkeley.gamesman.core.Record;
 import edu.berkeley.gamesman.core.Value;
+import edu.berkeley.gamesman.database.cache.TranspositionTable;
 import edu.berkeley.gamesman.game.TierGame;
 import edu.berkeley.gamesman.game.util.TierState;
+import edu.berkeley.gamesman.util.DebugFacility;
 import edu.berkeley.gamesman.util.Util;
+import edu.berkeley.gamesman.util.qll.Factory;
+import edu.berkeley.gamesman.util.qll.Pool;
 
 /**
  * A {@link Database} wrapper for tier games that supports having a number of
  * its tiers missing. Values in the missing tiers are solved for upon request.
+ * Solved values (and the bounds found by searches which were cut off) are kept
+ * in a {@link TranspositionTable} of gamesman.database.cut.cache.bytes bytes
+ * (16MB by default, 0 for none) so that positions shared between requests are
+ * only searched once.<br />
+ * With gamesman.database.cut.threads greater than one, the children of
+ * positions within gamesman.database.cut.split.depth (2 by default) moves of
+ * the requested position are searched in parallel. The eldest child is
+ * searched first and the rest are then searched together using the window it
+ * narrowed (young brothers wait).
  */
 public final class TierCutDatabase extends Database {
 
@@ -27,6 +48,25 @@ public final class TierCutDatabase extends Database {
 	private final TierGame myTierGame;
 	private final boolean[] inDatabase;
 	private final Database inner;
+	private final int[] cutDepth;
+	private final TranspositionTable table;
+	private final int splitDepth;
+	private final ExecutorService searchService;
+	private final Pool<Searcher> searchers;
+
+	/**
+	 * A game and a handle for one thread of a parallel search (TierGames
+	 * aren't thread-safe)
+	 */
+	private static final class Searcher {
+		private final TierGame game;
+		private final DatabaseHandle dh;
+
+		private Searcher(TierGame game, DatabaseHandle dh) {
+			this.game = game;
+			this.dh = dh;
+		}
+	}
 
 	public TierCutDatabase(String uri, Configuration conf,
 			long firstRecordIndex, long numRecords, boolean reading,
@@ -45,12 +85,46 @@ public final class TierCutDatabase extends Database {
 		for (int i : preservedTiers) {
 			inDatabase[i] = true;
 		}
+		cutDepth = makeCutDepth(inDatabase);
+		long cacheBytes = conf.getNumBytes("gamesman.database.cut.cache.bytes",
+				1 << 24);
+		table = cacheBytes > 0 ? new TranspositionTable(cacheBytes) : null;
 		String innerUri = conf.getProperty("gamesman.db.inner.uri");
 		try {
 			inner = Database.openDatabase(innerUri);
 		} catch (ClassNotFoundException e) {
 			throw new Error(e);
 		}
+		int threads = conf.getInteger("gamesman.database.cut.threads", 1);
+		if (threads > 1) {
+			splitDepth = conf.getInteger("gamesman.database.cut.split.depth",
+					2);
+			// The thread waiting on a search runs its share too
+			searchService = Executors.newFixedThreadPool(threads - 1,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "TierCutDatabase search");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			searchers = new Pool<Searcher>(new Factory<Searcher>() {
+				@Override
+				public Searcher newObject() {
+					return new Searcher((TierGame) TierCutDatabase.this.conf
+							.cloneAll().getGame(), inner.getHandle(true));
+				}
+
+				@Override
+				public void reset(Searcher t) {
+				}
+			});
+		} else {
+			splitDepth = 0;
+			searchService = null;
+			searchers = null;
+		}
 	}
 
 	public TierCutDatabase(Database inner, String uri, Configuration conf,
@@ -63,6 +137,11 @@ public final class TierCutDatabase extends Database {
 		for (int i : preservedTiers) {
 			inDatabase[i] = true;
 		}
+		cutDepth = makeCutDepth(inDatabase);
+		table = null;
+		splitDepth = 0;
+		searchService = null;
+		searchers = null;
 		this.inner = inner;
 	}
 
@@ -75,6 +154,27 @@ public final class TierCutDatabase extends Database {
 		return preserved;
 	}
 
+	/**
+	 * @return For each tier, the number of missing tiers from it to the next
+	 *         stored tier (how deep a search from that tier goes)
+	 */
+	private static int[] makeCutDepth(boolean[] inDatabase) {
+		int[] depth = new int[inDatabase.length];
+		for (int tier = inDatabase.length - 1; tier >= 0; tier--) {
+			if (!inDatabase[tier])
+				depth[tier] = tier + 1 < inDatabase.length ? depth[tier + 1] + 1
+						: 1;
+		}
+		return depth;
+	}
+
+	/**
+	 * @return The table of solved positions (null if there is none)
+	 */
+	public TranspositionTable getTranspositionTable() {
+		return table;
+	}
+
 	@Override
 	public long readRecord(DatabaseHandle dh, long recordIndex)
 			throws IOException {
@@ -103,8 +203,8 @@ public final class TierCutDatabase extends Database {
 				alpha.value = Value.UNDECIDED;
 				beta.value = Value.UNDECIDED;
 				// long val = missingTierSolve(dh, recordIndex);
-				long val = alphaBetaMissingTierSolve(dh, recordIndex, alpha,
-						beta);
+				long val = alphaBetaMissingTierSolve(myTierGame, dh,
+						recordIndex, alpha, beta, splitDepth);
 				myTierGame.release(alpha);
 				myTierGame.release(beta);
 				return val;
@@ -129,27 +229,35 @@ public final class TierCutDatabase extends Database {
 	 */
 	public long alphaBetaReadRecord(DatabaseHandle dh, long recordIndex,
 			Record alpha, Record beta) throws IOException {
-		int tier = myTierGame.hashToTier(recordIndex);
+		return alphaBetaReadRecord(myTierGame, dh, recordIndex, alpha, beta,
+				splitDepth);
+	}
+
+	private long alphaBetaReadRecord(TierGame game, DatabaseHandle dh,
+			long recordIndex, Record alpha, Record beta, int splitDepth)
+			throws IOException {
+		int tier = game.hashToTier(recordIndex);
 		if (shouldBeInDatabase(tier)) {
 			return inner.readRecord(dh, recordIndex);
 		} else {
 			// Value not in DB, so solve for it.
-			TierState pos = myTierGame.getPoolState();
-			myTierGame.hashToState(recordIndex, pos);
-			Value value = myTierGame.primitiveValue(pos);
+			TierState pos = game.getPoolState();
+			game.hashToState(recordIndex, pos);
+			Value value = game.primitiveValue(pos);
 			if (value != Value.UNDECIDED) {
 				// Primitive position, so just return it.
-				Record myRecord = myTierGame.getPoolRecord();
+				Record myRecord = game.getPoolRecord();
 				myRecord.value = value;
 				myRecord.remoteness = 0;
-				long val = myTierGame.recordToLong(pos, myRecord);
-				myTierGame.release(myRecord);
-				myTierGame.release(pos);
+				long val = game.recordToLong(pos, myRecord);
+				game.release(myRecord);
+				game.release(pos);
 				return val;
 			} else {
 				// Perform a solve for the missing tiers.
-				myTierGame.release(pos);
-				return alphaBetaMissingTierSolve(dh, recordIndex, alpha, beta);
+				game.release(pos);
+				return alphaBetaMissingTierSolve(game, dh, recordIndex, alpha,
+						beta, splitDepth);
 			}
 		}
 	}
@@ -158,6 +266,8 @@ public final class TierCutDatabase extends Database {
 	 * Solves for the value of the state corresponding to the given index.
 	 * Alpha-Beta pruning is supported.
 	 * 
+	 * @param game
+	 *            The game to use (belonging to this thread)
 	 * @param dh
 	 *            A handle to the database
 	 * @param recordIndex
@@ -166,58 +276,224 @@ public final class TierCutDatabase extends Database {
 	 *            alpha record for alpha-beta pruning
 	 * @param beta
 	 *            beta record for alpha-beta pruning
+	 * @param splitDepth
+	 *            How many more moves down children may be searched in
+	 *            parallel
 	 * @return The solved hash of the record corresponding to the given index
 	 * @throws IOException
 	 */
-	private long alphaBetaMissingTierSolve(DatabaseHandle dh, long recordIndex,
-			Record alpha, Record beta) throws IOException {
+	private long alphaBetaMissingTierSolve(TierGame game, DatabaseHandle dh,
+			long recordIndex, Record alpha, Record beta, int splitDepth)
+			throws IOException {
+		// Initialize a TierState from the index.
+		TierState pos = game.getPoolState();
+		game.hashToState(recordIndex, pos);
+		if (table != null) {
+			long entry = table.probe(recordIndex);
+			if (entry != TranspositionTable.MISS
+					&& useEntry(game, pos, entry, alpha, beta)) {
+				game.release(pos);
+				return TranspositionTable.record(entry);
+			}
+		}
 		// Keep the underlying database open.
 		boolean setHolding = false;
 		if (inner instanceof SplitDatabase)
 			setHolding = ((SplitDatabase) inner).setHolding(true);
-		// Initialize a TierState from the index.
-		TierState pos = myTierGame.getPoolState();
-		myTierGame.hashToState(recordIndex, pos);
+		boolean bounded = alpha.value != Value.UNDECIDED;
+		boolean improved = false, cutOff = false;
 		// Get the valid moves.
-		TierState[] childStates = myTierGame.getPoolChildStateArray();
-		int numChildren = myTierGame.validMoves(pos, childStates);
-		Record moveRecord = myTierGame.getPoolRecord();
+		TierState[] childStates = game.getPoolChildStateArray();
+		int numChildren = game.validMoves(pos, childStates);
+		int serialChildren = splitDepth > 0 ? Math.min(1, numChildren)
+				: numChildren;
+		Record moveRecord = game.getPoolRecord();
 		// Loops through children and calculates the current state's value.
-		for (int childIndex = 0; childIndex < numChildren; childIndex++) {
+		for (int childIndex = 0; childIndex < serialChildren; childIndex++) {
 			TierState childState = childStates[childIndex];
-			long childHash = myTierGame.stateToHash(childState);
+			long childHash = game.stateToHash(childState);
 			// Retrieve the record for child's state.
-			Record nextAlpha = myTierGame.getPoolRecord();
+			Record nextAlpha = game.getPoolRecord();
 			nextAlpha.value = beta.value;
 			nextAlpha.remoteness = beta.remoteness;
 			nextAlpha.nextPosition();
-			Record nextBeta = myTierGame.getPoolRecord();
+			Record nextBeta = game.getPoolRecord();
 			nextBeta.value = alpha.value;
 			nextBeta.remoteness = alpha.remoteness;
 			nextBeta.nextPosition();
-			long recordLong = alphaBetaReadRecord(dh, childHash, nextAlpha,
-					nextBeta);
-			myTierGame.release(nextAlpha);
-			myTierGame.release(nextBeta);
-			myTierGame.longToRecord(childState, recordLong, moveRecord);
+			long recordLong = alphaBetaReadRecord(game, dh, childHash,
+					nextAlpha, nextBeta, splitDepth - 1);
+			game.release(nextAlpha);
+			game.release(nextBeta);
+			game.longToRecord(childState, recordLong, moveRecord);
 			moveRecord.previousPosition();
 			// Set current record to be the best of current and child.
 			if (alpha.value == Value.UNDECIDED
-					|| moveRecord.compareTo(alpha) > 0)
+					|| moveRecord.compareTo(alpha) > 0) {
 				alpha.set(moveRecord);
-			if (alpha.compareTo(beta) >= 0 && beta.value != Value.UNDECIDED)
+				improved = true;
+			}
+			if (alpha.compareTo(beta) >= 0 && beta.value != Value.UNDECIDED) {
+				cutOff = true;
 				break;
+			}
+		}
+		if (!cutOff && serialChildren < numChildren) {
+			long[] childHashes = new long[numChildren - serialChildren];
+			for (int i = 0; i < childHashes.length; i++)
+				childHashes[i] = game.stateToHash(childStates[serialChildren
+						+ i]);
+			SiblingSearch siblings = new SiblingSearch(alpha, beta);
+			siblings.search(childHashes, splitDepth - 1);
+			improved |= siblings.improved;
+			cutOff = siblings.cutOff;
+		}
+		long val = game.recordToLong(pos, alpha);
+		if (table != null && alpha.value != Value.UNDECIDED) {
+			// A search which fails high only proves a lower bound, and one
+			// which never beats its starting alpha only proves an upper bound
+			int flag = cutOff ? TranspositionTable.LOWER : bounded
+					&& !improved ? TranspositionTable.UPPER
+					: TranspositionTable.EXACT;
+			if (flag == TranspositionTable.EXACT
+					|| storesExactly(game, pos, val, alpha))
+				table.store(recordIndex, val, flag, cutDepth[pos.tier]);
 		}
-		long val = myTierGame.recordToLong(pos, alpha);
 		// Clean up resources.
-		myTierGame.release(moveRecord);
-		myTierGame.release(childStates);
-		myTierGame.release(pos);
+		game.release(moveRecord);
+		game.release(childStates);
+		game.release(pos);
 		if (setHolding)
 			((SplitDatabase) inner).setHolding(false);
 		return val;
 	}
 
+	/**
+	 * The younger children of a position, searched in parallel after the
+	 * eldest. Each child starts from the best record its siblings have found
+	 * so far, and once one causes a cutoff the children which haven't started
+	 * are skipped.
+	 */
+	private final class SiblingSearch {
+		private final Record alpha, beta;
+		private boolean improved;
+		private volatile boolean cutOff;
+
+		private SiblingSearch(Record alpha, Record beta) {
+			this.alpha = alpha;
+			this.beta = beta;
+		}
+
+		private void search(long[] childHashes, final int splitDepth)
+				throws IOException {
+			List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(
+					childHashes.length);
+			for (final long childHash : childHashes) {
+				FutureTask<Void> task = new FutureTask<Void>(
+						new Callable<Void>() {
+							@Override
+							public Void call() throws IOException {
+								if (!cutOff)
+									searchChild(childHash, splitDepth);
+								return null;
+							}
+						});
+				tasks.add(task);
+				searchService.execute(task);
+			}
+			// Run whichever children no other thread has picked up yet
+			for (FutureTask<Void> task : tasks)
+				task.run();
+			for (FutureTask<Void> task : tasks) {
+				try {
+					task.get();
+				} catch (InterruptedException e) {
+					throw new Error(e);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException)
+						throw (IOException) e.getCause();
+					throw new Error(e.getCause());
+				}
+			}
+		}
+
+		private void searchChild(long childHash, int splitDepth)
+				throws IOException {
+			Searcher searcher = searchers.get();
+			TierGame game = searcher.game;
+			Record nextAlpha = game.getPoolRecord();
+			Record nextBeta = game.getPoolRecord();
+			try {
+				synchronized (this) {
+					nextAlpha.value = beta.value;
+					nextAlpha.remoteness = beta.remoteness;
+					nextBeta.value = alpha.value;
+					nextBeta.remoteness = alpha.remoteness;
+				}
+				nextAlpha.nextPosition();
+				nextBeta.nextPosition();
+				long recordLong = alphaBetaReadRecord(game, searcher.dh,
+						childHash, nextAlpha, nextBeta, splitDepth);
+				TierState childState = game.getPoolState();
+				game.hashToState(childHash, childState);
+				Record moveRecord = nextAlpha;
+				game.longToRecord(childState, recordLong, moveRecord);
+				moveRecord.previousPosition();
+				synchronized (this) {
+					if (moveRecord.compareTo(alpha) > 0) {
+						alpha.set(moveRecord);
+						improved = true;
+					}
+					if (beta.value != Value.UNDECIDED
+							&& alpha.compareTo(beta) >= 0)
+						cutOff = true;
+				}
+				game.release(childState);
+			} finally {
+				game.release(nextAlpha);
+				game.release(nextBeta);
+				searchers.release(searcher);
+			}
+		}
+	}
+
+	/**
+	 * Whether a bound survives being stored as a record (a bound taken from
+	 * the window rather than from a child may have an impossible remoteness)
+	 */
+	private boolean storesExactly(TierGame game, TierState pos, long val,
+			Record bound) {
+		if (val < 0)
+			return false;
+		Record stored = game.getPoolRecord();
+		game.longToRecord(pos, val, stored);
+		boolean same = stored.compareTo(bound) == 0;
+		game.release(stored);
+		return same;
+	}
+
+	/**
+	 * Whether a table entry can stand in for searching the position with this
+	 * window: always if it is exact, and if it is a bound, only if it would
+	 * cause the same cutoff as the search.
+	 */
+	private boolean useEntry(TierGame game, TierState pos, long entry,
+			Record alpha, Record beta) {
+		int flag = TranspositionTable.flag(entry);
+		if (flag == TranspositionTable.EXACT)
+			return true;
+		Record bound = game.getPoolRecord();
+		game.longToRecord(pos, TranspositionTable.record(entry), bound);
+		boolean use;
+		if (flag == TranspositionTable.LOWER)
+			use = beta.value != Value.UNDECIDED && bound.compareTo(beta) >= 0;
+		else
+			use = alpha.value != Value.UNDECIDED
+					&& bound.compareTo(alpha) <= 0;
+		game.release(bound);
+		return use;
+	}
+
 	// /**
 	// * Solves for the value of the state corresponding to the given index.
 	// *
@@ -478,6 +754,11 @@ public final class TierCutDatabase extends Database {
 			writeHeader(dos);
 			dos.close();
 		}
+		if (table != null)
+			assert Util.debug(DebugFacility.DATABASE, "Transposition table: "
+					+ table);
+		if (searchService != null)
+			searchService.shutdownNow();
 		inner.close();
 	}
 
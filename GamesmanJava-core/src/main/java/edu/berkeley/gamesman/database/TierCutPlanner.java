@@ -0,0 +1,336 @@
+package edu.berkeley.gamesman.database;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.core.Value;
+import edu.berkeley.gamesman.game.TierGame;
+import edu.berkeley.gamesman.game.util.TierState;
+
+/**
+ * Chooses which tiers a {@link TierCutDatabase} should store. Each tier is
+ * sampled (gamesman.planner.samples positions, 1000 by default) to find how
+ * many children its positions have on average (counting primitive positions
+ * as having none) and how long expanding one takes. A read from a missing
+ * tier is modelled as expanding the position and then, recursively, each of
+ * its children until reaching the next stored tier, where each read costs
+ * gamesman.planner.read.micros (20 by default). The model ignores alpha-beta
+ * cutoffs and the transposition table, so it overestimates.<br />
+ * Given a latency target, the planner finds the fewest stored bytes for which
+ * the gamesman.planner.quantile (0.99 by default) quantile of read latency,
+ * over all positions, meets the target. Given a disk budget, it finds the
+ * lowest such latency which fits in the budget. Both are found by dynamic
+ * programming over the next stored tier, since the cost of reading a missing
+ * tier only depends on which tier is stored next.
+ */
+public final class TierCutPlanner {
+	// The quantile allowance is divided into this many units
+	private static final int SLOW_UNITS = 100;
+	private static final long NONE = Long.MAX_VALUE;
+
+	private final TierGame game;
+	private final int numTiers;
+	private final long[] tierHashes;
+	private final long[] tierBytes;
+	private final double[] children;
+	private final double[] expandNanos;
+	private final double readNanos;
+	private final double quantile;
+	private final long totalHashes;
+	// latency[t][s] is the cost of reading tier t when s is the next stored
+	// tier (numTiers if none is)
+	private final double[][] latency;
+
+	/**
+	 * Samples every tier of the game
+	 *
+	 * @param conf
+	 *            The configuration of the game to plan for
+	 */
+	public TierCutPlanner(Configuration conf) {
+		game = (TierGame) conf.getGame();
+		numTiers = game.numberOfTiers();
+		readNanos = conf.getFloat("gamesman.planner.read.micros", 20F) * 1000D;
+		quantile = conf.getFloat("gamesman.planner.quantile", 0.99F);
+		int samples = conf.getInteger("gamesman.planner.samples", 1000);
+		DatabaseLogic logic = new DatabaseLogic(game.recordStates(),
+				conf.getBoolean("gamesman.database.packed", false));
+		tierHashes = new long[numTiers];
+		tierBytes = new long[numTiers];
+		children = new double[numTiers];
+		expandNanos = new double[numTiers];
+		long total = 0L;
+		for (int tier = 0; tier < numTiers; tier++) {
+			tierHashes[tier] = game.numHashesForTier(tier);
+			tierBytes[tier] = logic.getNumBytes(tierHashes[tier]);
+			total += tierHashes[tier];
+		}
+		totalHashes = total;
+		Random r = new Random(0L);
+		// The first pass only warms up the JIT
+		for (int pass = 0; pass < 2; pass++) {
+			for (int tier = 0; tier < numTiers; tier++)
+				sampleTier(tier, pass == 0 ? Math.max(1, samples / 10)
+						: samples, r);
+		}
+		latency = new double[numTiers + 1][numTiers + 1];
+		for (int next = 0; next <= numTiers; next++) {
+			latency[next][next] = next < numTiers ? readNanos : 0D;
+			for (int tier = next - 1; tier >= 0; tier--)
+				latency[tier][next] = expandNanos[tier] + children[tier]
+						* latency[tier + 1][next];
+		}
+	}
+
+	private void sampleTier(int tier, int samples, Random r) {
+		TierState pos = game.newState();
+		TierState[] childStates = game.newStateArray(game.maxChildren());
+		long numChildren = 0L;
+		long offset = game.hashOffsetForTier(tier);
+		samples = (int) Math.min(samples, tierHashes[tier]);
+		long start = System.nanoTime();
+		for (int i = 0; i < samples; i++) {
+			long hash = offset + (long) (r.nextDouble() * tierHashes[tier]);
+			game.hashToState(hash, pos);
+			if (game.primitiveValue(pos) != Value.UNDECIDED)
+				continue;
+			int num = game.validMoves(pos, childStates);
+			for (int c = 0; c < num; c++)
+				game.stateToHash(childStates[c]);
+			numChildren += num;
+		}
+		long time = System.nanoTime() - start;
+		children[tier] = samples == 0 ? 0D : (double) numChildren / samples;
+		expandNanos[tier] = samples == 0 ? 0D : (double) time / samples;
+	}
+
+	/**
+	 * @param storedTiers
+	 *            The tiers to store (in increasing order)
+	 * @return The bytes they take up
+	 */
+	public long storedBytes(int[] storedTiers) {
+		long bytes = 0L;
+		for (int tier : storedTiers)
+			bytes += tierBytes[tier];
+		return bytes;
+	}
+
+	/**
+	 * @param storedTiers
+	 *            The tiers to store (in increasing order)
+	 * @return The modelled latency of a read in each tier, in nanoseconds
+	 */
+	public double[] tierLatencies(int[] storedTiers) {
+		double[] lat = new double[numTiers];
+		int s = storedTiers.length - 1;
+		int next = numTiers;
+		for (int tier = numTiers - 1; tier >= 0; tier--) {
+			if (s >= 0 && storedTiers[s] == tier) {
+				next = tier;
+				s--;
+			}
+			lat[tier] = latency[tier][next];
+		}
+		return lat;
+	}
+
+	/**
+	 * @param storedTiers
+	 *            The tiers to store (in increasing order)
+	 * @return The modelled quantile read latency over all positions, in
+	 *         nanoseconds
+	 */
+	public double quantileLatency(int[] storedTiers) {
+		final double[] lat = tierLatencies(storedTiers);
+		Integer[] order = new Integer[numTiers];
+		for (int tier = 0; tier < numTiers; tier++)
+			order[tier] = tier;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Double.compare(lat[o1], lat[o2]);
+			}
+		});
+		long covered = 0L;
+		for (int tier : order) {
+			covered += tierHashes[tier];
+			if (covered >= quantile * totalHashes)
+				return lat[tier];
+		}
+		return 0D;
+	}
+
+	/**
+	 * @param targetNanos
+	 *            The quantile read latency to meet
+	 * @return The tiers to store which meet it in the fewest bytes (null if
+	 *         no choice meets it)
+	 */
+	public int[] planForLatency(double targetNanos) {
+		if (readNanos > targetNanos)
+			return null;
+		double unit = Math.max(1D, (1D - quantile) * totalHashes / SLOW_UNITS);
+		// best[s][u] is the fewest bytes storing tier s and some tiers after
+		// it so that at most u units of positions after s are slow
+		long[][] best = new long[numTiers + 1][SLOW_UNITS + 1];
+		int[][] nextStored = new int[numTiers + 1][SLOW_UNITS + 1];
+		for (int s = numTiers; s >= -1; s--) {
+			long[] row = s >= 0 ? best[s] : new long[SLOW_UNITS + 1];
+			int[] nextRow = s >= 0 ? nextStored[s] : new int[SLOW_UNITS + 1];
+			if (s == numTiers) {
+				Arrays.fill(row, 0L);
+				continue;
+			}
+			Arrays.fill(row, NONE);
+			for (int next = s + 1; next <= numTiers; next++) {
+				int slow = slowUnits(s, next, targetNanos, unit);
+				for (int u = slow; u <= SLOW_UNITS; u++) {
+					long rest = best[next][u - slow];
+					if (rest < NONE && rest < row[u]) {
+						row[u] = rest;
+						nextRow[u] = next;
+					}
+				}
+			}
+			if (s >= 0) {
+				for (int u = 0; u <= SLOW_UNITS; u++)
+					if (row[u] < NONE)
+						row[u] += tierBytes[s];
+			} else {
+				if (row[SLOW_UNITS] == NONE)
+					return null;
+				ArrayList<Integer> tiers = new ArrayList<Integer>();
+				int u = SLOW_UNITS;
+				int tier = nextRow[u];
+				int prev = -1;
+				while (tier < numTiers) {
+					tiers.add(tier);
+					u -= slowUnits(prev, tier, targetNanos, unit);
+					prev = tier;
+					tier = nextStored[tier][u];
+				}
+				int[] result = new int[tiers.size()];
+				for (int i = 0; i < result.length; i++)
+					result[i] = tiers.get(i);
+				return result;
+			}
+		}
+		throw new Error("Unreachable");
+	}
+
+	private int slowUnits(int stored, int next, double targetNanos,
+			double unit) {
+		long slow = 0L;
+		for (int tier = stored + 1; tier < next; tier++)
+			if (latency[tier][next] > targetNanos)
+				slow += tierHashes[tier];
+		double units = Math.ceil(slow / unit);
+		return units > SLOW_UNITS ? SLOW_UNITS + 1 : (int) units;
+	}
+
+	/**
+	 * @param budget
+	 *            The most bytes to store
+	 * @return The tiers to store which fit in the budget with the lowest
+	 *         quantile read latency
+	 */
+	public int[] planForBytes(long budget) {
+		double[] targets = new double[(numTiers + 1) * (numTiers + 1)];
+		int numTargets = 0;
+		for (double[] row : latency)
+			for (double lat : row)
+				if (lat >= readNanos)
+					targets[numTargets++] = lat;
+		targets[numTargets++] = readNanos;
+		Arrays.sort(targets, 0, numTargets);
+		// The largest target can always be met by storing nothing
+		int lo = 0, hi = numTargets - 1;
+		int[] plan = planForLatency(targets[hi]);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int[] midPlan = planForLatency(targets[mid]);
+			if (midPlan != null && storedBytes(midPlan) <= budget) {
+				hi = mid;
+				plan = midPlan;
+			} else
+				lo = mid + 1;
+		}
+		return plan;
+	}
+
+	/**
+	 * Prints each tier's statistics along with the plan
+	 *
+	 * @param storedTiers
+	 *            The tiers to store
+	 */
+	public void printPlan(int[] storedTiers) {
+		double[] lat = tierLatencies(storedTiers);
+		boolean[] stored = new boolean[numTiers];
+		for (int tier : storedTiers)
+			stored[tier] = true;
+		System.out.println("tier\thashes\tbytes\tchildren\texpand\tstored\tlatency");
+		for (int tier = 0; tier < numTiers; tier++)
+			System.out.printf("%d\t%d\t%d\t%.2f\t%.2fus\t%s\t%.3fms%n", tier,
+					tierHashes[tier], tierBytes[tier], children[tier],
+					expandNanos[tier] / 1000D, stored[tier] ? "yes" : "no",
+					lat[tier] / 1e6);
+		long allBytes = 0L;
+		for (long bytes : tierBytes)
+			allBytes += bytes;
+		System.out.printf("Stored tiers %s: %d of %d bytes, %.3fms at the "
+				+ "%.3f quantile%n", Arrays.toString(storedTiers),
+				storedBytes(storedTiers), allBytes,
+				quantileLatency(storedTiers) / 1e6, quantile);
+	}
+
+	/**
+	 * @param args
+	 *            A job file, "latency" followed by a target in milliseconds
+	 *            or "disk" followed by a budget in bytes (a K, M or G suffix
+	 *            may be used), and optionally a job file to write with
+	 *            gamesman.database.stored.tiers set to the plan
+	 * @throws ClassNotFoundException
+	 *             If the game class can't be found
+	 * @throws IOException
+	 *             If the job files can't be read or written
+	 */
+	public static void main(String[] args) throws ClassNotFoundException,
+			IOException {
+		Configuration conf;
+		try {
+			conf = new Configuration(args[0]);
+		} catch (FileNotFoundException e) {
+			throw new Error(e);
+		}
+		TierCutPlanner planner = new TierCutPlanner(conf);
+		int[] plan;
+		if (args[1].equals("latency"))
+			plan = planner.planForLatency(Double.parseDouble(args[2]) * 1e6);
+		else if (args[1].equals("disk")) {
+			conf.setProperty("gamesman.planner.budget", args[2]);
+			plan = planner.planForBytes(conf.getNumBytes(
+					"gamesman.planner.budget", 0L));
+		} else
+			throw new IllegalArgumentException(args[1]);
+		if (plan == null) {
+			System.out.println("No set of stored tiers meets the target");
+			return;
+		}
+		planner.printPlan(plan);
+		if (args.length > 3) {
+			conf.setProperty("gamesman.database.stored.tiers",
+					Arrays.toString(plan));
+			FileOutputStream out = new FileOutputStream(args[3]);
+			conf.props.store(out, "Stored tiers chosen by TierCutPlanner");
+			out.close();
+		}
+	}
+}
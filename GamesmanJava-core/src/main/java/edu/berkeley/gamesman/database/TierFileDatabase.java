@@ -0,0 +1,469 @@
+package edu.berkeley.gamesman.database;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.database.codec.BlockCodec;
+import edu.berkeley.gamesman.game.TierGame;
+
+/**
+ * A database file divided into one section per tier, with a table of contents
+ * giving each section's records, bytes, position in the file, codec and CRC32
+ * checksum. Opening the file only reads the header and the table of contents,
+ * and a section is mapped (or read and decompressed, if it was stored with a
+ * codec) the first time one of its bytes is read. Mapped sections stay mapped
+ * until the database is closed, since they take no room on the Java heap.
+ * Decompressed sections are only softly referenced, so the garbage collector
+ * releases the ones not in use when memory runs short and they are
+ * decompressed again if they are needed. Checksums are always verified when a
+ * compressed section is loaded, and for mapped sections too if
+ * gamesman.database.tier.verify is true.<br />
+ * Games which aren't TierGames get a single section.<br />
+ * A database opened for writing stores every section uncompressed, in order,
+ * and writes its table of contents straight away. As each tier is finished,
+ * the sections holding it are checksummed and marked finished in the table
+ * of contents, so the file of a solve which was killed can still be opened;
+ * sections which weren't finished are never verified. Closing it finishes
+ * every section. Use pack (or main) to copy any database into this format
+ * with its sections compressed.<br />
+ * The file is the standard header, the position of the table of contents,
+ * the sections, and then the table of contents.
+ */
+public class TierFileDatabase extends Database {
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	private static final int SEGMENT_MASK = (int) (SEGMENT_SIZE - 1);
+	private static final int COPY_BUFFER = 1 << 16;
+
+	private static final class Section {
+		private final long firstRecord, numRecords;
+		private final long firstByteIndex, numBytes;
+		private long offset, storedBytes;
+		private String codec;
+		private long checksum;
+		// Whether the checksum has been taken
+		private boolean finished;
+		// Guarded by the section
+		private ByteBuffer[] mapped;
+		private SoftReference<ByteBuffer[]> decompressed;
+
+		private Section(long firstRecord, long numRecords,
+				long firstByteIndex, long numBytes) {
+			this.firstRecord = firstRecord;
+			this.numRecords = numRecords;
+			this.firstByteIndex = firstByteIndex;
+			this.numBytes = numBytes;
+		}
+
+		private boolean contains(long byteIndex) {
+			return byteIndex >= firstByteIndex
+					&& byteIndex < firstByteIndex + numBytes;
+		}
+	}
+
+	private static final class TierHandle extends DatabaseHandle {
+		private Section section;
+		private ByteBuffer[] views;
+
+		private TierHandle(int numBytes, boolean reading) {
+			super(numBytes, reading);
+		}
+	}
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final Section[] sections;
+	private final long[] sectionStarts;
+	private final long headerLen;
+	private final long dataStart;
+	private final boolean verify;
+	private final BitSet finishedTiers = new BitSet();
+
+	/**
+	 * @param uri
+	 *            The file to open
+	 * @param conf
+	 *            The configuration object
+	 * @param firstRecordIndex
+	 *            The index of the first record contained in this database
+	 * @param numRecords
+	 *            The number of records contained in this database
+	 * @param reading
+	 *            Whether reading from this database
+	 * @param writing
+	 *            Whether writing to this database (if true, a new file is laid
+	 *            out with every section uncompressed)
+	 * @throws IOException
+	 *             If an IOException occurs while opening the file
+	 */
+	public TierFileDatabase(String uri, Configuration conf,
+			long firstRecordIndex, long numRecords, boolean reading,
+			boolean writing) throws IOException {
+		super(conf, firstRecordIndex, numRecords, reading, writing);
+		verify = conf.getBoolean("gamesman.database.tier.verify", false);
+		raf = new RandomAccessFile(uri, writing ? "rw" : "r");
+		channel = raf.getChannel();
+		if (writing) {
+			headerLen = writeHeader(raf);
+			raf.writeLong(0L);
+			dataStart = headerLen + 8;
+			sections = layOut(this);
+			for (Section s : sections) {
+				s.offset = dataStart + s.firstByteIndex - firstByteIndex();
+				s.storedBytes = s.numBytes;
+				s.codec = "";
+			}
+			raf.setLength(dataStart + numBytes());
+			writeToc(raf, dataStart + numBytes(), headerLen, sections);
+		} else {
+			headerLen = skipHeader(raf);
+			dataStart = headerLen + 8;
+			raf.seek(raf.readLong());
+			sections = new Section[raf.readInt()];
+			for (int i = 0; i < sections.length; i++) {
+				sections[i] = new Section(raf.readLong(), raf.readLong(),
+						raf.readLong(), raf.readLong());
+				sections[i].offset = raf.readLong();
+				sections[i].storedBytes = raf.readLong();
+				sections[i].codec = raf.readUTF();
+				sections[i].checksum = raf.readLong();
+				sections[i].finished = raf.readBoolean();
+			}
+		}
+		sectionStarts = new long[sections.length];
+		for (int i = 0; i < sections.length; i++)
+			sectionStarts[i] = sections[i].firstByteIndex;
+	}
+
+	private static Section[] layOut(Database db) {
+		long[] starts = db.tierByteStarts();
+		long lastByte = db.firstByteIndex() + db.numBytes();
+		long lastRecord = db.firstRecordIndex + db.numRecords;
+		Section[] sections = new Section[starts.length];
+		for (int i = 0; i < starts.length; i++) {
+			long end = i + 1 < starts.length ? starts[i + 1] : lastByte;
+			long first = Math.max(db.firstRecordIndex,
+					db.myLogic.getNumRecords(starts[i]));
+			long last = i + 1 < starts.length ? Math.min(lastRecord,
+					db.myLogic.getNumRecords(end)) : lastRecord;
+			sections[i] = new Section(first, last - first, starts[i], end
+					- starts[i]);
+		}
+		return sections;
+	}
+
+	@Override
+	public DatabaseHandle getHandle(boolean reading) {
+		assert reading ? this.reading : this.writing;
+		return new TierHandle(myLogic.recordBytes, reading);
+	}
+
+	@Override
+	protected int readBytes(DatabaseHandle dh, long location, byte[] array,
+			int off, int len) throws IOException {
+		if (writing)
+			return channel.read(ByteBuffer.wrap(array, off, len), dataStart
+					+ location - firstByteIndex());
+		TierHandle th = dh instanceof TierHandle ? (TierHandle) dh : null;
+		Section s;
+		ByteBuffer[] views;
+		if (th != null && th.section != null && th.section.contains(location)) {
+			s = th.section;
+			views = th.views;
+		} else {
+			int i = Arrays.binarySearch(sectionStarts, location);
+			if (i < 0)
+				i = -i - 2;
+			s = sections[i];
+			ByteBuffer[] loaded = load(i);
+			views = new ByteBuffer[loaded.length];
+			for (int seg = 0; seg < views.length; seg++)
+				views[seg] = loaded[seg].duplicate();
+			if (th != null) {
+				// The handle keeps the section from being released while used
+				th.section = s;
+				th.views = views;
+			}
+		}
+		long pos = location - s.firstByteIndex;
+		ByteBuffer view = views[(int) (pos >>> SEGMENT_SHIFT)];
+		int segOff = (int) (pos & SEGMENT_MASK);
+		len = Math.min(len, view.capacity() - segOff);
+		view.position(segOff);
+		view.get(array, off, len);
+		return len;
+	}
+
+	@Override
+	protected int writeBytes(DatabaseHandle dh, long location, byte[] array,
+			int off, int len) throws IOException {
+		return channel.write(ByteBuffer.wrap(array, off, len), dataStart
+				+ location - firstByteIndex());
+	}
+
+	private ByteBuffer[] load(int sectionNum) throws IOException {
+		Section s = sections[sectionNum];
+		synchronized (s) {
+			if (s.mapped != null)
+				return s.mapped;
+			ByteBuffer[] segments = s.decompressed == null ? null
+					: s.decompressed.get();
+			if (segments != null)
+				return segments;
+			if (s.codec.length() == 0) {
+				int numSegments = (int) ((s.numBytes + SEGMENT_SIZE - 1) >> SEGMENT_SHIFT);
+				segments = new ByteBuffer[numSegments];
+				for (int i = 0; i < numSegments; i++) {
+					long segStart = (long) i << SEGMENT_SHIFT;
+					segments[i] = channel.map(MapMode.READ_ONLY, s.offset
+							+ segStart, Math.min(SEGMENT_SIZE, s.numBytes
+							- segStart));
+				}
+				if (verify && s.finished)
+					checkSection(sectionNum, segments);
+				s.mapped = segments;
+			} else {
+				byte[] stored = new byte[(int) s.storedBytes];
+				readFully(stored, s.offset, stored.length);
+				byte[] bytes = new byte[(int) s.numBytes];
+				BlockCodec codec = GZippedDatabase.makeCodec(conf, s.codec);
+				codec.decompress(stored, 0, stored.length, bytes, 0,
+						bytes.length);
+				segments = new ByteBuffer[] { ByteBuffer.wrap(bytes) };
+				checkSection(sectionNum, segments);
+				s.decompressed = new SoftReference<ByteBuffer[]>(segments);
+			}
+			return segments;
+		}
+	}
+
+	private void checkSection(int sectionNum, ByteBuffer[] segments)
+			throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[COPY_BUFFER];
+		for (ByteBuffer segment : segments) {
+			ByteBuffer view = segment.duplicate();
+			view.clear();
+			while (view.hasRemaining()) {
+				int len = Math.min(buffer.length, view.remaining());
+				view.get(buffer, 0, len);
+				crc.update(buffer, 0, len);
+			}
+		}
+		if (crc.getValue() != sections[sectionNum].checksum)
+			throw new IOException("Checksum mismatch in section "
+					+ sectionNum);
+	}
+
+	/**
+	 * @return The number of sections (one per tier for a TierGame)
+	 */
+	public int numSections() {
+		return sections.length;
+	}
+
+	/**
+	 * @param section
+	 *            A section number
+	 * @return Whether that section is currently loaded
+	 */
+	public boolean isLoaded(int section) {
+		Section s = sections[section];
+		synchronized (s) {
+			return s.mapped != null
+					|| (s.decompressed != null && s.decompressed.get() != null);
+		}
+	}
+
+	/**
+	 * @param section
+	 *            A section number
+	 * @return Whether that section was finished (and so checksummed) when it
+	 *         was written
+	 */
+	public boolean isFinished(int section) {
+		return sections[section].finished;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (writing)
+			channel.force(false);
+	}
+
+	/**
+	 * Checksums every section which holds only finished tiers and records it
+	 * in the table of contents
+	 */
+	@Override
+	public synchronized void tierFinished(int tier) throws IOException {
+		if (!writing || !(conf.getGame() instanceof TierGame))
+			return;
+		TierGame game = (TierGame) conf.getGame();
+		finishedTiers.set(tier);
+		boolean changed = false;
+		for (Section s : sections) {
+			if (s.finished || s.numRecords == 0)
+				continue;
+			int firstTier = game.hashToTier(s.firstRecord);
+			int lastTier = game.hashToTier(s.firstRecord + s.numRecords - 1);
+			if (finishedTiers.nextClearBit(firstTier) > lastTier) {
+				finish(s);
+				changed = true;
+			}
+		}
+		if (changed) {
+			channel.force(false);
+			writeToc(raf, dataStart + numBytes(), headerLen, sections);
+			raf.getFD().sync();
+		}
+	}
+
+	private void finish(Section s) throws IOException {
+		byte[] buffer = new byte[COPY_BUFFER];
+		CRC32 crc = new CRC32();
+		for (long pos = 0; pos < s.numBytes; pos += buffer.length) {
+			int len = (int) Math.min(buffer.length, s.numBytes - pos);
+			readFully(buffer, s.offset + pos, len);
+			crc.update(buffer, 0, len);
+		}
+		s.checksum = crc.getValue();
+		s.finished = true;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (writing) {
+			// Tiers may have been written again since they were finished
+			for (Section s : sections)
+				finish(s);
+			long tocOffset = dataStart + numBytes();
+			writeToc(raf, tocOffset, headerLen, sections);
+		}
+		channel.close();
+		raf.close();
+	}
+
+	private void readFully(byte[] array, long position, int len)
+			throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(array, 0, len);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, position + buf.position()) < 0)
+				throw new EOFException();
+		}
+	}
+
+	private static void writeToc(RandomAccessFile raf, long tocOffset,
+			long headerLen, Section[] sections) throws IOException {
+		raf.seek(tocOffset);
+		raf.writeInt(sections.length);
+		for (Section s : sections) {
+			raf.writeLong(s.firstRecord);
+			raf.writeLong(s.numRecords);
+			raf.writeLong(s.firstByteIndex);
+			raf.writeLong(s.numBytes);
+			raf.writeLong(s.offset);
+			raf.writeLong(s.storedBytes);
+			raf.writeUTF(s.codec);
+			raf.writeLong(s.checksum);
+			raf.writeBoolean(s.finished);
+		}
+		raf.setLength(raf.getFilePointer());
+		raf.seek(headerLen);
+		raf.writeLong(tocOffset);
+	}
+
+	/**
+	 * Copies a database into a new TierFileDatabase, compressing each section
+	 * with the given codec. Sections of 2GB or more, and sections which don't
+	 * get any smaller, are stored uncompressed.
+	 *
+	 * @param readFrom
+	 *            The database to copy
+	 * @param uri
+	 *            The file to write
+	 * @param codecName
+	 *            The BlockCodec to compress sections with (null to store
+	 *            them all uncompressed)
+	 * @throws IOException
+	 *             If an IOException occurs while copying
+	 */
+	public static void pack(Database readFrom, String uri, String codecName)
+			throws IOException {
+		Configuration conf = readFrom.conf.cloneAll();
+		conf.setProperty("gamesman.database", TierFileDatabase.class.getName());
+		conf.deleteProperty("gamesman.database.writing.wrapper");
+		BlockCodec codec = codecName == null ? null : GZippedDatabase
+				.makeCodec(conf, codecName);
+		RandomAccessFile raf = new RandomAccessFile(uri, "rw");
+		raf.setLength(0L);
+		raf.writeLong(readFrom.firstRecordIndex);
+		raf.writeLong(readFrom.numRecords);
+		long headerLen = 16 + conf.store(raf);
+		raf.writeLong(0L);
+		Section[] sections = layOut(readFrom);
+		DatabaseHandle dh = readFrom.getHandle(true);
+		byte[] buffer = new byte[COPY_BUFFER];
+		for (Section s : sections) {
+			s.offset = raf.getFilePointer();
+			CRC32 crc = new CRC32();
+			readFrom.prepareReadRange(dh, s.firstByteIndex, s.numBytes);
+			byte[] zipped = null;
+			if (codec != null && s.numBytes < Integer.MAX_VALUE) {
+				byte[] bytes = new byte[(int) s.numBytes];
+				readFrom.readFullBytes(dh, bytes, 0, bytes.length);
+				crc.update(bytes);
+				zipped = codec.compress(bytes, 0, bytes.length);
+				if (zipped.length < bytes.length)
+					raf.write(zipped);
+				else {
+					raf.write(bytes);
+					zipped = null;
+				}
+			} else {
+				for (long pos = 0; pos < s.numBytes; pos += buffer.length) {
+					int len = (int) Math.min(buffer.length, s.numBytes - pos);
+					readFrom.readFullBytes(dh, buffer, 0, len);
+					crc.update(buffer, 0, len);
+					raf.write(buffer, 0, len);
+				}
+			}
+			s.storedBytes = zipped == null ? s.numBytes : zipped.length;
+			s.codec = zipped == null ? "" : codecName;
+			s.checksum = crc.getValue();
+			s.finished = true;
+		}
+		writeToc(raf, raf.getFilePointer(), headerLen, sections);
+		raf.close();
+	}
+
+	/**
+	 * @param args
+	 *            The database to copy, the file to copy it to and optionally
+	 *            the codec to compress sections with (DeflateCodec by default,
+	 *            "none" to store them uncompressed)
+	 * @throws IOException
+	 *             If an IOException occurs while copying
+	 * @throws ClassNotFoundException
+	 *             If the database class can't be found
+	 */
+	public static void main(String[] args) throws IOException,
+			ClassNotFoundException {
+		Database readFrom = Database.openDatabase(args[0]);
+		String codec = args.length > 2 ? args[2] : "DeflateCodec";
+		long start = System.currentTimeMillis();
+		pack(readFrom, args[1], codec.equals("none") ? null : codec);
+		readFrom.close();
+		System.out.println("Packed in " + (System.currentTimeMillis() - start)
+				+ "ms");
+	}
+}
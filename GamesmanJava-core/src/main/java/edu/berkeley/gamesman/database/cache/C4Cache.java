@@ -11,7 +11,7 @@ import edu.berkeley.gamesman.game.util.TierState;
 public class C4Cache extends TierCache {
 	private final RecordRangeCache[] ranges;
 	private final Connect4 game;
-	private final int memPerChild;
+	private int memPerChild;
 	private final DatabaseHandle dh;
 
 	public C4Cache(Connect4 g, Database db, long availableMemory) {
@@ -24,10 +24,18 @@ public class C4Cache extends TierCache {
 		ranges = new RecordRangeCache[width];
 		for (int i = 0; i < width; i++) {
 			ranges[i] = new RecordRangeCache(db);
-			ranges[i].ensureByteCapacity(memPerChild, false);
+			ranges[i].fitByteCapacity(memPerChild);
 		}
 	}
 
+	@Override
+	protected void memoryChanged() {
+		memPerChild = (int) Math.min(Integer.MAX_VALUE, availableMemory
+				/ ranges.length);
+		for (RecordRangeCache range : ranges)
+			range.fitByteCapacity(memPerChild);
+	}
+
 	@Override
 	public void fetchChildren(TierState position, int numChildren,
 			TierState[] children, int[] hints, Record[] values) {
@@ -45,7 +53,9 @@ public class C4Cache extends TierCache {
 		long childHash = game.stateToHash(child);
 		if (ranges[place].containsRecord(childHash))
 			return childHash;
-		long addHash = Math.min(db.recordsForBytes(memPerChild) * 2,
+		long start = System.nanoTime();
+		int capacity = ranges[place].fitByteCapacity(memPerChild);
+		long addHash = Math.min(db.recordsForBytes(capacity) * 2,
 				game.numHashesForTier(currentPosition.tier)
 						- currentPosition.hash);
 		long lastChild;
@@ -58,18 +68,29 @@ public class C4Cache extends TierCache {
 			game.lastMoves(lastChildren);
 			lastChild = lastChildren[place].hash;
 			addHash /= 2;
-		} while (db.getNumBytes(lastChild - child.hash) > memPerChild);
+		} while (db.myLogic.getNumBytes(childHash, lastChild - child.hash + 1)
+				> capacity);
 		game.setState(currentPosition);
 		long tierOffset = game.hashOffsetForTier(child.tier);
 		long endChildHash = tierOffset + lastChild + 1;
 		int numRecords = (int) (endChildHash - childHash);
 		ranges[place].setRange(childHash, numRecords);
 		try {
-			ranges[place]
-					.readRecordsFromDatabase(db, dh, childHash, numRecords);
+			readRange(ranges[place], dh, childHash, numRecords);
 		} catch (IOException e) {
 			throw new Error(e);
 		}
+		missed(System.nanoTime() - start);
 		return childHash;
 	}
+
+	/**
+	 * @return The number of bytes held by this cache's ranges
+	 */
+	long getByteCapacity() {
+		long capacity = 0L;
+		for (RecordRangeCache range : ranges)
+			capacity += range.getByteCapacity();
+		return capacity;
+	}
 }
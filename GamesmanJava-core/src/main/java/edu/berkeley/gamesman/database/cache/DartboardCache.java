@@ -13,7 +13,7 @@ public class DartboardCache extends TierCache {
 	private final RecordRangeCache[] ranges;
 	private final TierGame game;
 	private final DartboardHasher hasher;
-	private final int memPerChild;
+	private int memPerChild;
 	private final DatabaseHandle dh;
 	private char old, replace;
 
@@ -29,7 +29,7 @@ public class DartboardCache extends TierCache {
 		ranges = new RecordRangeCache[boardSize];
 		for (int i = 0; i < boardSize; i++) {
 			ranges[i] = new RecordRangeCache(db);
-			ranges[i].ensureByteCapacity(memPerChild, false);
+			ranges[i].fitByteCapacity(memPerChild);
 		}
 	}
 
@@ -38,6 +38,14 @@ public class DartboardCache extends TierCache {
 		this.replace = replace;
 	}
 
+	@Override
+	protected void memoryChanged() {
+		memPerChild = (int) Math.min(Integer.MAX_VALUE, availableMemory
+				/ ranges.length);
+		for (RecordRangeCache range : ranges)
+			range.fitByteCapacity(memPerChild);
+	}
+
 	@Override
 	public void fetchChildren(TierState position, int numChildren,
 			TierState[] children, int[] hints, Record[] values) {
@@ -55,25 +63,28 @@ public class DartboardCache extends TierCache {
 		long childHash = game.stateToHash(child);
 		if (ranges[place].containsRecord(childHash))
 			return childHash;
-		long addHash = Math.min(db.recordsForBytes(memPerChild) * 2,
+		long start = System.nanoTime();
+		int capacity = ranges[place].fitByteCapacity(memPerChild);
+		long addHash = Math.min(db.recordsForBytes(capacity) * 2,
 				hasher.numHashes() - currentPosition.hash);
 		long lastChild;
 		do {
 			hasher.unhash(currentPosition.hash + addHash - 1);
 			lastChild = hasher.previousChild(old, replace, place);
 			addHash /= 2;
-		} while (db.getNumBytes(lastChild - child.hash + 1) > memPerChild);
+		} while (db.myLogic.getNumBytes(childHash, lastChild - child.hash + 1)
+				> capacity);
 		hasher.unhash(currentPosition.hash);
 		long tierOffset = game.hashOffsetForTier(child.tier);
 		long endChildHash = tierOffset + lastChild + 1;
 		int numRecords = (int) (endChildHash - childHash);
 		ranges[place].setRange(childHash, numRecords);
 		try {
-			ranges[place]
-					.readRecordsFromDatabase(db, dh, childHash, numRecords);
+			readRange(ranges[place], dh, childHash, numRecords);
 		} catch (IOException e) {
 			throw new Error(e);
 		}
+		missed(System.nanoTime() - start);
 		return childHash;
 	}
 }
@@ -117,7 +117,7 @@ public class QuartoCache extends TierCache {
 				+ minorRecordIndex;
 		cache.setRange(firstRecordIndex, numRecords);
 		try {
-			cache.readRecordsFromDatabase(db, dh, firstRecordIndex, numRecords);
+			readRange(cache, dh, firstRecordIndex, numRecords);
 		} catch (IOException e) {
 			throw new Error(e);
 		}
@@ -133,7 +133,7 @@ public class QuartoCache extends TierCache {
 		int numRecords = (int) (numMajorPlaces * nextTierNumHashes);
 		cache.setRange(firstRecordIndex, numRecords);
 		try {
-			cache.readRecordsFromDatabase(db, dh, firstRecordIndex, numRecords);
+			readRange(cache, dh, firstRecordIndex, numRecords);
 		} catch (IOException e) {
 			throw new Error(e);
 		}
@@ -28,14 +28,18 @@ public class RecordRangeCache {
 
 	public void setRange(long firstRecordIndex, int numRecords) {
 		this.firstRecordIndex = firstRecordIndex;
-		ensureCapacity(numRecords, false);
+		int numBytes = (int) myLogic.getNumBytes(firstRecordIndex, numRecords);
+		ensureByteCapacity(numBytes, false);
 		this.numRecords = numRecords;
 		firstByteIndex = myLogic.getByteIndex(firstRecordIndex);
-		numBytes = (int) myLogic.getNumBytes(numRecords);
+		this.numBytes = numBytes;
 	}
 
 	public void ensureCapacity(int numRecords, boolean saveCurrent) {
-		ensureByteCapacity((int) myLogic.getNumBytes(numRecords), saveCurrent);
+		long numBytes = myLogic.getNumBytes(numRecords);
+		if (myLogic.packed)
+			numBytes += myLogic.recordBytes;
+		ensureByteCapacity((int) numBytes, saveCurrent);
 	}
 
 	public void ensureByteCapacity(int numBytes, boolean saveCurrent) {
@@ -61,6 +65,35 @@ public class RecordRangeCache {
 		}
 	}
 
+	/**
+	 * Matches the array holding the records to a budget of numBytes bytes,
+	 * discarding whatever it holds if it has to be replaced. It is replaced
+	 * when it is larger than the budget, or smaller by more than an eighth of
+	 * it, so a budget which changes a little doesn't reallocate.
+	 * 
+	 * @param numBytes
+	 *            The number of bytes the cache may use from now on
+	 * @return The number of bytes the cache can now hold, which is never more
+	 *         than numBytes. Ranges no larger than this won't reallocate.
+	 */
+	public int fitByteCapacity(int numBytes) {
+		if (recordBytes.length > numBytes
+				|| recordBytes.length < numBytes - numBytes / 8) {
+			recordBytes = null;
+			recordBytes = new byte[numBytes];
+			this.numRecords = 0;
+			this.numBytes = 0;
+		}
+		return recordBytes.length;
+	}
+
+	/**
+	 * @return The number of bytes the cache can hold without reallocating
+	 */
+	public int getByteCapacity() {
+		return recordBytes.length;
+	}
+
 	public int readBytes(long location, byte[] array, int off, int len) {
 		System.arraycopy(recordBytes, (int) (location - firstByteIndex), array,
 				off, len);
@@ -75,20 +108,40 @@ public class RecordRangeCache {
 
 	public long readRecord(long recordIndex) {
 		assert recordIndex < firstRecordIndex + numRecords;
-		return readRecordFromByteIndex(myLogic.getByteIndex(recordIndex));
+		return myLogic.getRecord(recordBytes,
+				(int) (myLogic.getByteIndex(recordIndex) - firstByteIndex),
+				recordIndex);
 	}
 
+	/**
+	 * @param byteIndex
+	 *            The byte index of an unpacked record (a packed record's
+	 *            place in its group isn't given by its byte index, so
+	 *            readRecord must be used instead)
+	 * @return The record
+	 */
 	public long readRecordFromByteIndex(long byteIndex) {
+		assert !myLogic.packed;
 		assert ((byteIndex - firstByteIndex) & ~(long) Integer.MAX_VALUE) == 0;
 		return myLogic.getRecord(recordBytes,
 				(int) (byteIndex - firstByteIndex));
 	}
 
 	public void writeRecord(long recordIndex, long record) {
-		writeRecordFromByteIndex(myLogic.getByteIndex(recordIndex), record);
+		myLogic.fillBytes(record, recordBytes,
+				(int) (myLogic.getByteIndex(recordIndex) - firstByteIndex),
+				recordIndex);
 	}
 
+	/**
+	 * @param byteIndex
+	 *            The byte index of an unpacked record (use writeRecord for
+	 *            packed records)
+	 * @param record
+	 *            The record to store
+	 */
 	public void writeRecordFromByteIndex(long byteIndex, long record) {
+		assert !myLogic.packed;
 		myLogic.fillBytes(record, recordBytes,
 				(int) (byteIndex - firstByteIndex));
 	}
@@ -106,7 +159,32 @@ public class RecordRangeCache {
 		Util.debug(DebugFacility.CACHE, "Reading records " + recordIndex + "-"
 				+ (recordIndex + numRecords - 1) + " from database");
 		readBytesFromDatabase(db, dh, myLogic.getByteIndex(recordIndex),
-				(int) myLogic.getNumBytes(numRecords));
+				(int) myLogic.getNumBytes(recordIndex, numRecords));
+	}
+
+	/**
+	 * Reads records into this cache through a cache shared with other
+	 * threads rather than from the database directly
+	 * 
+	 * @param pages
+	 *            The shared cache
+	 * @param dh
+	 *            A handle for reading the database should a page have to be
+	 *            read
+	 * @param recordIndex
+	 *            The first record to read
+	 * @param numRecords
+	 *            The number of records to read
+	 * @throws IOException
+	 *             If a page can't be read
+	 */
+	public void readRecordsFromCache(SharedPageCache pages,
+			DatabaseHandle dh, long recordIndex, int numRecords)
+			throws IOException {
+		long byteIndex = myLogic.getByteIndex(recordIndex);
+		pages.read(dh, byteIndex, recordBytes,
+				(int) (byteIndex - firstByteIndex),
+				(int) myLogic.getNumBytes(recordIndex, numRecords));
 	}
 
 	public void readBytesFromDatabase(Database db, DatabaseHandle dh,
@@ -130,15 +208,16 @@ public class RecordRangeCache {
 	public void readNextRecordsFromDatabase(Database db, DatabaseHandle dh,
 			long recordIndex, int numRecords) throws IOException {
 		readNextBytesFromDatabase(db, dh, myLogic.getByteIndex(recordIndex),
-				(int) myLogic.getNumBytes(numRecords));
+				(int) myLogic.getNumBytes(recordIndex, numRecords));
 	}
 
 	public void writeRecordsToDatabase(Database db, DatabaseHandle dh,
 			long recordIndex, int numRecords) throws IOException {
 		assert Util.debug(DebugFacility.CACHE, "Writing records " + recordIndex
 				+ "-" + (recordIndex + numRecords - 1) + " to database");
+		mergeBoundaryGroups(db, dh, recordIndex, numRecords);
 		writeBytesToDatabase(db, dh, myLogic.getByteIndex(recordIndex),
-				(int) myLogic.getNumBytes(numRecords));
+				(int) myLogic.getNumBytes(recordIndex, numRecords));
 	}
 
 	public void writeBytesToDatabase(Database db, DatabaseHandle dh,
@@ -174,7 +253,28 @@ public class RecordRangeCache {
 
 	public void writeNextRecordsToDatabase(Database db, DatabaseHandle dh,
 			long recordIndex, int numRecords) throws IOException {
+		mergeBoundaryGroups(db, dh, recordIndex, numRecords);
 		writeNextBytesToDatabase(db, dh, myLogic.getByteIndex(recordIndex),
-				(int) myLogic.getNumBytes(numRecords));
+				(int) myLogic.getNumBytes(recordIndex, numRecords));
+	}
+
+	/*
+	 * When records are packed, the first and last groups of a range may also
+	 * hold records outside it. Those are filled in from the database before
+	 * the groups are written back.
+	 */
+	private void mergeBoundaryGroups(Database db, DatabaseHandle dh,
+			long recordIndex, int numRecords) throws IOException {
+		if (!myLogic.packed || numRecords == 0)
+			return;
+		long lastRecordIndex = recordIndex + numRecords - 1;
+		db.mergeGroup(dh, recordIndex, recordBytes,
+				(int) (myLogic.getByteIndex(recordIndex) - firstByteIndex),
+				recordIndex, numRecords);
+		if (myLogic.groupStart(lastRecordIndex) != myLogic
+				.groupStart(recordIndex))
+			db.mergeGroup(dh, lastRecordIndex, recordBytes,
+					(int) (myLogic.getByteIndex(lastRecordIndex) - firstByteIndex),
+					recordIndex, numRecords);
 	}
 }
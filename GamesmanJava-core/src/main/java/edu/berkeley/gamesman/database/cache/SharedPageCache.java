@@ -0,0 +1,303 @@
+package edu.berkeley.gamesman.database.cache;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.berkeley.gamesman.database.Database;
+import edu.berkeley.gamesman.database.DatabaseHandle;
+
+/**
+ * A cache of a database's bytes shared by every thread of a solve, so that
+ * threads reading nearby records read each page from the database only once.
+ * The database is divided into fixed-size pages which are kept in one of
+ * several stripes according to their index, each with its own lock, so that
+ * threads using different pages rarely wait on each other.<br />
+ * A page is pinned while bytes are copied out of it and can't be evicted
+ * until every thread holding it has let go. When the cache is full, pages are
+ * evicted by a clock which runs over every page in the order they were read:
+ * a page used since the clock last passed it is given another turn. If every
+ * page is pinned the cache briefly holds more than it was given.<br />
+ * Records which are written after their page is read must be invalidated or
+ * later reads will see the old bytes.
+ */
+public final class SharedPageCache {
+	private static final int NUM_STRIPES = 64;
+
+	private final Database db;
+	private final int pageBytes;
+	private final long firstByteIndex, endByteIndex;
+	private final long capacity;
+	private final Stripe[] stripes = new Stripe[NUM_STRIPES];
+	// Every page which holds memory, in the order the clock passes them
+	private final ArrayDeque<Page> clock = new ArrayDeque<Page>();
+	// Guards clock and usedBytes
+	private final Object evictionLock = new Object();
+	private long usedBytes = 0L;
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+	private static final class Stripe {
+		private final HashMap<Long, Page> pages = new HashMap<Long, Page>();
+	}
+
+	static final class Page {
+		private final long index;
+		private byte[] bytes;
+		// The rest are guarded by the page's stripe
+		private int pins = 0;
+		private boolean referenced = true;
+		private boolean invalid = false;
+		// Guarded by the page itself
+		private boolean loaded = false;
+		private boolean failed = false;
+
+		private Page(long index) {
+			this.index = index;
+		}
+	}
+
+	/**
+	 * @param db
+	 *            The database whose bytes are cached
+	 * @param capacity
+	 *            The number of bytes to hold
+	 * @param pageBytes
+	 *            The number of bytes in each page
+	 */
+	public SharedPageCache(Database db, long capacity, int pageBytes) {
+		this.db = db;
+		this.capacity = capacity;
+		this.pageBytes = pageBytes;
+		firstByteIndex = db.myLogic.getByteIndex(db.firstRecordIndex);
+		endByteIndex = firstByteIndex
+				+ db.myLogic.getNumBytes(db.firstRecordIndex, db.numRecords);
+		for (int i = 0; i < NUM_STRIPES; i++)
+			stripes[i] = new Stripe();
+	}
+
+	private Stripe stripe(long pageIndex) {
+		return stripes[(int) (pageIndex ^ (pageIndex >>> 32))
+				& (NUM_STRIPES - 1)];
+	}
+
+	private long pageStart(long pageIndex) {
+		return firstByteIndex + pageIndex * pageBytes;
+	}
+
+	private int pageLength(long pageIndex) {
+		return (int) Math.min(pageBytes, endByteIndex - pageStart(pageIndex));
+	}
+
+	/**
+	 * Copies a range of the database's bytes, reading any pages which aren't
+	 * held
+	 *
+	 * @param dh
+	 *            A handle for reading the database which belongs to the
+	 *            calling thread
+	 * @param byteIndex
+	 *            The first byte to copy
+	 * @param array
+	 *            The array to copy to
+	 * @param off
+	 *            Where in the array to start
+	 * @param len
+	 *            The number of bytes to copy
+	 * @throws IOException
+	 *             If a page can't be read
+	 */
+	public void read(DatabaseHandle dh, long byteIndex, byte[] array, int off,
+			int len) throws IOException {
+		while (len > 0) {
+			long pageIndex = (byteIndex - firstByteIndex) / pageBytes;
+			int pageOff = (int) (byteIndex - pageStart(pageIndex));
+			int num = Math.min(len, pageLength(pageIndex) - pageOff);
+			Page page = acquire(dh, pageIndex);
+			try {
+				System.arraycopy(page.bytes, pageOff, array, off, num);
+			} finally {
+				release(page);
+			}
+			byteIndex += num;
+			off += num;
+			len -= num;
+		}
+	}
+
+	/**
+	 * Pins a page, reading it first if it isn't held
+	 */
+	Page acquire(DatabaseHandle dh, long pageIndex) throws IOException {
+		Stripe s = stripe(pageIndex);
+		Page page;
+		boolean load = false;
+		synchronized (s) {
+			page = s.pages.get(pageIndex);
+			if (page == null) {
+				page = new Page(pageIndex);
+				s.pages.put(pageIndex, page);
+				load = true;
+			}
+			page.pins++;
+			page.referenced = true;
+		}
+		if (load) {
+			misses.incrementAndGet();
+			boolean loaded = false;
+			try {
+				load(dh, page);
+				loaded = true;
+			} finally {
+				// Otherwise the page could never be evicted
+				if (!loaded)
+					release(page);
+			}
+		} else {
+			hits.incrementAndGet();
+			synchronized (page) {
+				while (!page.loaded) {
+					try {
+						page.wait();
+					} catch (InterruptedException e) {
+						throw new Error(e);
+					}
+				}
+			}
+		}
+		if (page.failed) {
+			release(page);
+			throw new IOException("Page " + pageIndex + " couldn't be read");
+		}
+		return page;
+	}
+
+	private void load(DatabaseHandle dh, Page page) throws IOException {
+		int len = pageLength(page.index);
+		byte[] bytes = allocate(len);
+		boolean read = false;
+		try {
+			db.prepareReadRange(dh, pageStart(page.index), len);
+			db.readFullBytes(dh, bytes, 0, len);
+			read = true;
+		} finally {
+			synchronized (page) {
+				page.bytes = bytes;
+				page.failed = !read;
+				page.loaded = true;
+				page.notifyAll();
+			}
+			if (!read)
+				invalidate(page);
+			synchronized (evictionLock) {
+				clock.add(page);
+			}
+		}
+	}
+
+	/**
+	 * Makes room for a page, reusing the memory of one evicted page if it is
+	 * the right size
+	 */
+	private byte[] allocate(int len) {
+		byte[] reuse = null;
+		synchronized (evictionLock) {
+			int turns = clock.size() * 2;
+			while (usedBytes + len > capacity && turns-- > 0) {
+				Page victim = clock.poll();
+				if (!evict(victim)) {
+					clock.add(victim);
+					continue;
+				}
+				usedBytes -= victim.bytes.length;
+				if (reuse == null && victim.bytes.length == len)
+					reuse = victim.bytes;
+			}
+			usedBytes += len;
+		}
+		return reuse == null ? new byte[len] : reuse;
+	}
+
+	/**
+	 * Removes a page unless it is pinned or gets another turn. The caller
+	 * must hold evictionLock.
+	 */
+	private boolean evict(Page page) {
+		Stripe s = stripe(page.index);
+		synchronized (s) {
+			if (page.pins > 0)
+				return false;
+			if (page.referenced && !page.invalid) {
+				page.referenced = false;
+				return false;
+			}
+			if (s.pages.get(page.index) == page)
+				s.pages.remove(page.index);
+			return true;
+		}
+	}
+
+	void release(Page page) {
+		synchronized (stripe(page.index)) {
+			page.pins--;
+		}
+	}
+
+	private void invalidate(Page page) {
+		Stripe s = stripe(page.index);
+		synchronized (s) {
+			page.invalid = true;
+			if (s.pages.get(page.index) == page)
+				s.pages.remove(page.index);
+		}
+	}
+
+	/**
+	 * Drops every page holding any of a range of bytes, so that the next read
+	 * of them goes to the database. This must be called after the range has
+	 * been written.
+	 *
+	 * @param byteIndex
+	 *            The first byte written
+	 * @param numBytes
+	 *            The number of bytes written
+	 */
+	public void invalidate(long byteIndex, long numBytes) {
+		if (numBytes <= 0)
+			return;
+		long firstPage = (byteIndex - firstByteIndex) / pageBytes;
+		long lastPage = (byteIndex + numBytes - 1 - firstByteIndex)
+				/ pageBytes;
+		for (long pageIndex = firstPage; pageIndex <= lastPage; pageIndex++) {
+			Stripe s = stripe(pageIndex);
+			synchronized (s) {
+				Page page = s.pages.remove(pageIndex);
+				if (page != null)
+					page.invalid = true;
+			}
+		}
+	}
+
+	/**
+	 * @return The number of bytes held by pages, including any being read
+	 */
+	long getUsedBytes() {
+		synchronized (evictionLock) {
+			return usedBytes;
+		}
+	}
+
+	/**
+	 * @return The number of page reads which found the page held
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of page reads which went to the database
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+}
@@ -1,12 +1,17 @@
 package edu.berkeley.gamesman.database.cache;
 
+import java.io.IOException;
+
 import edu.berkeley.gamesman.core.Record;
 import edu.berkeley.gamesman.database.Database;
+import edu.berkeley.gamesman.database.DatabaseHandle;
 import edu.berkeley.gamesman.game.util.TierState;
 
 public abstract class TierCache {
 	protected final Database db;
-	protected final long availableMemory;
+	protected long availableMemory;
+	private long misses, missNanos;
+	private SharedPageCache pages = null;
 
 	public TierCache(Database db, long availableMemory) {
 		this.db = db;
@@ -15,4 +20,84 @@ public abstract class TierCache {
 
 	public abstract void fetchChildren(TierState position, int numChildren,
 			TierState[] children, int[] hints, Record[] values);
+
+	/**
+	 * Changes the amount of memory this cache may use. Caches which can't
+	 * change size ignore it.
+	 * 
+	 * @param availableMemory
+	 *            The number of bytes
+	 */
+	public void setAvailableMemory(long availableMemory) {
+		this.availableMemory = availableMemory;
+		memoryChanged();
+	}
+
+	/**
+	 * Called when availableMemory changes. Memory already allocated beyond
+	 * the new amount should be released here rather than when it is next
+	 * refilled, since until then it counts against the memory of others.
+	 */
+	protected void memoryChanged() {
+	}
+
+	/**
+	 * Has this cache read records through a cache shared with other threads
+	 * instead of from the database directly
+	 * 
+	 * @param pages
+	 *            The shared cache (or null to read directly)
+	 */
+	public void setSharedCache(SharedPageCache pages) {
+		this.pages = pages;
+	}
+
+	/**
+	 * Fills a range cache with records from the shared cache if there is one
+	 * and otherwise from the database
+	 * 
+	 * @param range
+	 *            The range cache, whose range must already be set
+	 * @param dh
+	 *            A handle for reading the database
+	 * @param recordIndex
+	 *            The first record to read
+	 * @param numRecords
+	 *            The number of records to read
+	 * @throws IOException
+	 *             If the records can't be read
+	 */
+	protected final void readRange(RecordRangeCache range, DatabaseHandle dh,
+			long recordIndex, int numRecords) throws IOException {
+		if (pages == null)
+			range.readRecordsFromDatabase(db, dh, recordIndex, numRecords);
+		else
+			range.readRecordsFromCache(pages, dh, recordIndex, numRecords);
+	}
+
+	/**
+	 * Counts a fetch which had to go to the database
+	 * 
+	 * @param nanos
+	 *            The time it took
+	 */
+	protected final void missed(long nanos) {
+		misses++;
+		missNanos += nanos;
+	}
+
+	/**
+	 * @return The number of fetches so far which had to go to the database
+	 *         (always 0 for caches which don't count them)
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return The total time spent on those fetches in nanoseconds
+	 */
+	public long getMissNanos() {
+		return missNanos;
+	}
 }
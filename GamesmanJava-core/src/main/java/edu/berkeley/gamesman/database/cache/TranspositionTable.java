@@ -0,0 +1,190 @@
+package edu.berkeley.gamesman.database.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size concurrent table of solved positions, keyed by hash. Each entry
+ * is either an exact record or a bound found by an alpha-beta search which was
+ * cut off (LOWER: the true record is at least this good, UPPER: it is at most
+ * this good).<br />
+ * The table is divided into buckets of two slots. The first slot keeps
+ * whichever entry took the most work to find (its depth), and the second
+ * always takes the newest entry, so deep results survive a flood of shallow
+ * ones without the table filling up with stale deep entries. Buckets are
+ * guarded by a fixed set of striped locks.
+ */
+public final class TranspositionTable {
+	/**
+	 * The entry is the exact record
+	 */
+	public static final int EXACT = 0;
+
+	/**
+	 * The true record is at least as good as the entry
+	 */
+	public static final int LOWER = 1;
+
+	/**
+	 * The true record is at most as good as the entry
+	 */
+	public static final int UPPER = 2;
+
+	/**
+	 * Returned by probe when the table holds nothing for a hash
+	 */
+	public static final long MISS = -1L;
+
+	private static final int ENTRY_BYTES = 20;
+	private static final int FLAG_SHIFT = 62;
+	private static final long RECORD_MASK = (1L << FLAG_SHIFT) - 1;
+	private static final int NUM_LOCKS = 1024;
+
+	// Keys are stored plus one so that zero marks an empty slot
+	private final long[] keys;
+	private final long[] records;
+	private final int[] depths;
+	private final Object[] locks;
+	private final int bucketBits;
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong stores = new AtomicLong();
+
+	/**
+	 * @param bytes
+	 *            The memory to use (rounded down to a power of two number of
+	 *            buckets)
+	 */
+	public TranspositionTable(long bytes) {
+		long buckets = Math.max(1L, bytes / (2 * ENTRY_BYTES));
+		bucketBits = Math.min(29, 63 - Long.numberOfLeadingZeros(buckets));
+		int slots = 2 << bucketBits;
+		keys = new long[slots];
+		records = new long[slots];
+		depths = new int[slots];
+		locks = new Object[Math.min(NUM_LOCKS, 1 << bucketBits)];
+		for (int i = 0; i < locks.length; i++)
+			locks[i] = new Object();
+	}
+
+	private int bucket(long hash) {
+		if (bucketBits == 0)
+			return 0;
+		return (int) ((hash * 0x9E3779B97F4A7C15L) >>> (64 - bucketBits));
+	}
+
+	/**
+	 * @param hash
+	 *            The hash of a position
+	 * @return The entry for this position (to be split with record and flag),
+	 *         or MISS
+	 */
+	public long probe(long hash) {
+		lookups.incrementAndGet();
+		int bucket = bucket(hash);
+		int slot = bucket << 1;
+		long key = hash + 1;
+		long entry = MISS;
+		synchronized (locks[bucket & (locks.length - 1)]) {
+			if (keys[slot] == key)
+				entry = records[slot];
+			else if (keys[slot + 1] == key)
+				entry = records[slot + 1];
+		}
+		if (entry != MISS)
+			hits.incrementAndGet();
+		return entry;
+	}
+
+	/**
+	 * @param entry
+	 *            An entry returned by probe
+	 * @return The record stored in it
+	 */
+	public static long record(long entry) {
+		return entry & RECORD_MASK;
+	}
+
+	/**
+	 * @param entry
+	 *            An entry returned by probe
+	 * @return EXACT, LOWER or UPPER
+	 */
+	public static int flag(long entry) {
+		return (int) (entry >>> FLAG_SHIFT);
+	}
+
+	/**
+	 * Stores an entry for a position, replacing the shallower entry in its
+	 * bucket. An exact entry is never replaced by a bound for the same
+	 * position.
+	 *
+	 * @param hash
+	 *            The hash of the position
+	 * @param record
+	 *            The record (or bound) found for it
+	 * @param flag
+	 *            EXACT, LOWER or UPPER
+	 * @param depth
+	 *            How much work finding the record took (larger is more)
+	 */
+	public void store(long hash, long record, int flag, int depth) {
+		assert record >= 0 && record <= RECORD_MASK;
+		stores.incrementAndGet();
+		int bucket = bucket(hash);
+		int slot = bucket << 1;
+		long key = hash + 1;
+		long entry = record | ((long) flag << FLAG_SHIFT);
+		synchronized (locks[bucket & (locks.length - 1)]) {
+			int same = keys[slot] == key ? slot
+					: keys[slot + 1] == key ? slot + 1 : -1;
+			if (same >= 0 && flag != EXACT
+					&& flag(records[same]) == EXACT)
+				return;
+			if (same == slot || keys[slot] == 0L || depth >= depths[slot]) {
+				if (same != slot && keys[slot] != 0L) {
+					// Move the replaced entry to the always-replace slot
+					keys[slot + 1] = keys[slot];
+					records[slot + 1] = records[slot];
+					depths[slot + 1] = depths[slot];
+				} else if (same == slot + 1)
+					keys[slot + 1] = 0L;
+				keys[slot] = key;
+				records[slot] = entry;
+				depths[slot] = depth;
+			} else {
+				keys[slot + 1] = key;
+				records[slot + 1] = entry;
+				depths[slot + 1] = depth;
+			}
+		}
+	}
+
+	/**
+	 * @return The number of calls to probe so far
+	 */
+	public long lookups() {
+		return lookups.get();
+	}
+
+	/**
+	 * @return The number of calls to probe which found an entry
+	 */
+	public long hits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return The fraction of calls to probe which found an entry
+	 */
+	public double hitRate() {
+		long l = lookups.get();
+		return l == 0 ? 0D : (double) hits.get() / l;
+	}
+
+	@Override
+	public String toString() {
+		return keys.length + " slots, " + lookups.get() + " lookups, "
+				+ hits.get() + " hits (" + Math.round(hitRate() * 100)
+				+ "%), " + stores.get() + " stores";
+	}
+}
@@ -0,0 +1,48 @@
+package edu.berkeley.gamesman.database.codec;
+
+import java.io.IOException;
+
+/**
+ * Compresses and decompresses the independent blocks (entries) a
+ * GZippedDatabase is divided into. A compressed database names its codec
+ * with the gamesman.database.codec property, which is saved with the rest of
+ * the configuration in the database header. Implementations must have either
+ * a constructor taking the database's Configuration or a no-argument
+ * constructor, and must be safe to use from several threads at once.
+ * 
+ * @see edu.berkeley.gamesman.database.GZippedDatabase
+ */
+public interface BlockCodec {
+	/**
+	 * @param src
+	 *            The array holding the bytes to compress
+	 * @param off
+	 *            The offset of the first byte
+	 * @param len
+	 *            The number of bytes to compress
+	 * @return The compressed block
+	 * @throws IOException
+	 *             If an IOException occurs while compressing
+	 */
+	public byte[] compress(byte[] src, int off, int len) throws IOException;
+
+	/**
+	 * @param src
+	 *            The array holding the compressed block
+	 * @param srcOff
+	 *            The offset of the compressed block
+	 * @param srcLen
+	 *            The length of the compressed block
+	 * @param dest
+	 *            The array to decompress into
+	 * @param destOff
+	 *            The offset to decompress to
+	 * @param destLen
+	 *            The number of bytes the block decompresses to
+	 * @throws IOException
+	 *             If the block is corrupt or an IOException occurs while
+	 *             decompressing
+	 */
+	public void decompress(byte[] src, int srcOff, int srcLen, byte[] dest,
+			int destOff, int destLen) throws IOException;
+}
@@ -0,0 +1,45 @@
+package edu.berkeley.gamesman.database.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import edu.berkeley.gamesman.util.GZIPInputStream;
+import edu.berkeley.gamesman.util.GZIPOutputStream;
+
+/**
+ * Stores each block as a gzip stream. This is the default codec and the format
+ * of every compressed database written before codecs could be chosen.
+ */
+public class DeflateCodec implements BlockCodec {
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	@Override
+	public byte[] compress(byte[] src, int off, int len) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len / 4 + 64);
+		GZIPOutputStream gzos = new GZIPOutputStream(baos, Math.min(
+				BUFFER_SIZE, len + 1));
+		gzos.write(src, off, len);
+		gzos.close();
+		return baos.toByteArray();
+	}
+
+	@Override
+	public void decompress(byte[] src, int srcOff, int srcLen, byte[] dest,
+			int destOff, int destLen) throws IOException {
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(src,
+				srcOff, srcLen), Math.min(BUFFER_SIZE, srcLen + 1));
+		try {
+			while (destLen > 0) {
+				int bytesRead = in.read(dest, destOff, destLen);
+				if (bytesRead < 0)
+					throw new EOFException();
+				destOff += bytesRead;
+				destLen -= bytesRead;
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package edu.berkeley.gamesman.database.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A byte-oriented LZ77 codec in the style of LZ4. It compresses less than
+ * deflate but decompresses several times faster, which matters most when
+ * serving random reads.<br />
+ * A block is a series of sequences. Each sequence is a token byte (the high
+ * four bits give the number of literals and the low four the match length
+ * minus 4, where 15 means more length bytes follow, each added on until one
+ * is less than 255), the literals, and then a two-byte little-endian offset
+ * back to the match. The last sequence stops after its literals.
+ */
+public class LZCodec implements BlockCodec {
+	private static final int MIN_MATCH = 4;
+	private static final int MAX_OFFSET = 65535;
+	private static final int HASH_BITS = 14;
+
+	@Override
+	public byte[] compress(byte[] src, int off, int len) {
+		byte[] out = new byte[len + len / 255 + 16];
+		int[] table = new int[1 << HASH_BITS];
+		Arrays.fill(table, -1);
+		int end = off + len;
+		int matchLimit = end - MIN_MATCH;
+		int anchor = off, sp = off, op = 0;
+		while (sp <= matchLimit) {
+			int next = readInt(src, sp);
+			int h = hash(next);
+			int ref = table[h];
+			table[h] = sp;
+			if (ref < 0 || sp - ref > MAX_OFFSET || readInt(src, ref) != next) {
+				sp++;
+				continue;
+			}
+			int matchLen = MIN_MATCH;
+			while (sp + matchLen < end && src[ref + matchLen] == src[sp + matchLen])
+				matchLen++;
+			op = writeLiterals(out, op, src, anchor, sp - anchor, matchLen
+					- MIN_MATCH);
+			int offset = sp - ref;
+			out[op++] = (byte) offset;
+			out[op++] = (byte) (offset >>> 8);
+			if (matchLen - MIN_MATCH >= 15)
+				op = writeLength(out, op, matchLen - MIN_MATCH - 15);
+			sp += matchLen;
+			anchor = sp;
+		}
+		op = writeLiterals(out, op, src, anchor, end - anchor, 0);
+		return Arrays.copyOf(out, op);
+	}
+
+	private static int writeLiterals(byte[] out, int op, byte[] src,
+			int start, int num, int matchCode) {
+		out[op++] = (byte) ((Math.min(num, 15) << 4) | Math.min(matchCode, 15));
+		if (num >= 15)
+			op = writeLength(out, op, num - 15);
+		System.arraycopy(src, start, out, op, num);
+		return op + num;
+	}
+
+	private static int writeLength(byte[] out, int op, int len) {
+		while (len >= 255) {
+			out[op++] = (byte) 255;
+			len -= 255;
+		}
+		out[op++] = (byte) len;
+		return op;
+	}
+
+	private static int readInt(byte[] arr, int i) {
+		return (arr[i] & 0xFF) | (arr[i + 1] & 0xFF) << 8
+				| (arr[i + 2] & 0xFF) << 16 | (arr[i + 3] & 0xFF) << 24;
+	}
+
+	private static int hash(int i) {
+		return (i * -1640531535) >>> (32 - HASH_BITS);
+	}
+
+	@Override
+	public void decompress(byte[] src, int srcOff, int srcLen, byte[] dest,
+			int destOff, int destLen) throws IOException {
+		int sp = srcOff, srcEnd = srcOff + srcLen;
+		int dp = destOff, destEnd = destOff + destLen;
+		try {
+			while (true) {
+				if (sp >= srcEnd)
+					throw new IOException("Corrupt block");
+				int token = src[sp++] & 0xFF;
+				int litLen = token >>> 4;
+				if (litLen == 15) {
+					int b;
+					do {
+						b = src[sp++] & 0xFF;
+						litLen += b;
+					} while (b == 255);
+				}
+				if (litLen > destEnd - dp || litLen > srcEnd - sp)
+					throw new IOException("Corrupt block");
+				System.arraycopy(src, sp, dest, dp, litLen);
+				sp += litLen;
+				dp += litLen;
+				if (dp == destEnd)
+					return;
+				int offset = (src[sp] & 0xFF) | (src[sp + 1] & 0xFF) << 8;
+				sp += 2;
+				int matchLen = token & 15;
+				if (matchLen == 15) {
+					int b;
+					do {
+						b = src[sp++] & 0xFF;
+						matchLen += b;
+					} while (b == 255);
+				}
+				matchLen += MIN_MATCH;
+				int ref = dp - offset;
+				if (offset == 0 || ref < destOff || matchLen > destEnd - dp)
+					throw new IOException("Corrupt block");
+				if (offset >= matchLen) {
+					System.arraycopy(dest, ref, dest, dp, matchLen);
+				} else {
+					for (int i = 0; i < matchLen; i++)
+						dest[dp + i] = dest[ref + i];
+				}
+				dp += matchLen;
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Corrupt block");
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package edu.berkeley.gamesman.database.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed-size array of bytes indexed by longs and stored outside the Java
+ * heap. The bytes are held in direct buffers of at most 1GB each, so the total
+ * size is not limited to Integer.MAX_VALUE and none of it is ever scanned or
+ * copied by the garbage collector. Different threads may access disjoint
+ * ranges simultaneously.
+ */
+public final class DirectByteArray {
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	private static final int SEGMENT_MASK = (int) (SEGMENT_SIZE - 1);
+
+	private final ByteBuffer[] segments;
+	private final long length;
+
+	/**
+	 * @param length
+	 *            The number of bytes (all initially zero)
+	 */
+	public DirectByteArray(long length) {
+		this.length = length;
+		int numSegments = (int) ((length + SEGMENT_SIZE - 1) >> SEGMENT_SHIFT);
+		segments = new ByteBuffer[numSegments];
+		for (int i = 0; i < numSegments; i++) {
+			long segStart = (long) i << SEGMENT_SHIFT;
+			segments[i] = ByteBuffer.allocateDirect((int) Math.min(
+					SEGMENT_SIZE, length - segStart));
+		}
+	}
+
+	/**
+	 * @return The number of bytes in this array
+	 */
+	public long length() {
+		return length;
+	}
+
+	public byte get(long index) {
+		return segments[(int) (index >>> SEGMENT_SHIFT)]
+				.get((int) (index & SEGMENT_MASK));
+	}
+
+	public void put(long index, byte b) {
+		segments[(int) (index >>> SEGMENT_SHIFT)].put(
+				(int) (index & SEGMENT_MASK), b);
+	}
+
+	/**
+	 * Copies bytes out of this array
+	 *
+	 * @param index
+	 *            The index of the first byte to copy
+	 * @param array
+	 *            The array to copy into
+	 * @param off
+	 *            The offset into array
+	 * @param len
+	 *            The number of bytes to copy
+	 */
+	public void get(long index, byte[] array, int off, int len) {
+		while (len > 0) {
+			int segOff = (int) (index & SEGMENT_MASK);
+			ByteBuffer view = segments[(int) (index >>> SEGMENT_SHIFT)]
+					.duplicate();
+			int num = Math.min(len, view.capacity() - segOff);
+			view.position(segOff);
+			view.get(array, off, num);
+			index += num;
+			off += num;
+			len -= num;
+		}
+	}
+
+	/**
+	 * Copies bytes into this array
+	 *
+	 * @param index
+	 *            The index of the first byte to overwrite
+	 * @param array
+	 *            The array to copy from
+	 * @param off
+	 *            The offset into array
+	 * @param len
+	 *            The number of bytes to copy
+	 */
+	public void put(long index, byte[] array, int off, int len) {
+		while (len > 0) {
+			int segOff = (int) (index & SEGMENT_MASK);
+			ByteBuffer view = segments[(int) (index >>> SEGMENT_SHIFT)]
+					.duplicate();
+			int num = Math.min(len, view.capacity() - segOff);
+			view.position(segOff);
+			view.put(array, off, num);
+			index += num;
+			off += num;
+			len -= num;
+		}
+	}
+}
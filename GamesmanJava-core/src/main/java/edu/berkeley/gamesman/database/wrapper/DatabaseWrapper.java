@@ -12,11 +12,43 @@ import edu.berkeley.gamesman.database.Database;
  */
 public abstract class DatabaseWrapper extends Database {
 	final Database db;
+	/**
+	 * Whether the inner database was reopened to resume a solve
+	 * (gamesman.database.resume), so that a wrapper which is written to must
+	 * start from the records it already holds rather than from nothing
+	 */
+	protected final boolean resuming;
 
 	public DatabaseWrapper(Database db, Configuration config, long firstRecord,
 			long numRecords, boolean reading, boolean writing) {
 		super(config, firstRecord, numRecords, reading, writing);
 		this.db = db;
+		resuming = config.getBoolean("gamesman.database.resume", false);
+	}
+
+	@Override
+	public boolean keepsRecord(long recordIndex) {
+		return db.keepsRecord(recordIndex);
+	}
+
+	@Override
+	public boolean sharesRecords() {
+		return db.sharesRecords();
+	}
+
+	@Override
+	public boolean supportsRandomWrites() {
+		return db.supportsRandomWrites();
+	}
+
+	@Override
+	public void tierFinished(int tier) throws IOException {
+		db.tierFinished(tier);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		db.flush();
 	}
 
 	@Override
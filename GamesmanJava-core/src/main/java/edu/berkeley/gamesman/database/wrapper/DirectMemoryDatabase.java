@@ -0,0 +1,291 @@
+package edu.berkeley.gamesman.database.wrapper;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.database.Database;
+import edu.berkeley.gamesman.database.DatabaseHandle;
+import edu.berkeley.gamesman.database.util.DirectByteArray;
+import edu.berkeley.gamesman.game.TierGame;
+import edu.berkeley.gamesman.util.DebugFacility;
+import edu.berkeley.gamesman.util.Util;
+
+/**
+ * An in-memory database like MemoryDatabase, except that the bytes are kept
+ * off the Java heap and are not limited to 2GB. For a TierGame the records are
+ * held in one block per tier, and at most gamesman.database.direct.tiers
+ * blocks (0, the default, means all of them) are kept in memory at once. When
+ * another block is needed, the resident block furthest from it is flushed to
+ * the inner database and dropped. Since tiers are solved from last to first,
+ * a limit of 2 keeps the tier being solved and the tier below it (holding its
+ * children) in memory for games such as Connect Four, whose children are
+ * always in the next tier.<br />
+ * A thread copying bytes in or out of a block pins it, and a pinned block is
+ * never dropped. If the inner database accepts writes at any position, each
+ * tier's block is also flushed to it as soon as the tier is finished.<br />
+ * With a limit, blocks are flushed out of order and may be read back later,
+ * so the inner database must accept writes at any position and must be
+ * readable (a FileDatabase, for instance). Without one, everything is written
+ * to the inner database in order when this database is closed. When resuming
+ * a solve, blocks are loaded from the inner database before they're written.
+ */
+public class DirectMemoryDatabase extends DatabaseWrapper {
+	private static final int FLUSH_BUFFER = 1 << 16;
+
+	private static final class Block {
+		private final long firstByteIndex;
+		private final long numBytes;
+		// Changed only while holding both the database and the block
+		private DirectByteArray bytes;
+		// The number of threads copying bytes in or out (guarded by the block)
+		private int pins = 0;
+		private volatile boolean dirty;
+		// Whether the inner database holds this block's bytes
+		private boolean flushed;
+
+		private Block(long firstByteIndex, long numBytes, boolean flushed) {
+			this.firstByteIndex = firstByteIndex;
+			this.numBytes = numBytes;
+			this.flushed = flushed;
+		}
+
+		private boolean contains(long byteIndex) {
+			return byteIndex >= firstByteIndex
+					&& byteIndex < firstByteIndex + numBytes;
+		}
+	}
+
+	private static class DirectHandle extends DatabaseHandle {
+		private Block block;
+
+		private DirectHandle(int numBytes, boolean reading) {
+			super(numBytes, reading);
+		}
+	}
+
+	private final Block[] blocks;
+	private final long[] blockStarts;
+	private final int maxResident;
+	private final LinkedList<Block> resident = new LinkedList<Block>();
+	private DatabaseHandle innerReadHandle, innerWriteHandle;
+
+	public DirectMemoryDatabase(Database db, Configuration config,
+			long firstRecord, long numRecords, boolean reading, boolean writing) {
+		super(db, config, firstRecord, numRecords, reading, writing);
+		maxResident = config.getInteger("gamesman.database.direct.tiers", 0);
+		blockStarts = tierByteStarts();
+		long lastByteIndex = firstByteIndex() + numBytes();
+		blocks = new Block[blockStarts.length];
+		for (int i = 0; i < blocks.length; i++) {
+			long end = i + 1 < blocks.length ? blockStarts[i + 1]
+					: lastByteIndex;
+			// A resumed solve finds earlier blocks in the inner database
+			blocks[i] = new Block(blockStarts[i], end - blockStarts[i],
+					resuming);
+		}
+	}
+
+	@Override
+	public DatabaseHandle getHandle(boolean reading) {
+		assert reading ? this.reading : this.writing;
+		return new DirectHandle(myLogic.recordBytes, reading);
+	}
+
+	@Override
+	protected int readBytes(DatabaseHandle dh, long location, byte[] array,
+			int off, int len) throws IOException {
+		Block block = pin(dh, location);
+		try {
+			len = (int) Math.min(len, block.firstByteIndex + block.numBytes
+					- location);
+			block.bytes.get(location - block.firstByteIndex, array, off, len);
+		} finally {
+			unpin(block);
+		}
+		return len;
+	}
+
+	@Override
+	protected int writeBytes(DatabaseHandle dh, long location, byte[] array,
+			int off, int len) throws IOException {
+		Block block = pin(dh, location);
+		try {
+			len = (int) Math.min(len, block.firstByteIndex + block.numBytes
+					- location);
+			block.bytes.put(location - block.firstByteIndex, array, off, len);
+			block.dirty = true;
+		} finally {
+			unpin(block);
+		}
+		return len;
+	}
+
+	/**
+	 * Finds the block holding a byte and pins it, loading it first if it
+	 * isn't resident. It must be unpinned once the copy is done.
+	 */
+	private Block pin(DatabaseHandle dh, long byteIndex) throws IOException {
+		DirectHandle handle = dh instanceof DirectHandle ? (DirectHandle) dh
+				: null;
+		Block block = handle == null ? null : handle.block;
+		if (block == null || !block.contains(byteIndex)) {
+			int i = Arrays.binarySearch(blockStarts, byteIndex);
+			if (i < 0)
+				i = -i - 2;
+			block = blocks[i];
+			if (handle != null)
+				handle.block = block;
+		}
+		while (true) {
+			synchronized (block) {
+				if (block.bytes != null) {
+					block.pins++;
+					return block;
+				}
+			}
+			makeResident(block);
+		}
+	}
+
+	private void unpin(Block block) {
+		synchronized (block) {
+			block.pins--;
+		}
+	}
+
+	private synchronized void makeResident(Block block) throws IOException {
+		while (block.bytes == null && maxResident > 0
+				&& resident.size() >= maxResident) {
+			Block furthest = null;
+			for (Block b : resident) {
+				if (isPinned(b))
+					continue;
+				if (furthest == null
+						|| Math.abs(b.firstByteIndex - block.firstByteIndex) >= Math
+								.abs(furthest.firstByteIndex
+										- block.firstByteIndex))
+					furthest = b;
+			}
+			if (furthest == null) {
+				// Every resident block is being copied; pins are brief
+				try {
+					wait(1L);
+				} catch (InterruptedException e) {
+					throw new Error(e);
+				}
+				continue;
+			}
+			synchronized (furthest) {
+				if (furthest.pins > 0)
+					continue;
+				if (furthest.dirty)
+					flush(furthest);
+				furthest.bytes = null;
+			}
+			resident.remove(furthest);
+		}
+		if (block.bytes != null)
+			return;
+		DirectByteArray bytes = new DirectByteArray(block.numBytes);
+		if (!writing || block.flushed)
+			load(block, bytes);
+		synchronized (block) {
+			block.bytes = bytes;
+		}
+		resident.add(block);
+	}
+
+	private static boolean isPinned(Block block) {
+		synchronized (block) {
+			return block.pins > 0;
+		}
+	}
+
+	private void load(Block block, DirectByteArray bytes) throws IOException {
+		assert Util.debug(DebugFacility.DATABASE, "Loading bytes "
+				+ block.firstByteIndex + "-"
+				+ (block.firstByteIndex + block.numBytes - 1));
+		if (innerReadHandle == null)
+			innerReadHandle = db.getHandle(true);
+		byte[] buffer = new byte[(int) Math.min(FLUSH_BUFFER, block.numBytes)];
+		db.prepareReadRange(innerReadHandle, block.firstByteIndex,
+				block.numBytes);
+		for (long pos = 0; pos < block.numBytes; pos += buffer.length) {
+			int len = (int) Math.min(buffer.length, block.numBytes - pos);
+			db.readFullBytes(innerReadHandle, buffer, 0, len);
+			bytes.put(pos, buffer, 0, len);
+		}
+	}
+
+	private void flush(Block block) throws IOException {
+		assert Util.debug(DebugFacility.DATABASE, "Flushing bytes "
+				+ block.firstByteIndex + "-"
+				+ (block.firstByteIndex + block.numBytes - 1));
+		if (innerWriteHandle == null)
+			innerWriteHandle = db.getHandle(false);
+		byte[] buffer = new byte[(int) Math.min(FLUSH_BUFFER, block.numBytes)];
+		db.prepareWriteRange(innerWriteHandle, block.firstByteIndex,
+				block.numBytes);
+		// Cleared first so that anything written meanwhile is flushed later
+		block.dirty = false;
+		for (long pos = 0; pos < block.numBytes; pos += buffer.length) {
+			int len = (int) Math.min(buffer.length, block.numBytes - pos);
+			block.bytes.get(pos, buffer, 0, len);
+			db.writeFullBytes(innerWriteHandle, buffer, 0, len);
+		}
+		block.flushed = true;
+	}
+
+	/**
+	 * Writes every resident block which has changed to the inner database
+	 * and flushes it
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		if (writing) {
+			for (Block block : resident) {
+				if (block.dirty)
+					flush(block);
+			}
+			db.flush();
+		}
+	}
+
+	/**
+	 * Writes the blocks holding a finished tier to the inner database if it
+	 * accepts writes out of order
+	 */
+	@Override
+	public synchronized void tierFinished(int tier) throws IOException {
+		if (writing && db.supportsRandomWrites()
+				&& conf.getGame() instanceof TierGame) {
+			TierGame game = (TierGame) conf.getGame();
+			long first = myLogic.getByteIndex(game.hashOffsetForTier(tier));
+			long end = myLogic.getByteIndex(game.hashOffsetForTier(tier + 1));
+			for (Block block : resident) {
+				if (block.dirty && block.firstByteIndex < end
+						&& block.firstByteIndex + block.numBytes > first)
+					flush(block);
+			}
+		}
+		db.tierFinished(tier);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (writing) {
+			for (Block block : blocks) {
+				if (block.dirty || !block.flushed) {
+					// Blocks which were never touched are written as zeros
+					if (block.bytes == null)
+						block.bytes = new DirectByteArray(block.numBytes);
+					flush(block);
+				}
+				block.bytes = null;
+			}
+		}
+		db.close();
+	}
+}
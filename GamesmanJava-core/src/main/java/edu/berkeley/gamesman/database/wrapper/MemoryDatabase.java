@@ -8,6 +8,7 @@ import edu.berkeley.gamesman.database.Database;
 import edu.berkeley.gamesman.database.DatabaseHandle;
 import edu.berkeley.gamesman.database.UnpreparedHandleException;
 import edu.berkeley.gamesman.database.cache.RecordRangeCache;
+import edu.berkeley.gamesman.game.TierGame;
 
 public class MemoryDatabase extends DatabaseWrapper {
 	private final RecordRangeCache recordCache;
@@ -18,12 +19,12 @@ public class MemoryDatabase extends DatabaseWrapper {
 			throws IOException {
 		super(db, config, firstRecord, numRecords, reading, writing);
 		recordCache = new RecordRangeCache(myLogic);
-		long numBytes = myLogic.getNumBytes(numRecords);
+		long numBytes = numBytes();
 		if (numBytes > Integer.MAX_VALUE)
 			throw new ArrayIndexOutOfBoundsException(
 					"MemoryDatabase cannot hold more than 2 GB of records");
 		recordCache.setRange(firstRecord, (int) numRecords);
-		if (!writing) {
+		if (!writing || resuming) {
 			DatabaseHandle dbHandle = db.getHandle(true);
 			recordCache.readBytesFromDatabase(db, dbHandle,
 					myLogic.getByteIndex(firstRecord), (int) numBytes);
@@ -44,9 +45,10 @@ public class MemoryDatabase extends DatabaseWrapper {
 	}
 
 	@Override
-	public long readNextRecord(DatabaseHandle dh) throws EOFException,
-			UnpreparedHandleException {
-		if (dh.numBytes < 0)
+	public long readNextRecord(DatabaseHandle dh) throws IOException {
+		if (myLogic.packed)
+			return super.readNextRecord(dh);
+		else if (dh.numBytes < 0)
 			throw new UnpreparedHandleException(dh);
 		else if (dh.numBytes >= myLogic.recordBytes) {
 			long record = readRecordFromByteIndex(dh, dh.location);
@@ -57,6 +59,22 @@ public class MemoryDatabase extends DatabaseWrapper {
 		}
 	}
 
+	@Override
+	public long readRecord(DatabaseHandle dh, long recordIndex) {
+		return recordCache.readRecord(recordIndex);
+	}
+
+	@Override
+	public void writeRecord(DatabaseHandle dh, long recordIndex, long record) {
+		if (myLogic.packed) {
+			// The rest of the group is already here, so it needs no reading
+			synchronized (groupLock(myLogic.getByteIndex(recordIndex))) {
+				recordCache.writeRecord(recordIndex, record);
+			}
+		} else
+			recordCache.writeRecord(recordIndex, record);
+	}
+
 	@Override
 	protected long readRecordFromByteIndex(DatabaseHandle dh, long byteIndex) {
 		return recordCache.readRecordFromByteIndex(byteIndex);
@@ -64,8 +82,10 @@ public class MemoryDatabase extends DatabaseWrapper {
 
 	@Override
 	public void writeNextRecord(DatabaseHandle dh, long record)
-			throws EOFException, UnpreparedHandleException {
-		if (dh.numBytes < 0)
+			throws IOException {
+		if (myLogic.packed)
+			super.writeNextRecord(dh, record);
+		else if (dh.numBytes < 0)
 			throw new UnpreparedHandleException(dh);
 		else if (dh.numBytes >= myLogic.recordBytes) {
 			writeRecordFromByteIndex(dh, dh.location, record);
@@ -81,12 +101,51 @@ public class MemoryDatabase extends DatabaseWrapper {
 		recordCache.writeRecordFromByteIndex(byteIndex, record);
 	}
 
+	/**
+	 * Writes every record to the inner database and flushes it
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (writing) {
+			writeBack();
+			db.flush();
+		}
+	}
+
+	/**
+	 * Writes the records of a finished tier to the inner database if it
+	 * accepts writes out of order, so that it holds the tier when told it is
+	 * finished
+	 */
+	@Override
+	public void tierFinished(int tier) throws IOException {
+		if (writing && db.supportsRandomWrites()
+				&& conf.getGame() instanceof TierGame) {
+			TierGame game = (TierGame) conf.getGame();
+			long first = Math.max(game.hashOffsetForTier(tier),
+					firstRecordIndex);
+			long end = Math.min(game.hashOffsetForTier(tier + 1),
+					firstRecordIndex + numRecords);
+			if (end > first) {
+				// Whole groups, with whatever this holds for their neighbours
+				long byteIndex = myLogic.getByteIndex(first);
+				recordCache.writeBytesToDatabase(db, db.getHandle(false),
+						byteIndex, (int) myLogic.getNumBytes(first, end - first));
+			}
+		}
+		db.tierFinished(tier);
+	}
+
+	private void writeBack() throws IOException {
+		DatabaseHandle dh = db.getHandle(false);
+		recordCache.writeBytesToDatabase(db, dh,
+				recordCache.getFirstByteIndex(), recordCache.getNumBytes());
+	}
+
 	@Override
 	public void close() throws IOException {
 		if (writing) {
-			DatabaseHandle dh = db.getHandle(false);
-			recordCache.writeBytesToDatabase(db, dh,
-					recordCache.getFirstByteIndex(), recordCache.getNumBytes());
+			writeBack();
 			db.close();
 		}
 	}
@@ -55,6 +55,13 @@ public final class Connect4 extends TierGame {
 
 	private int numMoves;
 
+	// Scratch space for canonicalHash
+	private final long[][] choose;
+
+	private final int[] otherHeights;
+
+	private final boolean[] otherOs;
+
 	private static final class Place {
 		private Place(int row, int col) {
 			this.row = row;
@@ -90,6 +97,14 @@ public final class Connect4 extends TierGame {
 		children = new long[gameWidth];
 		openColumn = new int[gameWidth];
 		groupSizes = new int[gameWidth];
+		choose = new long[gameSize + 1][gameSize / 2 + 2];
+		for (int n = 0; n <= gameSize; n++) {
+			choose[n][0] = 1;
+			for (int k = 1; k <= n && k < choose[n].length; k++)
+				choose[n][k] = choose[n - 1][k - 1] + choose[n - 1][k];
+		}
+		otherHeights = new int[gameWidth];
+		otherOs = new boolean[gameSize];
 	}
 
 	@Override
@@ -424,6 +439,77 @@ public final class Connect4 extends TierGame {
 		return lenChildren;
 	}
 
+	@Override
+	public int validMoveHashes(long[] childHashes) {
+		int lenChildren = iah.getChildren(pieces.size() % 2 == 1 ? 'O' : 'X',
+				children);
+		int nextNumPieces = pieces.size() + 1;
+		long tierOffset = hashOffsetForTier(nextNumPieces);
+		int col = 0;
+		for (int i = 0; i < lenChildren; i++) {
+			while (colHeights[col] == gameHeight)
+				col++;
+			childHashes[i] = tierOffset + moveArrangement[col]
+					* multiplier[nextNumPieces] + children[i];
+			col++;
+		}
+		return lenChildren;
+	}
+
+	/**
+	 * A position and its mirror image (left to right) have the same value,
+	 * so this returns whichever of the two has the smaller hash. It works from
+	 * the hash alone and leaves the current position alone.
+	 */
+	@Override
+	public long canonicalHash(long hash) {
+		int numPieces = hashToTier(hash);
+		long tierOffset = hashOffsetForTier(numPieces);
+		long colorArrangements = multiplier[numPieces];
+		long arrange = (hash - tierOffset) / colorArrangements;
+		long colors = (hash - tierOffset) % colorArrangements;
+		// Column heights, as in setArrangement
+		int pieceCount = numPieces;
+		for (int col = gameWidth - 1; col >= 0; col--) {
+			otherHeights[col] = 0;
+			long tryHash = ec.getCoef(col, pieceCount);
+			while (arrange >= tryHash) {
+				arrange -= tryHash;
+				pieceCount--;
+				otherHeights[col]++;
+				tryHash = ec.getCoef(col, pieceCount);
+			}
+		}
+		// Piece colors, as in PieceRearranger.setFromHash. A piece which is
+		// the kth O at index i adds i choose k to the hash.
+		int oCount = numPieces / 2;
+		for (int i = numPieces - 1; i >= 0; i--) {
+			long tryHash = choose[i][oCount];
+			otherOs[i] = colors >= tryHash;
+			if (otherOs[i]) {
+				colors -= tryHash;
+				oCount--;
+			}
+		}
+		// Hash the pieces again taking the columns from right to left
+		long mirrorArrange = 0L, mirrorColors = 0L;
+		int mirrorIndex = 0;
+		oCount = 0;
+		int colEnd = numPieces;
+		for (int col = 0; col < gameWidth; col++) {
+			int height = otherHeights[gameWidth - 1 - col];
+			for (int i = colEnd - height; i < colEnd; i++) {
+				mirrorArrange += ec.getCoef(col, mirrorIndex + 1);
+				if (otherOs[i])
+					mirrorColors += choose[mirrorIndex][++oCount];
+				mirrorIndex++;
+			}
+			colEnd -= height;
+		}
+		return Math.min(hash, tierOffset + mirrorArrange * colorArrangements
+				+ mirrorColors);
+	}
+
 	/**
 	 * @param moves
 	 *            Returns the value of the last time of move was possible in
@@ -544,6 +630,72 @@ public final class Connect4 extends TierGame {
 		return gameWidth;
 	}
 
+	/**
+	 * A child's hash is the arrangement of the column heights after the move
+	 * times the number of colorings, plus its coloring. So the children of a
+	 * range lie between the least and greatest arrangements reachable from
+	 * the height arrangements the range spans.
+	 */
+	@Override
+	public long[] childHashRange(long firstHash, long numHashes) {
+		int tier = hashToTier(firstHash);
+		if (tier == gameSize)
+			return new long[] { firstHash, firstHash };
+		long tierOffset = hashOffsetForTier(tier);
+		long firstArrangement = (firstHash - tierOffset) / multiplier[tier];
+		long lastArrangement = (firstHash + numHashes - 1 - tierOffset)
+				/ multiplier[tier];
+		int[] heights = new int[gameWidth];
+		long[] moves = new long[gameWidth];
+		long least = Long.MAX_VALUE, greatest = -1L;
+		for (long arrange = firstArrangement; arrange <= lastArrangement; arrange++) {
+			moveArrangements(tier, arrange, heights, moves);
+			for (int col = 0; col < gameWidth; col++) {
+				if (heights[col] < gameHeight) {
+					least = Math.min(least, moves[col]);
+					greatest = Math.max(greatest, moves[col]);
+				}
+			}
+		}
+		long childOffset = hashOffsetForTier(tier + 1);
+		if (greatest < 0)
+			return new long[] { childOffset, childOffset };
+		return new long[] { childOffset + least * multiplier[tier + 1],
+				childOffset + (greatest + 1) * multiplier[tier + 1] };
+	}
+
+	/**
+	 * The same as setArrangement followed by setMoveArrangements, but without
+	 * changing the state of the game
+	 */
+	private void moveArrangements(int numPieces, long arrange, int[] heights,
+			long[] moves) {
+		int pieceCount = numPieces;
+		for (int col = gameWidth - 1; col >= 0; col--) {
+			heights[col] = 0;
+			long tryHash = ec.getCoef(col, pieceCount);
+			while (arrange >= tryHash) {
+				arrange -= tryHash;
+				pieceCount--;
+				heights[col]++;
+				tryHash = ec.getCoef(col, pieceCount);
+			}
+		}
+		long arrangement = 0L;
+		int piece = 0;
+		for (int col = 0; col < gameWidth; col++)
+			for (int row = 0; row < heights[col]; row++)
+				arrangement += ec.getCoef(col, ++piece);
+		int i = numPieces;
+		long addValue = 0;
+		for (int col = gameWidth - 1; col >= 0; col--) {
+			addValue += ec.getCoef(col, i + 1);
+			moves[col] = arrangement + addValue;
+			i -= heights[col];
+			addValue -= ec.getCoef(col, i + 1);
+		}
+	}
+
 	public String toString() {
 		return gameWidth + "x" + gameHeight + " Connect " + piecesToWin;
 	}
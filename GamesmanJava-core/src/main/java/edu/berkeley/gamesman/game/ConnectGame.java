@@ -193,6 +193,16 @@ public abstract class ConnectGame extends TierGame {
 		return validMoves(children, null);
 	}
 
+	@Override
+	public final int validMoveHashes(long[] childHashes) {
+		char turn = tier % 2 == 0 ? 'X' : 'O';
+		int numChildren = mmh.getChildren(' ', turn, null, childHashes);
+		long tierOffset = hashOffsetForTier(tier + 1);
+		for (int i = 0; i < numChildren; i++)
+			childHashes[i] += tierOffset;
+		return numChildren;
+	}
+
 	@Override
 	public final long recordStates() {
 		if (conf.hasRemoteness)
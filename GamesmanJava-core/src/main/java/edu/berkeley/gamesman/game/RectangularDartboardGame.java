@@ -178,6 +178,16 @@ public abstract class RectangularDartboardGame extends TierGame {
 		return validMoves(moves, null);
 	}
 
+	@Override
+	public int validMoveHashes(long[] childHashes) {
+		int numChildren = myHasher.getChildren(' ', getTurn(), null,
+				childHashes);
+		long tierOffset = hashOffsetForTier(tier + 1);
+		for (int i = 0; i < numChildren; i++)
+			childHashes[i] += tierOffset;
+		return numChildren;
+	}
+
 	@Override
 	public long recordStates() {
 		if (conf.hasRemoteness) {
@@ -262,6 +262,58 @@ public abstract class TierGame extends Game<TierState> {
 	 */
 	public abstract int validMoves(TierState[] moves);
 
+	/**
+	 * Stores the hash of each child of the current position (as stateToHash
+	 * would give it) without filling in a state for each. Every child must be
+	 * in the tier after the current one. Games whose hasher finds the
+	 * children's hashes from the current hash, as DartboardHasher.getChildren
+	 * does, should override this so that the solver does no hashing of its
+	 * own. Games which can't return -1 (the default).<br />
+	 * The solver then decodes every child's record with longToRecord given a
+	 * state holding the children's tier but not the child's hash, so a game
+	 * overriding this must decode records from the tier alone.
+	 * 
+	 * @param childHashes
+	 *            The array to store the hashes to
+	 * @return The number of children stored or -1 if not supported
+	 */
+	public int validMoveHashes(long[] childHashes) {
+		return -1;
+	}
+
+	/**
+	 * Finds the position which stands for all the positions symmetric to
+	 * the given one, so that only its record need be stored. It must have the
+	 * same value and remoteness, be in the same tier and be found the same way
+	 * from each of them. This must not change the current position. Games
+	 * which don't make use of their symmetries return the hash itself (the
+	 * default).
+	 * 
+	 * @param hash
+	 *            The hash of a position
+	 * @return The hash of the position standing for it
+	 */
+	public long canonicalHash(long hash) {
+		return hash;
+	}
+
+	/**
+	 * Bounds the hashes of the children of a range of positions in one tier,
+	 * so that a solver can start on the range as soon as those children are
+	 * solved rather than waiting for the whole of the next tier. Games which
+	 * can't bound them cheaply return null (the default).
+	 * 
+	 * @param firstHash
+	 *            The hash of the first position in the range
+	 * @param numHashes
+	 *            The number of positions in the range (all in the same tier)
+	 * @return The first hash and one past the last hash any of their children
+	 *         might have, or null if unknown
+	 */
+	public long[] childHashRange(long firstHash, long numHashes) {
+		return null;
+	}
+
 	@Override
 	public final TierState newState() {
 		return new TierState();
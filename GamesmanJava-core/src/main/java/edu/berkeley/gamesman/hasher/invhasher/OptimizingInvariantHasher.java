@@ -13,7 +13,13 @@ import edu.berkeley.gamesman.util.LongSet;
  * plus the element must have the same number of completions. Note that this
  * must include cases where the last element of the prefix is invalid (ie. if
  * two prefixes have the same invariant, then the set of elements which are
- * invalid following the prefix must be the same for both)
+ * invalid following the prefix must be the same for both)<br />
+ * This means the contribution of each element to the hash depends only on its
+ * place, its value and the invariant of the prefix before it. For each place
+ * and invariant, a table holds the contribution of every value, so hashing
+ * and unhashing each take one table lookup per element. Tables are built as
+ * they're needed, or all at once with buildTables, which also limits how much
+ * memory they may use.
  * 
  * @author dnspies
  * 
@@ -22,8 +28,17 @@ import edu.berkeley.gamesman.util.LongSet;
  */
 public abstract class OptimizingInvariantHasher<S extends GenState> extends
 		InvariantHasher<S> {
-	private HashMap<LongSet, Long>[][] invariantVals;
+	// An estimate of the memory used by a table besides its entries
+	private static final long TABLE_OVERHEAD = 64L;
+	/*
+	 * For each place, the invariant of the prefix before it mapped to the
+	 * number of completions with a smaller element in that place, for each
+	 * value of the element (and then the total)
+	 */
+	private final HashMap<LongSet, long[]>[] tables;
 	private final LongSet tempVal = new LongSet();
+	private long tableBytes = 0L;
+	private long maxTableBytes = Long.MAX_VALUE;
 
 	public OptimizingInvariantHasher(int[] digitBase) {
 		this(digitBase, 0);
@@ -37,29 +52,128 @@ public abstract class OptimizingInvariantHasher<S extends GenState> extends
 	 */
 	public OptimizingInvariantHasher(int[] digitBase, int countingPlace) {
 		super(digitBase, countingPlace);
-		invariantVals = new HashMap[numElements][];
-		for (int i = 0; i < numElements; i++) {
-			invariantVals[i] = new HashMap[digitBase[i]];
-			for (int j = 0; j < digitBase[i]; j++)
-				invariantVals[i][j] = new HashMap<LongSet, Long>();
+		tables = new HashMap[numElements];
+		for (int i = 0; i < numElements; i++)
+			tables[i] = new HashMap<LongSet, long[]>();
+	}
+
+	/**
+	 * Builds the table for every place and invariant reachable by a valid
+	 * prefix, stopping once they would take more than maxBytes. No tables are
+	 * built after that, so hashing what isn't covered falls back to counting
+	 * completions (a maxBytes of zero turns the tables off entirely). This
+	 * should be called before the hasher is used, at the end of the
+	 * subclass's constructor or by whoever creates it.
+	 * 
+	 * @param maxBytes
+	 *            The most memory the tables may use
+	 * @return Whether every table was built
+	 */
+	public final boolean buildTables(long maxBytes) {
+		maxTableBytes = maxBytes;
+		if (tableBytes > maxBytes) {
+			for (int i = 0; i < numElements; i++)
+				tables[i].clear();
+			tableBytes = 0L;
+		}
+		S state = getPoolPref();
+		try {
+			trunc(state, numElements);
+			return buildTables(state);
+		} finally {
+			releasePref(state);
 		}
 	}
 
-	@Override
-	protected long sigValue(S state) {
+	private boolean buildTables(S state) {
+		addOn(state, false);
+		try {
+			int place = getStart(state);
+			long[] table = table(state);
+			if (table == null)
+				return false;
+			if (place == 0)
+				return true;
+			for (int digit = 0; digit < baseFor(place); digit++) {
+				if (table[digit + 1] == table[digit])
+					continue;
+				trunc(state);
+				addLS(state, digit);
+				tempVal.value = getInvariant(state);
+				if (!tables[place - 1].containsKey(tempVal)
+						&& !buildTables(state))
+					return false;
+			}
+			return true;
+		} finally {
+			trunc(state);
+		}
+	}
+
+	/**
+	 * @param state
+	 *            A prefix
+	 * @return The table for the start of the prefix, or null if there's no
+	 *         room for it
+	 */
+	private long[] table(S state) {
 		int place = getStart(state);
-		int ls = leastSig(state);
 		long lastInv = lastInvariant(state);
-		assert lastInv >= 0;
 		tempVal.value = lastInv;
-		Long count = invariantVals[place][ls].get(tempVal);
-		if (count == null) {
-			count = super.sigValue(state);
-			Long prevVal = invariantVals[place][ls].put(new LongSet(lastInv),
-					count);
-			assert prevVal == null;
+		long[] table = tables[place].get(tempVal);
+		if (table != null)
+			return table;
+		int base = baseFor(place);
+		long bytes = TABLE_OVERHEAD + 8L * (base + 1);
+		if (tableBytes + bytes > maxTableBytes)
+			return null;
+		int ls = leastSig(state);
+		table = new long[base + 1];
+		resetLS(state, false);
+		for (int digit = 0; digit < base; digit++) {
+			table[digit + 1] = table[digit] + countCompletions(state);
+			incr(state, 1);
 		}
-		return count;
+		trunc(state);
+		addLS(state, ls);
+		long[] prevVal = tables[place].put(new LongSet(lastInv), table);
+		assert prevVal == null;
+		tableBytes += bytes;
+		return table;
+	}
+
+	@Override
+	protected long sigValue(S state) {
+		long[] table = table(state);
+		if (table == null)
+			return super.sigValue(state);
+		return table[leastSig(state)];
+	}
+
+	@Override
+	protected long raiseLS(S state, long hash) {
+		long[] table = table(state);
+		if (table == null)
+			return super.raiseLS(state, hash);
+		// The first element with any completions past the remaining hash
+		int low = leastSig(state), high = table.length - 2;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (table[mid + 1] > hash)
+				high = mid;
+			else
+				low = mid + 1;
+		}
+		trunc(state);
+		addLS(state, low);
+		return table[low];
+	}
+
+	/**
+	 * @return An estimate of the memory used by the tables in bytes
+	 */
+	public long tableBytes() {
+		return tableBytes;
 	}
 
 	/**
@@ -3,6 +3,7 @@ package edu.berkeley.gamesman.solver;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.berkeley.gamesman.core.Configuration;
 import edu.berkeley.gamesman.core.Record;
@@ -13,11 +14,18 @@ import edu.berkeley.gamesman.database.DatabaseHandle;
 import edu.berkeley.gamesman.game.FinitePrimitives;
 import edu.berkeley.gamesman.game.Game;
 import edu.berkeley.gamesman.game.Undoable;
+import edu.berkeley.gamesman.util.ConcurrentBitSet;
 import edu.berkeley.gamesman.util.Util;
 import edu.berkeley.gamesman.util.qll.Factory;
 import edu.berkeley.gamesman.util.qll.Pool;
 
 /**
+ * Solves a game by working backwards from its primitives one remoteness at a
+ * time. The positions found at each remoteness are marked in a bitmap, so
+ * each level only visits the positions found by the one before. Parent
+ * records are updated with Database.compareAndSetRecord so that threads
+ * reaching the same parent can't overwrite each other's improvements.
+ * 
  * @author dnspies
  * @param <T>
  *            The game state
@@ -27,6 +35,9 @@ public class BreadthFirstSolver<T extends State<T>> extends Solver {
 	public BreadthFirstSolver(Configuration conf, Database db) {
 		super(conf, db);
 		finitePrimitives = conf.getGame() instanceof FinitePrimitives;
+		long numHashes = conf.getGame().numHashes();
+		frontier = new ConcurrentBitSet(numHashes);
+		nextFrontier = new ConcurrentBitSet(numHashes);
 	}
 
 	private class BreadthFirstParentTask implements Runnable {
@@ -35,7 +46,7 @@ public class BreadthFirstSolver<T extends State<T>> extends Solver {
 		private final Game<T> game;
 		private final Undoable<T> uGame;
 		private final T[] parentStates;
-		private final DatabaseHandle readHandle, writeHandle, parentReadHandle;
+		private final DatabaseHandle readHandle, writeHandle;
 
 		@SuppressWarnings("unchecked")
 		private BreadthFirstParentTask(long firstRecordIndex, long numRecords) {
@@ -46,56 +57,55 @@ public class BreadthFirstSolver<T extends State<T>> extends Solver {
 			uGame = (Undoable<T>) game;
 			parentStates = game.newStateArray(uGame.maxParents());
 			readHandle = db.getHandle(true);
-			parentReadHandle = db.getHandle(true);
 			writeHandle = db.getHandle(false);
 		}
 
 		@Override
 		public void run() {
-			long hash = firstRecordIndex;
+			long endRecordIndex = firstRecordIndex + numRecords;
 			T state = game.newState();
 			Record rec = game.newRecord();
 			Record rightNow = game.newRecord();
 			long positionsFound = 0;
-			try {
-				db.prepareReadRecordRange(readHandle, firstRecordIndex,
-						numRecords);
-			} catch (IOException e1) {
-				throw new Error(e1);
-			}
-			for (long i = 0; i < numRecords; i++) {
+			for (long hash = frontier.nextSetBit(firstRecordIndex); hash >= 0
+					&& hash < endRecordIndex; hash = frontier
+					.nextSetBit(hash + 1)) {
+				game.hashToState(hash, state);
 				try {
-					long recordLong = db.readNextRecord(readHandle);
-					game.longToRecord(null, recordLong, rec);
+					game.longToRecord(state, db.readRecord(readHandle, hash),
+							rec);
 				} catch (IOException e) {
 					throw new Error(e);
 				}
-				if (rec.value != Value.UNDECIDED
-						&& rec.remoteness == currentRemoteness) {
-					state = game.hashToState(hash);
-					positionsFound++;
-					rec.previousPosition();
-					int numParents = uGame.possibleParents(state, parentStates);
-					for (int p = 0; p < numParents; p++) {
-						T parent = parentStates[p];
-						long parentHash = game.stateToHash(parent);
-						try {
-							long rightNowLong = db.readRecord(parentReadHandle,
+				assert rec.remoteness == currentRemoteness;
+				positionsFound++;
+				rec.previousPosition();
+				int numParents = uGame.possibleParents(state, parentStates);
+				for (int p = 0; p < numParents; p++) {
+					T parent = parentStates[p];
+					long parentHash = game.stateToHash(parent);
+					long recLong = game.recordToLong(parent, rec);
+					try {
+						// Retry if another thread changes the parent first
+						while (true) {
+							long rightNowLong = db.readRecord(readHandle,
 									parentHash);
 							game.longToRecord(parent, rightNowLong, rightNow);
-							if (rightNow.value == Value.UNDECIDED
-									|| rec.compareTo(rightNow) > 0) {
-								long recLong = game.recordToLong(parent, rec);
-								db.writeRecord(writeHandle, parentHash, recLong);
+							if (rightNow.value != Value.UNDECIDED
+									&& rec.compareTo(rightNow) <= 0)
+								break;
+							if (db.compareAndSetRecord(writeHandle,
+									parentHash, rightNowLong, recLong)) {
+								nextFrontier.set(parentHash);
+								break;
 							}
-						} catch (IOException e) {
-							throw new Error(e);
 						}
+					} catch (IOException e) {
+						throw new Error(e);
 					}
 				}
-				hash++;
 			}
-			BreadthFirstSolver.this.positionsFound += positionsFound;
+			BreadthFirstSolver.this.positionsFound.addAndGet(positionsFound);
 			confPool.release(conf);
 			tasksFinished.countDown();
 		}
@@ -135,10 +145,11 @@ public class BreadthFirstSolver<T extends State<T>> extends Solver {
 					} catch (IOException e) {
 						throw new Error(e);
 					}
+					nextFrontier.set(hash);
 				}
 				hash++;
 			}
-			positionsFound += primitivesFound;
+			positionsFound.addAndGet(primitivesFound);
 			confPool.release(conf);
 			tasksFinished.countDown();
 		}
@@ -172,10 +183,11 @@ public class BreadthFirstSolver<T extends State<T>> extends Solver {
 						r.value = game.primitiveValue(primitive);
 						r.remoteness = 0;
 						record = game.recordToLong(primitive, r);
-						db.writeRecord(dh, game.stateToHash(primitive), record);
+						long hash = game.stateToHash(primitive);
+						db.writeRecord(dh, hash, record);
+						nextFrontier.set(hash);
 					}
-					if (primitives.size() > 0)
-						positionsFound += primitives.size();
+					positionsFound.addAndGet(primitives.size());
 				}
 			} catch (IOException e) {
 				throw new Error(e);
@@ -191,7 +203,10 @@ public class BreadthFirstSolver<T extends State<T>> extends Solver {
 	private long[] splits = new long[0];
 	private int currentSplit = 0;
 	private CountDownLatch tasksFinished = new CountDownLatch(1);
-	private volatile long positionsFound = 0L;
+	private final AtomicLong positionsFound = new AtomicLong();
+	// The positions found at the current remoteness and those found while
+	// working on it (which will be at the next)
+	private ConcurrentBitSet frontier, nextFrontier;
 	private final Pool<Configuration> confPool = new Pool<Configuration>(
 			new Factory<Configuration>() {
 
@@ -213,10 +228,12 @@ public class BreadthFirstSolver<T extends State<T>> extends Solver {
 		}
 		if (currentSplit >= splits.length - 1 || !firstTaskFinished) {
 			tasksFinished.await();
-			if (positionsFound == 0)
-				return null;
-			if (firstTaskFinished || finitePrimitives)
+			if (firstTaskFinished || finitePrimitives) {
+				if (positionsFound.get() == 0)
+					return null;
 				addRemoteness();
+			} else
+				tasksFinished = new CountDownLatch(splits.length - 1);
 			firstTaskFinished = true;
 		}
 		return nextJob();
@@ -224,12 +241,13 @@ public class BreadthFirstSolver<T extends State<T>> extends Solver {
 
 	private Runnable nextJob() {
 		Runnable result;
+		long firstRecordIndex = splits[currentSplit];
+		long numRecords = splits[currentSplit + 1] - firstRecordIndex;
 		if (currentRemoteness == -1) {
-			result = new BreadthFirstPrimitiveTask(splits[currentSplit],
-					splits[currentSplit + 1]);
+			result = new BreadthFirstPrimitiveTask(firstRecordIndex,
+					numRecords);
 		} else {
-			result = new BreadthFirstParentTask(splits[currentSplit],
-					splits[currentSplit + 1]);
+			result = new BreadthFirstParentTask(firstRecordIndex, numRecords);
 		}
 		currentSplit++;
 		return result;
@@ -241,7 +259,11 @@ public class BreadthFirstSolver<T extends State<T>> extends Solver {
 					+ ": " + positionsFound);
 		currentRemoteness++;
 		currentSplit = 0;
-		positionsFound = 0;
+		positionsFound.set(0L);
+		ConcurrentBitSet finished = frontier;
+		frontier = nextFrontier;
+		finished.clear();
+		nextFrontier = finished;
 		tasksFinished = new CountDownLatch(splits.length - 1);
 	}
 }
@@ -6,21 +6,34 @@ import edu.berkeley.gamesman.core.Configuration;
 import edu.berkeley.gamesman.core.Record;
 import edu.berkeley.gamesman.database.Database;
 import edu.berkeley.gamesman.database.cache.RecordRangeCache;
+import edu.berkeley.gamesman.database.cache.SharedPageCache;
 import edu.berkeley.gamesman.database.cache.TierCache;
+import edu.berkeley.gamesman.util.DebugFacility;
 import edu.berkeley.gamesman.util.Progressable;
+import edu.berkeley.gamesman.util.Util;
 
 /**
  * A tier solver which wraps the database with a game-specific cache. Presumably
  * this cache will know how to retrieve large numbers of child records at a time
  * which will be needed when running sequentially through the positions in a
- * particular tier
+ * particular tier<br />
+ * The gamesman.memory bytes are divided between the threads' read and write
+ * caches by a {@link MemoryBudget}. Unless gamesman.solver.adaptive.memory is
+ * false, each task reports its read misses and write-backs and is given a new
+ * share whenever it starts a new chunk.<br />
+ * If gamesman.cache.shared is set, that many of those bytes are instead given
+ * to a {@link SharedPageCache} which every thread's read cache fills itself
+ * from, so that threads solving nearby positions read each page of their
+ * children's records from the database once (in pages of
+ * gamesman.cache.shared.page bytes, 64K by default).
  * 
  * @author dnspies
  */
 public class CacheTierSolver extends TierSolver {
-	private final long memPerThread;
-	private final long readMem, writeMem;
-	private final long writeRecords;
+	private static final int DEFAULT_PAGE_BYTES = 1 << 16;
+
+	private final SharedPageCache pages;
+	private final MemoryBudget budget;
 
 	/**
 	 * Use this constructor when solving the entire game
@@ -32,10 +45,8 @@ public class CacheTierSolver extends TierSolver {
 	 */
 	public CacheTierSolver(Configuration conf, Database db) {
 		super(conf, db);
-		memPerThread = conf.getNumBytes("gamesman.memory", 1L << 25) / nThreads;
-		readMem = memPerThread / 2;
-		writeMem = memPerThread / 2;
-		writeRecords = db.recordsForBytes(memPerThread / 2);
+		pages = newSharedCache(conf);
+		budget = newBudget(conf);
 	}
 
 	/**
@@ -59,10 +70,27 @@ public class CacheTierSolver extends TierSolver {
 	public CacheTierSolver(Configuration conf, Database db, int tier,
 			long firstHash, long numHashes, Progressable progress) {
 		super(conf, db, tier, firstHash, numHashes, progress);
-		memPerThread = conf.getNumBytes("gamesman.memory", 1L << 25) / nThreads;
-		readMem = memPerThread / 2;
-		writeMem = memPerThread / 2;
-		writeRecords = db.recordsForBytes(memPerThread / 2);
+		pages = newSharedCache(conf);
+		budget = newBudget(conf);
+	}
+
+	private SharedPageCache newSharedCache(Configuration conf) {
+		long sharedBytes = conf.getNumBytes("gamesman.cache.shared", 0L);
+		if (sharedBytes <= 0)
+			return null;
+		if (sharedBytes >= conf.getNumBytes("gamesman.memory", 1L << 25))
+			throw new Error("gamesman.cache.shared must be less than "
+					+ "gamesman.memory");
+		return new SharedPageCache(db, sharedBytes, (int) conf.getNumBytes(
+				"gamesman.cache.shared.page", DEFAULT_PAGE_BYTES));
+	}
+
+	private MemoryBudget newBudget(Configuration conf) {
+		long memory = conf.getNumBytes("gamesman.memory", 1L << 25);
+		if (pages != null)
+			memory -= conf.getNumBytes("gamesman.cache.shared", 0L);
+		return new MemoryBudget(memory, nThreads, conf.getBoolean(
+				"gamesman.solver.adaptive.memory", true));
 	}
 
 	/**
@@ -75,6 +103,11 @@ public class CacheTierSolver extends TierSolver {
 		private TierCache readCache;
 		private RecordRangeCache writeCache;
 		private int[] hints;
+		private long chunkEnd;
+		private long grant, writeRecords;
+		// Measured since the last report
+		private long lastReport, lastMisses, lastMissNanos;
+		private long writeBacks, writeNanos;
 
 		/**
 		 * @param firstRecordIndex
@@ -91,20 +124,79 @@ public class CacheTierSolver extends TierSolver {
 		public void prepareSolve() {
 			super.prepareSolve();
 			hints = new int[myGame.maxChildren()];
+			grant = budget.acquire(-1D);
+			long readMem = budget.readPart(grant);
 			readCache = myGame.getCache(db, readMem);
+			readCache.setSharedCache(pages);
 			writeCache = new RecordRangeCache(db);
-			writeCache.ensureByteCapacity(
-					(int) Math.min(Integer.MAX_VALUE, writeMem), false);
+			setWriteMemory(grant - readMem);
+			lastReport = System.nanoTime();
+		}
+
+		private void setWriteMemory(long writeMem) {
+			int writeBytes = writeCache.fitByteCapacity((int) Math.min(
+					Integer.MAX_VALUE, writeMem));
+			writeRecords = db.recordsForBytes(writeBytes);
+		}
+
+		@Override
+		protected void prepareChunk(long firstRecordIndex, long numRecords) {
+			// The previous chunk must be written out before the handle moves on
+			if (chunkEnd > this.firstRecordIndex) {
+				writeBack();
+				rebalance();
+			}
+			super.prepareChunk(firstRecordIndex, numRecords);
+			chunkEnd = firstRecordIndex + numRecords;
+			// Later ranges then begin on a group boundary if records are packed
+			long firstRecords = writeRecords
+					- (firstRecordIndex - db.myLogic.groupStart(firstRecordIndex));
 			writeCache.setRange(
 					firstRecordIndex,
 					(int) Math.min(Integer.MAX_VALUE,
-							Math.min(numRecords, writeRecords)));
+							Math.min(numRecords, firstRecords)));
 		}
 
 		@Override
 		public void solvePartialTier() {
 			super.solvePartialTier();
 			writeBack();
+			report();
+			budget.release(grant);
+		}
+
+		/**
+		 * Gives back this task's memory and takes a new share according to
+		 * how much of its time it has been spending on I/O
+		 */
+		private void rebalance() {
+			double stall = report();
+			budget.release(grant);
+			grant = budget.acquire(stall);
+			long readMem = budget.readPart(grant);
+			readCache.setAvailableMemory(readMem);
+			setWriteMemory(grant - readMem);
+		}
+
+		/**
+		 * Reports the misses and write-backs since the last report
+		 * 
+		 * @return The fraction of the time since then spent on them
+		 */
+		private double report() {
+			long now = System.nanoTime();
+			long misses = readCache.getMisses() - lastMisses;
+			long missNanos = readCache.getMissNanos() - lastMissNanos;
+			long elapsed = now - lastReport;
+			budget.report(currentState.tier, misses, missNanos, writeBacks,
+					writeNanos, elapsed);
+			double stall = elapsed > 0 ? (double) (missNanos + writeNanos)
+					/ elapsed : 0D;
+			lastMisses += misses;
+			lastMissNanos += missNanos;
+			writeBacks = writeNanos = 0L;
+			lastReport = now;
+			return Math.min(1D, stall);
 		}
 
 		@Override
@@ -117,18 +209,26 @@ public class CacheTierSolver extends TierSolver {
 
 		@Override
 		protected void store(long recordIndex, Record currentValue) {
+			write(recordIndex, myGame.recordToLong(currentValue));
+		}
+
+		@Override
+		protected void skip(long recordIndex) {
+			write(recordIndex, 0L);
+		}
+
+		private void write(long recordIndex, long record) {
 			if (!writeCache.containsRecord(recordIndex)) {
 				writeBack();
 				writeCache.setRange(recordIndex, (int) Math.min(
-						Integer.MAX_VALUE, Math.min(numRecords
-								- (recordIndex - firstRecordIndex),
+						Integer.MAX_VALUE, Math.min(chunkEnd - recordIndex,
 								writeRecords)));
 			}
-			writeCache.writeRecord(recordIndex,
-					myGame.recordToLong(currentValue));
+			writeCache.writeRecord(recordIndex, record);
 		}
 
 		private void writeBack() {
+			long start = System.nanoTime();
 			try {
 				writeCache.writeNextRecordsToDatabase(db, myWriteHandle,
 						writeCache.getFirstRecordIndex(),
@@ -136,6 +236,12 @@ public class CacheTierSolver extends TierSolver {
 			} catch (IOException e) {
 				throw new Error(e);
 			}
+			// Pages read for other ranges may hold some of these bytes
+			if (pages != null)
+				pages.invalidate(writeCache.getFirstByteIndex(),
+						writeCache.getNumBytes());
+			writeBacks++;
+			writeNanos += System.nanoTime() - start;
 		}
 	}
 
@@ -143,4 +249,12 @@ public class CacheTierSolver extends TierSolver {
 	protected TierSolveTask getSolveTask(long firstRecordIndex, long numRecords) {
 		return new CacheTierSolveTask(firstRecordIndex, numRecords);
 	}
+
+	@Override
+	protected void solveFinished() {
+		super.solveFinished();
+		if (pages != null)
+			Util.debug(DebugFacility.CACHE, "Shared cache: " + pages.getHits()
+					+ " page hits, " + pages.getMisses() + " page reads");
+	}
 }
@@ -99,8 +99,10 @@ public class CacheVISolver extends VISolver {
 			writeCache = rangeCaches.get();
 			writeCache.ensureByteCapacity(
 					(int) Math.min(Integer.MAX_VALUE, writeMem), false);
+			long firstRecords = writeRecords
+					- (firstIndex - db.myLogic.groupStart(firstIndex));
 			writeCache.setRange(firstIndex,
-					(int) Math.min(numIndices, writeRecords));
+					(int) Math.min(numIndices, firstRecords));
 			whichChildren = new int[myGame.maxChildren()];
 			readCache = myGame.getCache(db, readMem);
 		}
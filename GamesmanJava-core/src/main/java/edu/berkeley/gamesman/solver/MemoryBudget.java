@@ -0,0 +1,145 @@
+package edu.berkeley.gamesman.solver;
+
+import edu.berkeley.gamesman.util.DebugFacility;
+import edu.berkeley.gamesman.util.Util;
+
+/**
+ * Divides a fixed amount of cache memory between the threads of a solve, and
+ * each thread's share between its read and write caches.<br />
+ * Each thread reports how long it spent waiting on read-cache misses and
+ * write-backs. At the end of each tier the read fraction moves towards the
+ * read side's share of that tier's I/O time. A thread which spent more of its
+ * time on I/O than the others is granted more than an even share (up to
+ * twice as much) and one which spent less is granted less (down to half), but
+ * the grants never add up to more than the total.<br />
+ * If it is not adaptive, every thread gets an even share split in half.
+ */
+final class MemoryBudget {
+	private static final double MIN_READ_FRACTION = 0.1;
+	private static final double MAX_READ_FRACTION = 0.9;
+
+	private final long total;
+	private final int nThreads;
+	private final boolean adaptive;
+	private final long evenShare, minShare, maxShare;
+	private long free;
+	private int holders = 0;
+	private double readFraction = 0.5;
+	// Average fraction of time threads spend on I/O
+	private double averageStall = -1D;
+	// Totals for the tier being measured
+	private int tier = -1;
+	private long readMisses, readNanos, writeBacks, writeNanos;
+
+	/**
+	 * @param total
+	 *            The number of bytes to divide
+	 * @param nThreads
+	 *            The number of threads which will hold grants at once
+	 * @param adaptive
+	 *            Whether to adapt the division to what's measured
+	 */
+	MemoryBudget(long total, int nThreads, boolean adaptive) {
+		this.total = total;
+		this.nThreads = nThreads;
+		this.adaptive = adaptive;
+		evenShare = total / nThreads;
+		minShare = evenShare / 2;
+		maxShare = evenShare * 2;
+		free = total;
+	}
+
+	/**
+	 * Grants memory to a thread. It must be released before the thread asks
+	 * again.
+	 *
+	 * @param stall
+	 *            The fraction of its time the thread recently spent on I/O or
+	 *            a negative number if it's not known
+	 * @return The number of bytes granted
+	 */
+	synchronized long acquire(double stall) {
+		long grant = evenShare;
+		if (adaptive && stall >= 0 && averageStall >= 0) {
+			grant = (long) (evenShare * (1 + stall) / (1 + averageStall));
+			grant = Math.max(minShare, Math.min(maxShare, grant));
+		}
+		// Leave enough for every other thread to get its minimum
+		grant = Math.min(grant, free - Math.max(0, nThreads - holders - 1)
+				* minShare);
+		free -= grant;
+		holders++;
+		return grant;
+	}
+
+	/**
+	 * @param grant
+	 *            Memory which was granted
+	 */
+	synchronized void release(long grant) {
+		free += grant;
+		holders--;
+	}
+
+	/**
+	 * @param grant
+	 *            Memory which was granted
+	 * @return How much of it should go to the read cache
+	 */
+	synchronized long readPart(long grant) {
+		return (long) (grant * readFraction);
+	}
+
+	/**
+	 * Adds to the measurements of a tier. Once a thread reports on a new
+	 * tier, the last one's measurements are used and then discarded.
+	 *
+	 * @param tier
+	 *            The tier being solved
+	 * @param readMisses
+	 *            The number of read-cache misses
+	 * @param readNanos
+	 *            The time spent on them
+	 * @param writeBacks
+	 *            The number of times the write cache was written back
+	 * @param writeNanos
+	 *            The time spent on them
+	 * @param elapsedNanos
+	 *            The total time over which these were measured
+	 */
+	synchronized void report(int tier, long readMisses, long readNanos,
+			long writeBacks, long writeNanos, long elapsedNanos) {
+		if (!adaptive)
+			return;
+		if (tier != this.tier) {
+			if (this.tier >= 0)
+				adjust();
+			this.tier = tier;
+		}
+		this.readMisses += readMisses;
+		this.readNanos += readNanos;
+		this.writeBacks += writeBacks;
+		this.writeNanos += writeNanos;
+		if (elapsedNanos > 0) {
+			double stall = Math.min(1D, (double) (readNanos + writeNanos)
+					/ elapsedNanos);
+			averageStall = averageStall < 0 ? stall
+					: (averageStall * (nThreads - 1) + stall) / nThreads;
+		}
+	}
+
+	private void adjust() {
+		// A cache which doesn't count its misses tells nothing about them
+		if (readMisses > 0 && readNanos + writeNanos > 0) {
+			double target = (double) readNanos / (readNanos + writeNanos);
+			readFraction = Math.max(MIN_READ_FRACTION, Math.min(
+					MAX_READ_FRACTION, (readFraction + target) / 2));
+		}
+		Util.debugFormat(DebugFacility.SOLVER,
+				"Tier %d: %d read misses (%d ms), %d write-backs (%d ms); "
+						+ "read cache now %.0f%% of %d bytes", tier,
+				readMisses, readNanos / 1000000, writeBacks,
+				writeNanos / 1000000, readFraction * 100, total);
+		readMisses = readNanos = writeBacks = writeNanos = 0;
+	}
+}
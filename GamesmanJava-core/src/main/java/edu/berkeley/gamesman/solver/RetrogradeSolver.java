@@ -0,0 +1,497 @@
+package edu.berkeley.gamesman.solver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.core.Record;
+import edu.berkeley.gamesman.core.State;
+import edu.berkeley.gamesman.core.Value;
+import edu.berkeley.gamesman.database.Database;
+import edu.berkeley.gamesman.database.DatabaseHandle;
+import edu.berkeley.gamesman.database.util.DirectByteArray;
+import edu.berkeley.gamesman.game.Game;
+import edu.berkeley.gamesman.game.Undoable;
+import edu.berkeley.gamesman.util.ConcurrentBitSet;
+import edu.berkeley.gamesman.util.DebugFacility;
+import edu.berkeley.gamesman.util.Util;
+import edu.berkeley.gamesman.util.qll.Factory;
+import edu.berkeley.gamesman.util.qll.Pool;
+
+/**
+ * Solves a loopy game by retrograde analysis rather than by repeated passes
+ * over every position. The game must implement {@link Undoable}, and
+ * possibleParents must list a parent once for each of its moves which lead to
+ * the position.<br />
+ * The solve runs in five phases:
+ * <ol>
+ * <li>The positions reachable from the starting positions are found a move at
+ * a time.</li>
+ * <li>Every primitive position is stored. Every other position gets a count of
+ * its children which haven't been solved, unless it can't be reached, in which
+ * case it is stored as impossible.</li>
+ * <li>Solved positions are passed back to their parents a level (remoteness)
+ * at a time. A parent with a losing child is a win. Otherwise its count is
+ * decremented, and once it reaches zero the parent is solved from its
+ * children.</li>
+ * <li>Ties are passed back through the positions left over, since each player
+ * prefers a tie to a draw.</li>
+ * <li>Whatever remains is a draw.</li>
+ * </ol>
+ * Each edge of the game graph is visited a constant number of times. The
+ * counts are kept outside the Java heap in as few bytes per position as
+ * maxChildren allows, and reachable positions in one bit each. Counts are
+ * modified under striped locks so that any number of threads may work on a
+ * level at once.
+ *
+ * @param <S>
+ *            The game state
+ */
+public class RetrogradeSolver<S extends State<S>> extends Solver {
+	private static final int BLOCK_SIZE = 1 << 14;
+	private static final int NUM_LOCKS = 1024;
+	// The count for a position which has been solved
+	private static final int SOLVED = 0;
+
+	private enum Phase {
+		REACH, COUNT, WIN_LOSE, TIE, DRAW, DONE
+	}
+
+	/**
+	 * A list of hashes kept in blocks of at most BLOCK_SIZE, each of which is
+	 * handed to a single task
+	 */
+	private static final class HashList {
+		private final List<long[]> blocks = new ArrayList<long[]>();
+		private long[] current = new long[BLOCK_SIZE];
+		private int size = 0;
+
+		private void add(long hash) {
+			if (size == BLOCK_SIZE) {
+				blocks.add(current);
+				current = new long[BLOCK_SIZE];
+				size = 0;
+			}
+			current[size++] = hash;
+		}
+
+		private List<long[]> finish() {
+			if (size > 0)
+				blocks.add(Arrays.copyOf(current, size));
+			current = null;
+			return blocks;
+		}
+	}
+
+	private final Game<S> game;
+	private final int counterBytes;
+	private final DirectByteArray counters;
+	private final ConcurrentBitSet reached;
+	private final Object[] locks = new Object[NUM_LOCKS];
+	private final long[] splits;
+	private final Pool<Configuration> confPool = new Pool<Configuration>(
+			new Factory<Configuration>() {
+
+				@Override
+				public Configuration newObject() {
+					return conf.cloneAll();
+				}
+
+				@Override
+				public void reset(Configuration t) {
+				}
+			});
+
+	private Phase phase = null;
+	private int remoteness;
+	private final LinkedList<Runnable> jobs = new LinkedList<Runnable>();
+	private CountDownLatch tasksFinished = new CountDownLatch(0);
+	// Positions solved during the current level, to be passed back next
+	private final List<long[]> nextLevel = new ArrayList<long[]>();
+	// Blocks of tied positions indexed by remoteness
+	private final List<List<long[]>> ties = new ArrayList<List<long[]>>();
+	private long positionsFound, positionsReached;
+
+	/**
+	 * @param conf
+	 *            The configuration object
+	 * @param db
+	 *            The database to solve into
+	 */
+	public RetrogradeSolver(Configuration conf, Database db) {
+		super(conf, db);
+		game = conf.getCheckedGame();
+		if (!(game instanceof Undoable<?>))
+			throw new Error(game.getClass().getSimpleName()
+					+ " does not implement Undoable");
+		int bytes = 1;
+		while (game.maxChildren() + 1 >= 1L << (8 * bytes))
+			bytes++;
+		counterBytes = bytes;
+		long numHashes = game.numHashes();
+		counters = new DirectByteArray(numHashes * counterBytes);
+		reached = new ConcurrentBitSet(numHashes);
+		for (int i = 0; i < NUM_LOCKS; i++)
+			locks[i] = new Object();
+		splits = Util.getSplits(0L, numHashes, conf.getLong(
+				"gamesman.minimum.split.size", DEFAULT_MIN_SPLIT_SIZE), conf
+				.getInteger("gamesman.minimum.splits", nThreads), conf.getLong(
+				"gamesman.preferred.split.size", DEFAULT_PREFERRED_SPLIT_SIZE),
+				db.myLogic.recordsPerGroup);
+		Util.debug(DebugFacility.SOLVER, "Using " + counters.length()
+				+ " bytes for child counts");
+	}
+
+	private int counter(long hash) {
+		long index = hash * counterBytes;
+		int count = 0;
+		for (int i = 0; i < counterBytes; i++)
+			count |= (counters.get(index + i) & 255) << (8 * i);
+		return count;
+	}
+
+	private void setCounter(long hash, int count) {
+		long index = hash * counterBytes;
+		for (int i = 0; i < counterBytes; i++)
+			counters.put(index + i, (byte) (count >>> (8 * i)));
+	}
+
+	private Object lock(long hash) {
+		return locks[(int) (hash ^ (hash >>> 32)) & (NUM_LOCKS - 1)];
+	}
+
+	@Override
+	public Runnable nextAvailableJob() throws InterruptedException {
+		while (jobs.isEmpty()) {
+			tasksFinished.await();
+			if (!nextPhase())
+				return null;
+			tasksFinished = new CountDownLatch(jobs.size());
+		}
+		return jobs.remove();
+	}
+
+	/**
+	 * Moves on to the next level or phase of the solve and adds its jobs
+	 *
+	 * @return false if the solve is finished
+	 */
+	private boolean nextPhase() {
+		if (phase == null) {
+			System.out.println("Finding reachable positions");
+			phase = Phase.REACH;
+			HashList start = new HashList();
+			for (S pos : game.startingPositions()) {
+				long hash = game.stateToHash(pos);
+				if (reached.set(hash)) {
+					start.add(hash);
+					positionsFound++;
+				}
+			}
+			nextLevel.addAll(start.finish());
+		}
+		if (phase == Phase.REACH) {
+			positionsReached += positionsFound;
+			positionsFound = 0L;
+			if (nextLevel.isEmpty()) {
+				System.out.println(positionsReached + " reachable positions");
+				System.out.println("Counting children");
+				phase = Phase.COUNT;
+				for (int i = 0; i < splits.length - 1; i++)
+					jobs.add(new CountTask(splits[i], splits[i + 1]
+							- splits[i]));
+			} else {
+				for (long[] block : nextLevel)
+					jobs.add(new ReachTask(block));
+				nextLevel.clear();
+			}
+			return true;
+		}
+		if (phase == Phase.COUNT || phase == Phase.WIN_LOSE) {
+			if (phase == Phase.WIN_LOSE)
+				remoteness++;
+			phase = Phase.WIN_LOSE;
+			if (positionsFound > 0)
+				System.out.println("Positions at remoteness " + remoteness
+						+ ": " + positionsFound);
+			if (nextLevel.isEmpty()) {
+				System.out.println("Passing back ties");
+				phase = Phase.TIE;
+				remoteness = 0;
+			} else {
+				for (long[] block : nextLevel)
+					jobs.add(new WinLoseTask(block, remoteness));
+			}
+		} else if (phase == Phase.TIE)
+			remoteness++;
+		positionsFound = 0L;
+		if (phase == Phase.TIE) {
+			// Seeds found in the last phase join the ties found in this one
+			if (remoteness < ties.size())
+				nextLevel.addAll(ties.get(remoteness));
+			if (nextLevel.isEmpty() && remoteness >= ties.size()) {
+				System.out.println("Marking remaining positions as draws");
+				phase = Phase.DRAW;
+				for (int i = 0; i < splits.length - 1; i++)
+					jobs.add(new DrawTask(splits[i], splits[i + 1]
+							- splits[i]));
+			} else {
+				for (long[] block : nextLevel)
+					jobs.add(new TieTask(block, remoteness));
+			}
+		} else if (phase == Phase.DRAW)
+			phase = Phase.DONE;
+		nextLevel.clear();
+		return phase != Phase.DONE;
+	}
+
+	private abstract class RetrogradeTask implements Runnable {
+		protected Game<S> game;
+		protected Undoable<S> uGame;
+		protected DatabaseHandle readHandle, writeHandle;
+		protected S state;
+		protected S[] children, parents;
+		protected Record record;
+		protected Record[] childRecords;
+		private final HashList found = new HashList();
+		private final ArrayList<HashList> foundTies = new ArrayList<HashList>();
+		private long numFound = 0L;
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public final void run() {
+			// Not replaced until every task of this level has finished
+			CountDownLatch finished = tasksFinished;
+			Configuration conf = confPool.get();
+			game = conf.getCheckedGame();
+			uGame = (Undoable<S>) game;
+			readHandle = db.getHandle(true);
+			writeHandle = db.getHandle(false);
+			state = game.newState();
+			children = game.newStateArray(game.maxChildren());
+			parents = game.newStateArray(uGame.maxParents());
+			record = game.newRecord();
+			childRecords = game.newRecordArray(game.maxChildren());
+			try {
+				solve();
+			} catch (IOException e) {
+				throw new Error(e);
+			}
+			confPool.release(conf);
+			List<long[]> blocks = found.finish();
+			synchronized (RetrogradeSolver.this) {
+				nextLevel.addAll(blocks);
+				for (int r = 0; r < foundTies.size(); r++) {
+					if (foundTies.get(r) == null)
+						continue;
+					while (ties.size() <= r)
+						ties.add(new ArrayList<long[]>());
+					ties.get(r).addAll(foundTies.get(r).finish());
+				}
+				positionsFound += numFound;
+			}
+			finished.countDown();
+		}
+
+		protected abstract void solve() throws IOException;
+
+		/**
+		 * Stores a newly solved position and remembers it for the next level
+		 */
+		protected void store(long hash, S pos, Record rec) throws IOException {
+			db.writeRecord(writeHandle, hash, game.recordToLong(pos, rec));
+			if (rec.value == Value.IMPOSSIBLE)
+				return;
+			found(hash);
+			if (rec.value == Value.TIE && phase != Phase.TIE) {
+				while (foundTies.size() <= rec.remoteness)
+					foundTies.add(null);
+				if (foundTies.get(rec.remoteness) == null)
+					foundTies.set(rec.remoteness, new HashList());
+				foundTies.get(rec.remoteness).add(hash);
+			}
+		}
+
+		/**
+		 * Remembers a position for the next level
+		 */
+		protected void found(long hash) {
+			found.add(hash);
+			numFound++;
+		}
+
+		/**
+		 * @return The best record for pos given that all its children are
+		 *         solved
+		 */
+		protected Record fromChildren(S pos) throws IOException {
+			int numChildren = game.validMoves(pos, children);
+			for (int i = 0; i < numChildren; i++) {
+				game.longToRecord(children[i], db.readRecord(readHandle,
+						game.stateToHash(children[i])), childRecords[i]);
+				childRecords[i].previousPosition();
+			}
+			return game.combine(childRecords, 0, numChildren);
+		}
+	}
+
+	private class ReachTask extends RetrogradeTask {
+		private final long[] hashes;
+
+		private ReachTask(long[] hashes) {
+			this.hashes = hashes;
+		}
+
+		@Override
+		protected void solve() throws IOException {
+			for (long hash : hashes) {
+				game.hashToState(hash, state);
+				// The game ends at a primitive position
+				if (game.primitiveValue(state) != Value.UNDECIDED)
+					continue;
+				int numChildren = game.validMoves(state, children);
+				for (int i = 0; i < numChildren; i++) {
+					long childHash = game.stateToHash(children[i]);
+					if (reached.set(childHash))
+						found(childHash);
+				}
+			}
+		}
+	}
+
+	private class CountTask extends RetrogradeTask {
+		private final long firstHash, numHashes;
+
+		private CountTask(long firstHash, long numHashes) {
+			this.firstHash = firstHash;
+			this.numHashes = numHashes;
+		}
+
+		@Override
+		protected void solve() throws IOException {
+			for (long hash = firstHash; hash < firstHash + numHashes; hash++) {
+				game.hashToState(hash, state);
+				Value v = game.primitiveValue(state);
+				if (v != Value.UNDECIDED) {
+					setCounter(hash, SOLVED);
+					record.value = v;
+					record.remoteness = 0;
+					// No parent of an unreachable position needs it
+					if (reached.get(hash))
+						store(hash, state, record);
+					else
+						db.writeRecord(writeHandle, hash, game.recordToLong(
+								state, record));
+				} else if (!reached.get(hash)) {
+					setCounter(hash, SOLVED);
+					record.value = Value.IMPOSSIBLE;
+					store(hash, state, record);
+				} else
+					setCounter(hash, game.validMoves(state, children) + 1);
+			}
+		}
+	}
+
+	private class WinLoseTask extends RetrogradeTask {
+		private final long[] hashes;
+		private final int remoteness;
+
+		private WinLoseTask(long[] hashes, int remoteness) {
+			this.hashes = hashes;
+			this.remoteness = remoteness;
+		}
+
+		@Override
+		protected void solve() throws IOException {
+			for (long hash : hashes) {
+				game.hashToState(hash, state);
+				game.longToRecord(state, db.readRecord(readHandle, hash),
+						record);
+				assert record.value != Value.WIN && record.value != Value.LOSE
+						|| record.remoteness == remoteness;
+				record.previousPosition();
+				boolean win = record.value == Value.WIN;
+				int numParents = uGame.possibleParents(state, parents);
+				for (int i = 0; i < numParents; i++) {
+					long parentHash = game.stateToHash(parents[i]);
+					synchronized (lock(parentHash)) {
+						// One more than the number of unsolved children
+						int count = counter(parentHash);
+						if (count == SOLVED)
+							continue;
+						assert count > 1;
+						if (win || count == 2)
+							setCounter(parentHash, SOLVED);
+						else {
+							setCounter(parentHash, count - 1);
+							continue;
+						}
+					}
+					if (win)
+						store(parentHash, parents[i], record);
+					else
+						store(parentHash, parents[i], fromChildren(parents[i]));
+				}
+			}
+		}
+	}
+
+	private class TieTask extends RetrogradeTask {
+		private final long[] hashes;
+		private final int remoteness;
+
+		private TieTask(long[] hashes, int remoteness) {
+			this.hashes = hashes;
+			this.remoteness = remoteness;
+		}
+
+		@Override
+		protected void solve() throws IOException {
+			for (long hash : hashes) {
+				game.hashToState(hash, state);
+				record.value = Value.TIE;
+				record.remoteness = remoteness + 1;
+				int numParents = uGame.possibleParents(state, parents);
+				for (int i = 0; i < numParents; i++) {
+					long parentHash = game.stateToHash(parents[i]);
+					synchronized (lock(parentHash)) {
+						if (counter(parentHash) == SOLVED)
+							continue;
+						setCounter(parentHash, SOLVED);
+					}
+					store(parentHash, parents[i], record);
+				}
+			}
+		}
+	}
+
+	private class DrawTask extends RetrogradeTask {
+		private final long firstHash, numHashes;
+
+		private DrawTask(long firstHash, long numHashes) {
+			this.firstHash = firstHash;
+			this.numHashes = numHashes;
+		}
+
+		@Override
+		protected void solve() throws IOException {
+			record.value = Value.DRAW;
+			record.remoteness = 0;
+			long draws = 0L;
+			for (long hash = firstHash; hash < firstHash + numHashes; hash++) {
+				if (counter(hash) != SOLVED) {
+					game.hashToState(hash, state);
+					db.writeRecord(writeHandle, hash, game.recordToLong(state,
+							record));
+					draws++;
+				}
+			}
+			Util.debug(DebugFacility.SOLVER, draws + " draws in " + firstHash
+					+ "-" + (firstHash + numHashes));
+		}
+	}
+}
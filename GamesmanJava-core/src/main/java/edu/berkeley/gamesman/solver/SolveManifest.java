@@ -0,0 +1,280 @@
+package edu.berkeley.gamesman.solver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.berkeley.gamesman.core.Configuration;
+
+/**
+ * A record of how far a solve has progressed, kept in a text file next to the
+ * database so that a solve which was killed can be resumed. The file is a
+ * header line followed by one line for each range of records written
+ * ("split tier first end"), each finished tier ("tier tier") and finally
+ * "done". Lines are only ever appended, and the solver appends a line only
+ * once the records it describes have been flushed, so everything the file
+ * claims is on disk. A line left half-written by a crash is dropped when the
+ * manifest is next opened.<br />
+ * Checkpointing is enabled by gamesman.solver.checkpoint and needs a database
+ * which can be flushed at any time, so it is refused for databases which only
+ * write in order (such as GZippedFileDatabase). The file is
+ * gamesman.solver.manifest, or the database file with ".manifest" appended.
+ */
+public final class SolveManifest implements Closeable {
+	private static final String HEADER = "gamesman-manifest";
+
+	private final String path;
+	private final RandomAccessFile file;
+	private final BitSet finishedTiers = new BitSet();
+	// For each tier, the start of each finished range mapped to its end
+	private final Map<Integer, TreeMap<Long, Long>> finishedRanges = new HashMap<Integer, TreeMap<Long, Long>>();
+	private boolean started = false;
+	private boolean done = false;
+
+	/**
+	 * Opens (or creates) a manifest
+	 *
+	 * @param path
+	 *            The manifest file
+	 * @param numHashes
+	 *            The number of records in the database being solved. A
+	 *            manifest written for a different size of database is refused.
+	 * @throws IOException
+	 *             If the file can't be read or written
+	 */
+	public SolveManifest(String path, long numHashes) throws IOException {
+		this.path = path;
+		file = new RandomAccessFile(path, "rw");
+		String header = HEADER + " " + numHashes;
+		String line = file.readLine();
+		// The header may itself have been cut short
+		boolean complete = line != null
+				&& (file.getFilePointer() < file.length() || endsWithNewline(
+						file));
+		if (line != null
+				&& !(complete ? line.equals(header) : header.startsWith(line)))
+			throw new Error(path + " is not a manifest for this solve ("
+					+ line + ")");
+		if (!complete) {
+			file.setLength(0L);
+			file.writeBytes(header + "\n");
+			file.getFD().sync();
+			return;
+		}
+		long validLength = file.getFilePointer();
+		while ((line = file.readLine()) != null) {
+			// A crash may have cut the last line short
+			if (file.getFilePointer() == file.length()
+					&& !endsWithNewline(file))
+				break;
+			if (!parse(line))
+				break;
+			validLength = file.getFilePointer();
+		}
+		file.setLength(validLength);
+		file.seek(validLength);
+	}
+
+	private static boolean endsWithNewline(RandomAccessFile file)
+			throws IOException {
+		file.seek(file.length() - 1);
+		boolean newline = file.read() == '\n';
+		file.seek(file.length());
+		return newline;
+	}
+
+	private boolean parse(String line) {
+		String[] fields = line.split(" ");
+		try {
+			if (fields[0].equals("split") && fields.length == 4) {
+				addRange(Integer.parseInt(fields[1]),
+						Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+			} else if (fields[0].equals("tier") && fields.length == 2) {
+				finishedTiers.set(Integer.parseInt(fields[1]));
+			} else if (fields[0].equals("done") && fields.length == 1) {
+				done = true;
+			} else
+				return false;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		started = true;
+		return true;
+	}
+
+	private void addRange(int tier, long first, long end) {
+		TreeMap<Long, Long> ranges = finishedRanges.get(tier);
+		if (ranges == null) {
+			ranges = new TreeMap<Long, Long>();
+			finishedRanges.put(tier, ranges);
+		}
+		// Merge with any range it touches
+		Map.Entry<Long, Long> before = ranges.floorEntry(first);
+		if (before != null && before.getValue() >= first) {
+			first = before.getKey();
+			end = Math.max(end, before.getValue());
+			ranges.remove(before.getKey());
+		}
+		Map.Entry<Long, Long> after;
+		while ((after = ranges.ceilingEntry(first)) != null
+				&& after.getKey() <= end) {
+			end = Math.max(end, after.getValue());
+			ranges.remove(after.getKey());
+		}
+		ranges.put(first, end);
+	}
+
+	/**
+	 * @param conf
+	 *            The configuration object
+	 * @return The manifest for this job's database or null if
+	 *         gamesman.solver.checkpoint is not set
+	 */
+	public static SolveManifest open(Configuration conf) {
+		if (!conf.getBoolean("gamesman.solver.checkpoint", false))
+			return null;
+		String path = conf.getProperty("gamesman.solver.manifest",
+				conf.getProperty("gamesman.db.uri") + ".manifest");
+		try {
+			return new SolveManifest(path, conf.getGame().numHashes());
+		} catch (IOException e) {
+			throw new Error(e);
+		}
+	}
+
+	/**
+	 * @return The manifest file
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return Whether anything has been recorded as finished
+	 */
+	public synchronized boolean isStarted() {
+		return started;
+	}
+
+	/**
+	 * @return Whether the whole solve has finished
+	 */
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * @param tier
+	 *            A tier
+	 * @return Whether that tier has finished
+	 */
+	public synchronized boolean isFinished(int tier) {
+		return finishedTiers.get(tier);
+	}
+
+	/**
+	 * Finds the parts of a range which haven't been recorded as finished
+	 *
+	 * @param tier
+	 *            The tier containing the range
+	 * @param first
+	 *            The first record in the range
+	 * @param num
+	 *            The number of records in the range
+	 * @return The start and end of each unfinished part, in order, one after
+	 *         the other
+	 */
+	public synchronized long[] unfinished(int tier, long first, long num) {
+		long end = first + num;
+		ArrayList<Long> bounds = new ArrayList<Long>();
+		long next = first;
+		TreeMap<Long, Long> ranges = finishedRanges.get(tier);
+		if (ranges != null && !finishedTiers.get(tier)) {
+			Map.Entry<Long, Long> before = ranges.floorEntry(first);
+			if (before != null && before.getValue() > next)
+				next = before.getValue();
+			for (Map.Entry<Long, Long> range : ranges.subMap(first, end)
+					.entrySet()) {
+				if (range.getKey() > next) {
+					bounds.add(next);
+					bounds.add(range.getKey());
+				}
+				next = Math.max(next, range.getValue());
+			}
+		} else if (finishedTiers.get(tier))
+			next = end;
+		if (next < end) {
+			bounds.add(next);
+			bounds.add(end);
+		}
+		long[] result = new long[bounds.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = bounds.get(i);
+		return result;
+	}
+
+	/**
+	 * Records that a range of records has been written. The records must
+	 * already have been flushed.
+	 *
+	 * @param tier
+	 *            The tier containing the range
+	 * @param first
+	 *            The first record in the range
+	 * @param end
+	 *            The end of the range (exclusive)
+	 * @throws IOException
+	 *             If the manifest can't be written
+	 */
+	public synchronized void finishRange(int tier, long first, long end)
+			throws IOException {
+		addRange(tier, first, end);
+		append("split " + tier + " " + first + " " + end);
+	}
+
+	/**
+	 * Records that a tier has finished. Its records must already have been
+	 * flushed.
+	 *
+	 * @param tier
+	 *            The tier
+	 * @throws IOException
+	 *             If the manifest can't be written
+	 */
+	public synchronized void finishTier(int tier) throws IOException {
+		if (finishedTiers.get(tier))
+			return;
+		finishedTiers.set(tier);
+		finishedRanges.remove(tier);
+		append("tier " + tier);
+	}
+
+	/**
+	 * Records that the solve has finished
+	 *
+	 * @throws IOException
+	 *             If the manifest can't be written
+	 */
+	public synchronized void finishSolve() throws IOException {
+		if (done)
+			return;
+		done = true;
+		append("done");
+	}
+
+	private void append(String line) throws IOException {
+		file.writeBytes(line + "\n");
+		file.getFD().sync();
+		started = true;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		file.close();
+	}
+}
@@ -1,10 +1,14 @@
 package edu.berkeley.gamesman.solver;
 
 import java.util.LinkedList;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.berkeley.gamesman.core.Configuration;
 import edu.berkeley.gamesman.database.Database;
@@ -27,11 +31,18 @@ public abstract class Solver {
 
 		@Override
 		public void run() {
+			long start = System.nanoTime();
 			try {
 				inner.run();
+				// Rather than sit idle, help with jobs which are already running
+				Runnable stolen;
+				while (jobQueue.isEmpty() && (stolen = stealJob()) != null)
+					stolen.run();
 			} catch (Throwable t) {
 				fail(t);
 				mainThread.interrupt();
+			} finally {
+				busyNanos.addAndGet(System.nanoTime() - start);
 			}
 		}
 
@@ -57,6 +68,8 @@ public abstract class Solver {
 	protected Database db;
 	protected Configuration conf;
 	private ExecutorService solverService;
+	private BlockingQueue<Runnable> jobQueue;
+	private final AtomicLong busyNanos = new AtomicLong();
 
 	/**
 	 * Set the Database to use for this solver
@@ -92,14 +105,33 @@ public abstract class Solver {
 	public abstract Runnable nextAvailableJob() throws InterruptedException;
 
 	/**
-	 * Starts solving the game using a FixedThreadPool
+	 * Called by a thread which has finished its job when no other job is
+	 * waiting to be run. A solver whose jobs can be divided while they run
+	 * may return part of one here, which the calling thread then runs. By
+	 * default nothing is stolen.
+	 * 
+	 * @return A job split off from one which is still running or null if
+	 *         there is nothing worth taking
+	 */
+	protected Runnable stealJob() {
+		return null;
+	}
+
+	/**
+	 * Starts solving the game using a fixed pool of threads. A thread which
+	 * finishes its job while no others are waiting may steal work from one
+	 * which is still running (see {@link #stealJob()}).
 	 */
 	public final void solve() {
 		System.out.println("Beginning solve for " + conf.getGame().describe()
 				+ " using " + getClass().getSimpleName());
 		long startTime = System.currentTimeMillis();
+		long startNanos = System.nanoTime();
+		busyNanos.set(0L);
 		mainThread = Thread.currentThread();
-		solverService = Executors.newFixedThreadPool(nThreads);
+		jobQueue = new LinkedBlockingQueue<Runnable>();
+		solverService = new ThreadPoolExecutor(nThreads, nThreads, 0L,
+				TimeUnit.MILLISECONDS, jobQueue);
 		Runnable nextJob = null;
 		LinkedList<Future<?>> fQueue = new LinkedList<Future<?>>();
 		while (true) {
@@ -125,11 +157,29 @@ public abstract class Solver {
 		} catch (ExecutionException e) {
 			fail(e.getCause());
 		}
+		if (failed == null) {
+			try {
+				solveFinished();
+			} catch (Throwable t) {
+				fail(t);
+			}
+		}
 		if (failed != null)
 			error();
-		else
+		else {
 			System.out.println("Solve completed in "
 					+ Util.millisToETA(System.currentTimeMillis() - startTime));
+			long threadNanos = (System.nanoTime() - startNanos) * nThreads;
+			System.out.printf("Solver threads were idle %.1f%% of the time%n",
+					100D * (threadNanos - busyNanos.get()) / threadNanos);
+		}
+	}
+
+	/**
+	 * Called once every job has finished successfully. Does nothing by
+	 * default.
+	 */
+	protected void solveFinished() {
 	}
 
 	private void error() {
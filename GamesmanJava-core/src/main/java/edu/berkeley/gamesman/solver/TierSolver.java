@@ -1,7 +1,11 @@
 package edu.berkeley.gamesman.solver;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.berkeley.gamesman.core.Configuration;
 import edu.berkeley.gamesman.core.Record;
@@ -20,7 +24,26 @@ import edu.berkeley.gamesman.util.qll.Pool;
  * A tier solver solves a TierGame by taking advantage of its tier structure. It
  * solves each tier in sequence starting from the highest-indexed tier and
  * working backwards to the beginning of the game. This solver is particularly
- * useful because of how easily it can be parallelized.
+ * useful because of how easily it can be parallelized.<br />
+ * Normally every split of a tier must finish before the next tier starts. If
+ * gamesman.solver.pipeline is true and the game can bound the children of a
+ * split (see {@link TierGame#childHashRange(long, long)}), a split instead
+ * starts as soon as the splits it reads from have finished. The database must
+ * then allow reading one tier while others are still being written. If the
+ * database shares records between positions of a tier (see
+ * {@link Database#sharesRecords()}), a split waits for the whole of each tier
+ * its children are in.<br />
+ * Unless gamesman.solver.steal is false, each split claims its range a chunk
+ * at a time, taking smaller chunks as it nears its end. A thread with nothing
+ * left to do takes the back half of the unclaimed part of the largest running
+ * split and solves it as a new split with its own handles, so that splits
+ * full of primitive positions don't leave threads idle at the end of a tier.<br />
+ * If gamesman.solver.checkpoint is true, progress is recorded in a
+ * {@link SolveManifest}. At most every gamesman.solver.checkpoint.interval
+ * seconds (300 by default) and at the end of each tier, the database is
+ * flushed and the splits finished since the last checkpoint are added to the
+ * manifest. A solve started again with the same manifest skips the tiers and
+ * splits it lists.
  * 
  * @author DNSpies
  */
@@ -38,21 +61,105 @@ public class TierSolver extends Solver {
 		protected TierState currentState;
 		private Record currentValue;
 		protected TierState[] childStates;
+		// Null once the game turns out not to give its children's hashes
+		private long[] childHashes;
 		protected Record[] childRecords;
+		private final int tier = currentTier;
+		private final CountDownLatch tierFinished = tasksFinished;
+		private final CountDownLatch finished = new CountDownLatch(1);
+		// The split this task was stolen from (or this one) and the number of
+		// its pieces which haven't finished
+		private TierSolveTask root = this;
+		private final AtomicInteger pieces = new AtomicInteger(1);
+		// The end of this task's range (moved back when its tail is stolen) and
+		// the end of the part it has claimed
+		private long end, claimed;
 
 		public TierSolveTask(long firstRecordIndex, long numRecords) {
 			this.firstRecordIndex = firstRecordIndex;
 			this.numRecords = numRecords;
+			end = firstRecordIndex + numRecords;
+			claimed = firstRecordIndex;
 			myReadHandle = db.getHandle(true);
 			myWriteHandle = db.getHandle(false);
 		}
 
+		private boolean overlaps(long first, long end) {
+			return firstRecordIndex < end
+					&& firstRecordIndex + numRecords > first;
+		}
+
 		@Override
 		public final void run() {
 			prepareSolve();
+			if (stealing)
+				synchronized (running) {
+					running.add(this);
+				}
 			solvePartialTier();
+			if (stealing)
+				synchronized (running) {
+					running.remove(this);
+				}
 			confPool.release(conf);
-			tasksFinished.countDown();
+			if (manifest != null)
+				rangeFinished(root.tier, firstRecordIndex, claim());
+			root.pieceFinished();
+		}
+
+		private void pieceFinished() {
+			if (pieces.decrementAndGet() == 0) {
+				// Held so that this tier is recorded before any later one
+				synchronized (uncheckpointed) {
+					tierFinished.countDown();
+					if (tierFinished.getCount() == 0)
+						tierFinished(tier);
+				}
+				finished.countDown();
+			}
+		}
+
+		/**
+		 * Claims the next chunk of this task's range so that it can no longer
+		 * be stolen
+		 * 
+		 * @return The end of the chunk (the end of the last one if nothing is
+		 *         left)
+		 */
+		private synchronized long claim() {
+			if (claimed < end) {
+				long next = end;
+				if (stealing) {
+					next = db.myLogic.groupStart(claimed
+							+ Math.max(minSplitSize, (end - claimed)
+									/ CLAIM_FRACTION));
+					if (next <= claimed)
+						next = db.myLogic.groupStart(claimed)
+								+ db.myLogic.recordsPerGroup;
+				}
+				claimed = Math.min(next, end);
+			}
+			return claimed;
+		}
+
+		private synchronized long unclaimed() {
+			return end - claimed;
+		}
+
+		/**
+		 * Gives up the back half of the unclaimed part of this task's range
+		 * 
+		 * @return A new task for that half or null if it is too small to split
+		 */
+		private synchronized TierSolveTask split() {
+			long mid = db.myLogic.groupStart(claimed + (end - claimed) / 2);
+			if (mid - claimed < minSplitSize || end - mid < minSplitSize)
+				return null;
+			TierSolveTask piece = getSolveTask(mid, end - mid);
+			piece.root = root;
+			root.pieces.incrementAndGet();
+			end = mid;
+			return piece;
 		}
 
 		public void prepareSolve() {
@@ -62,7 +169,20 @@ public class TierSolver extends Solver {
 			myGame.setState(currentState);
 			currentValue = myGame.newRecord();
 			childStates = myGame.newStateArray(myGame.maxChildren());
+			childHashes = new long[myGame.maxChildren()];
 			childRecords = myGame.newRecordArray(myGame.maxChildren());
+		}
+
+		/**
+		 * Prepares to write a chunk of this task's range. Every record in the
+		 * chunk is stored before the next chunk is prepared.
+		 * 
+		 * @param firstRecordIndex
+		 *            The first record in the chunk
+		 * @param numRecords
+		 *            The number of records in the chunk
+		 */
+		protected void prepareChunk(long firstRecordIndex, long numRecords) {
 			try {
 				db.prepareWriteRecordRange(myWriteHandle, firstRecordIndex,
 						numRecords);
@@ -81,29 +201,37 @@ public class TierSolver extends Solver {
 			long hash = firstRecordIndex;
 			int lastCount = (int) (firstRecordIndex % stepSize);
 			int modCount = lastCount;
-			for (long trial = 0; trial < numRecords; trial++) {
-				if (modCount == stepSize) {
-					addFinished(modCount - lastCount);
-					modCount = 0;
-					lastCount = 0;
+			long chunkEnd;
+			while ((chunkEnd = claim()) > hash) {
+				prepareChunk(hash, chunkEnd - hash);
+				for (; hash < chunkEnd; hash++) {
+					if (modCount == stepSize) {
+						addFinished(root.tier, modCount - lastCount);
+						modCount = 0;
+						lastCount = 0;
+					}
+					if (hash > firstRecordIndex)
+						myGame.nextHashInTier();
+					myGame.getState(currentState);
+					if (!db.keepsRecord(hash)) {
+						skip(hash);
+						modCount++;
+						continue;
+					}
+					Value v = myGame.primitiveValue();
+					if (v == Value.UNDECIDED) {
+						int numChildren = fetchChildren(currentValue);
+						currentValue.set(combineChildren(numChildren));
+						store(hash, currentValue);
+					} else {
+						currentValue.value = v;
+						currentValue.remoteness = 0;
+						store(hash, currentValue);
+					}
+					modCount++;
 				}
-				myGame.getState(currentState);
-				Value v = myGame.primitiveValue();
-				if (v == Value.UNDECIDED) {
-					int numChildren = fetchChildren(currentValue);
-					currentValue.set(combineChildren(numChildren));
-					store(hash, currentValue);
-				} else {
-					currentValue.value = v;
-					currentValue.remoteness = 0;
-					store(hash, currentValue);
-				}
-				if (trial < numRecords - 1)
-					myGame.nextHashInTier();
-				hash++;
-				modCount++;
 			}
-			addFinished(modCount - lastCount);
+			addFinished(root.tier, modCount - lastCount);
 		}
 
 		/**
@@ -115,6 +243,12 @@ public class TierSolver extends Solver {
 		 * @return The number of children for this position
 		 */
 		protected int fetchChildren(Record currentValue) {
+			if (childHashes != null) {
+				int numChildren = fetchChildHashes();
+				if (numChildren >= 0)
+					return numChildren;
+				childHashes = null;
+			}
 			int numChildren = myGame.validMoves(childStates);
 			for (int i = 0; i < numChildren; i++) {
 				try {
@@ -129,6 +263,32 @@ public class TierSolver extends Solver {
 			return numChildren;
 		}
 
+		/**
+		 * Fetches the children using the hashes the game gives for them. The
+		 * records are unhashed against one state holding only the children's
+		 * tier, which TierGame.validMoveHashes requires to be enough.
+		 * 
+		 * @return The number of children for this position or -1 if the game
+		 *         can't give their hashes
+		 */
+		private int fetchChildHashes() {
+			int numChildren = myGame.validMoveHashes(childHashes);
+			if (numChildren < 0)
+				return -1;
+			TierState child = childStates[0];
+			child.tier = currentState.tier + 1;
+			for (int i = 0; i < numChildren; i++) {
+				try {
+					myGame.longToRecord(child,
+							db.readRecord(myReadHandle, childHashes[i]),
+							childRecords[i]);
+				} catch (IOException e) {
+					throw new Error(e);
+				}
+			}
+			return numChildren;
+		}
+
 		/**
 		 * Takes the list of children from childRecords and the number of
 		 * children and flips and combines them to generate the corresponding
@@ -155,13 +315,36 @@ public class TierSolver extends Solver {
 			}
 		}
 
+		/**
+		 * Passes over a position whose record the database doesn't keep,
+		 * writing a placeholder in its place
+		 * 
+		 * @param recordIndex
+		 *            The hash of the position
+		 */
+		protected void skip(long recordIndex) {
+			try {
+				db.writeNextRecord(myWriteHandle, 0L);
+			} catch (IOException e) {
+				throw new Error(e);
+			}
+		}
+
 	}
 
+	/**
+	 * A running split claims this fraction of what remains of its range at a
+	 * time (but never less than the minimum split size)
+	 */
+	private static final int CLAIM_FRACTION = 8;
+
 	protected final long minSplitSize;
 	protected int currentTier;
 	protected TierGame myGame;
 	protected CountDownLatch tasksFinished = new CountDownLatch(0);
 	protected long[] splits = new long[0];
+	// When resuming, which splits are already finished
+	private boolean[] skipSplit = new boolean[0];
 	protected int currentSplit;
 	final Pool<Configuration> confPool = new Pool<Configuration>(
 			new Factory<Configuration>() {
@@ -182,6 +365,17 @@ public class TierSolver extends Solver {
 	private volatile long recordsFinished;
 	protected final int minSplits;
 	protected final long preferredSplitSize;
+	private final boolean pipeline;
+	// Splits handed out (when pipelining) which may not have finished yet
+	private final LinkedList<TierSolveTask> unfinished = new LinkedList<TierSolveTask>();
+	private final boolean stealing;
+	// Tasks which are solving and may be stolen from
+	private final LinkedList<TierSolveTask> running = new LinkedList<TierSolveTask>();
+	private final SolveManifest manifest;
+	private final long checkpointInterval;
+	private long lastCheckpoint = System.currentTimeMillis();
+	// Ranges (tier, first, end) finished since the last checkpoint
+	private final LinkedList<long[]> uncheckpointed = new LinkedList<long[]>();
 
 	public TierSolver(Configuration conf, Database db) {
 		super(conf, db);
@@ -195,9 +389,24 @@ public class TierSolver extends Solver {
 				DEFAULT_PREFERRED_SPLIT_SIZE);
 		wholeGame = true;
 		progress = null;
+		pipeline = conf.getBoolean("gamesman.solver.pipeline", false);
+		stealing = conf.getBoolean("gamesman.solver.steal", true);
+		if (conf.getBoolean("gamesman.solver.checkpoint", false)
+				&& !db.supportsRandomWrites())
+			throw new Error("Checkpointing needs a database which can be "
+					+ "flushed at any time, which "
+					+ conf.getProperty("gamesman.database") + " can't");
+		manifest = SolveManifest.open(conf);
+		checkpointInterval = conf.getLong(
+				"gamesman.solver.checkpoint.interval", 300L) * 1000L;
+		if (manifest != null && manifest.isStarted())
+			System.out.println("Resuming from " + manifest.getPath());
 	}
 
-	private void addFinished(long hashes) {
+	private void addFinished(int tier, long hashes) {
+		// Splits of a tier which has been left behind no longer count
+		if (tier != currentTier)
+			return;
 		recordsFinished += hashes;
 		Util.debug(DebugFacility.SOLVER, (wholeGame ? "Tier " + currentTier
 				+ " " : "")
@@ -239,28 +448,102 @@ public class TierSolver extends Solver {
 		this.numHashes = numHashes;
 		wholeGame = false;
 		splits = Util.getSplits(firstHash, numHashes, minSplitSize, minSplits,
-				preferredSplitSize);
+				preferredSplitSize, db.myLogic.recordsPerGroup);
 		currentSplit = 0;
 		tasksFinished = new CountDownLatch(splits.length - 1);
+		skipSplit = new boolean[splits.length - 1];
 		this.progress = progress;
+		pipeline = false;
+		stealing = conf.getBoolean("gamesman.solver.steal", true);
+		manifest = null;
+		checkpointInterval = 0L;
 	}
 
 	@Override
 	public Runnable nextAvailableJob() throws InterruptedException {
-		if (currentSplit >= splits.length - 1) {
+		while (currentSplit < splits.length - 1 && skipSplit[currentSplit])
+			currentSplit++;
+		while (currentSplit >= splits.length - 1) {
 			if (currentTier == 0 || !wholeGame)
 				return null;
-			tasksFinished.await();
+			if (!pipeline)
+				tasksFinished.await();
 			decrTier();
+			while (currentSplit < splits.length - 1 && skipSplit[currentSplit])
+				currentSplit++;
 		}
+		if (pipeline)
+			awaitChildren(splits[currentSplit], splits[currentSplit + 1]
+					- splits[currentSplit]);
 		return nextJob();
 	}
 
+	/**
+	 * Waits for every unfinished split in a later tier which the children of
+	 * this range might be read from (all of them if the game can't say), or
+	 * which shares a packed group with it
+	 */
+	private void awaitChildren(long firstRecordIndex, long numRecords)
+			throws InterruptedException {
+		long[] range = myGame.childHashRange(firstRecordIndex, numRecords);
+		if (range != null && db.sharesRecords() && range[1] > range[0]) {
+			// A child's record may be stored anywhere in its tier
+			range = new long[] {
+					myGame.hashOffsetForTier(myGame.hashToTier(range[0])),
+					myGame.hashOffsetForTier(myGame
+							.hashToTier(range[1] - 1) + 1) };
+		}
+		long firstShared = db.myLogic.groupStart(firstRecordIndex);
+		long endShared = db.myLogic.groupStart(firstRecordIndex
+				+ numRecords - 1) + db.myLogic.recordsPerGroup;
+		Iterator<TierSolveTask> it = unfinished.iterator();
+		while (it.hasNext()) {
+			TierSolveTask task = it.next();
+			if (task.finished.getCount() == 0)
+				it.remove();
+			else if (task.tier != currentTier
+					&& (range == null
+							|| task.overlaps(range[0], range[1]) || task
+							.overlaps(firstShared, endShared))) {
+				task.finished.await();
+				it.remove();
+			}
+		}
+	}
+
+	@Override
+	protected Runnable stealJob() {
+		if (!stealing)
+			return null;
+		synchronized (running) {
+			TierSolveTask victim = null;
+			long most = 0L;
+			for (TierSolveTask task : running) {
+				long unclaimed = task.unclaimed();
+				if (unclaimed > most) {
+					victim = task;
+					most = unclaimed;
+				}
+			}
+			if (victim == null)
+				return null;
+			TierSolveTask piece = victim.split();
+			if (piece != null)
+				Util.debug(DebugFacility.SOLVER, "Stole records "
+						+ piece.firstRecordIndex + "-"
+						+ (piece.firstRecordIndex + piece.numRecords));
+			return piece;
+		}
+	}
+
 	protected Runnable nextJob() {
 		long firstRecordIndex = splits[currentSplit], numRecords = splits[currentSplit + 1]
 				- firstRecordIndex;
 		currentSplit++;
-		return getSolveTask(firstRecordIndex, numRecords);
+		TierSolveTask task = getSolveTask(firstRecordIndex, numRecords);
+		if (pipeline)
+			unfinished.add(task);
+		return task;
 	}
 
 	protected TierSolveTask getSolveTask(long firstRecordIndex, long numRecords) {
@@ -269,13 +552,120 @@ public class TierSolver extends Solver {
 
 	protected void decrTier() {
 		currentTier--;
-		System.out.println("Solving tier " + currentTier);
 		currentSplit = 0;
 		firstHash = myGame.hashOffsetForTier(currentTier);
 		numHashes = myGame.numHashesForTier(currentTier);
 		recordsFinished = 0L;
-		splits = Util.getSplits(firstHash, numHashes, minSplitSize, minSplits,
-				preferredSplitSize);
-		tasksFinished = new CountDownLatch(splits.length - 1);
+		if (manifest == null) {
+			System.out.println("Solving tier " + currentTier);
+			splits = Util.getSplits(firstHash, numHashes, minSplitSize,
+					minSplits, preferredSplitSize, db.myLogic.recordsPerGroup);
+			skipSplit = new boolean[splits.length - 1];
+			tasksFinished = new CountDownLatch(splits.length - 1);
+			return;
+		}
+		if (manifest.isFinished(currentTier)) {
+			splits = new long[] { firstHash };
+			skipSplit = new boolean[0];
+			tasksFinished = new CountDownLatch(0);
+			return;
+		}
+		System.out.println("Solving tier " + currentTier);
+		// Split each unfinished part separately, with the finished parts
+		// between them as splits to be skipped
+		long[] unfinished = manifest.unfinished(currentTier, firstHash,
+				numHashes);
+		long[] newSplits = new long[] { firstHash };
+		boolean[] newSkips = new boolean[0];
+		int numTasks = 0;
+		for (int i = 0; i < unfinished.length; i += 2) {
+			long[] partSplits = Util.getSplits(unfinished[i], unfinished[i + 1]
+					- unfinished[i], minSplitSize, minSplits,
+					preferredSplitSize, db.myLogic.recordsPerGroup);
+			int skip = unfinished[i] > newSplits[newSplits.length - 1] ? 1 : 0;
+			int oldLength = newSplits.length;
+			newSplits = Arrays.copyOf(newSplits, oldLength + skip
+					+ partSplits.length - 1);
+			newSkips = Arrays.copyOf(newSkips, newSplits.length - 1);
+			if (skip == 1) {
+				newSplits[oldLength] = unfinished[i];
+				newSkips[oldLength - 1] = true;
+			}
+			System.arraycopy(partSplits, 1, newSplits, oldLength + skip,
+					partSplits.length - 1);
+			numTasks += partSplits.length - 1;
+			recordsFinished -= unfinished[i + 1] - unfinished[i];
+		}
+		recordsFinished += numHashes;
+		splits = newSplits;
+		skipSplit = newSkips;
+		tasksFinished = new CountDownLatch(numTasks);
+		if (numTasks == 0)
+			tierFinished(currentTier);
+	}
+
+	/**
+	 * Adds a range which has been solved to the next checkpoint, and makes
+	 * that checkpoint if enough time has passed since the last
+	 */
+	private void rangeFinished(int tier, long first, long end) {
+		synchronized (uncheckpointed) {
+			uncheckpointed.add(new long[] { tier, first, end });
+			if (System.currentTimeMillis() - lastCheckpoint >= checkpointInterval)
+				checkpoint();
+		}
+	}
+
+	private void tierFinished(int tier) {
+		try {
+			db.tierFinished(tier);
+		} catch (IOException e) {
+			throw new Error(e);
+		}
+		if (manifest == null)
+			return;
+		synchronized (uncheckpointed) {
+			checkpoint();
+			try {
+				manifest.finishTier(tier);
+			} catch (IOException e) {
+				throw new Error(e);
+			}
+		}
+	}
+
+	/**
+	 * Flushes the database and then records every range finished since the
+	 * last checkpoint. The caller must hold the lock on uncheckpointed.
+	 */
+	private void checkpoint() {
+		try {
+			if (!uncheckpointed.isEmpty()) {
+				db.flush();
+				for (long[] range : uncheckpointed)
+					manifest.finishRange((int) range[0], range[1], range[2]);
+				uncheckpointed.clear();
+				Util.debug(DebugFacility.SOLVER, "Checkpoint written to "
+						+ manifest.getPath());
+			}
+		} catch (IOException e) {
+			throw new Error(e);
+		}
+		lastCheckpoint = System.currentTimeMillis();
+	}
+
+	@Override
+	protected void solveFinished() {
+		if (manifest == null)
+			return;
+		try {
+			synchronized (uncheckpointed) {
+				checkpoint();
+			}
+			manifest.finishSolve();
+			manifest.close();
+		} catch (IOException e) {
+			throw new Error(e);
+		}
 	}
 }
\ No newline at end of file
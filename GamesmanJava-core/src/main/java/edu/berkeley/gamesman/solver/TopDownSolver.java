@@ -1,6 +1,11 @@
 package edu.berkeley.gamesman.solver;
 
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.berkeley.gamesman.core.Configuration;
 import edu.berkeley.gamesman.core.Record;
@@ -15,113 +20,351 @@ import edu.berkeley.gamesman.util.DebugFacility;
 import edu.berkeley.gamesman.util.Util;
 
 /**
- * A solver for top-down mutable games
- * 
+ * A solver for top-down mutable games.<br />
+ * With more than one thread, the tree is split at depth
+ * gamesman.solver.split.depth (2 by default). Each distinct position at that
+ * depth is solved as a separate job, and then a last job solves the levels
+ * above it. A thread claims a position within gamesman.solver.claim.depth (2
+ * by default) plies below the split before solving it, and a thread which
+ * reaches a position claimed by another waits for its record instead of
+ * searching it again. Subtrees mostly meet just below the split, so deeper
+ * positions are searched without claims; two threads may then both solve one,
+ * but neither allocates anything for it. The game must be acyclic.<br />
+ * The search keeps its own stack of frames rather than recursing, so the depth
+ * of the game is not limited by the size of the thread's stack.
+ *
  * @author dnspies
  */
 public class TopDownSolver<S extends State<S>> extends Solver {
+	private static final int NUM_LOCKS = 1024;
+
 	private boolean askedJob = false;
 	private final boolean debugSolver;
+	private final int splitDepth;
+	// Positions shallower than this are claimed while concurrent
+	private final int claimDepth;
+	// Set once the subtree jobs have been handed out
+	private boolean concurrent = false;
+	private final LinkedList<Long> subtrees = new LinkedList<Long>();
+	private CountDownLatch subtreesFinished = new CountDownLatch(0);
+	// Positions being solved mapped to latches released once they're stored
+	private final ConcurrentHashMap<Long, CountDownLatch> inProgress = new ConcurrentHashMap<Long, CountDownLatch>();
+	// Guards reads and writes of each group of records while concurrent
+	private final Object[] locks = new Object[NUM_LOCKS];
+	private final AtomicLong nodesVisited = new AtomicLong();
+	private long startMillis;
 
 	/**
 	 * The default constructor
-	 * 
+	 *
 	 * @param conf
 	 *            The configuration object
 	 */
 	public TopDownSolver(final Configuration conf, Database db) {
 		super(conf, db);
 		debugSolver = Util.debug(DebugFacility.SOLVER);
+		splitDepth = conf.getInteger("gamesman.solver.split.depth", 2);
+		claimDepth = splitDepth
+				+ conf.getInteger("gamesman.solver.claim.depth", 2);
+		for (int i = 0; i < NUM_LOCKS; i++)
+			locks[i] = new Object();
 	}
 
 	public class TopDownSolveTask implements Runnable {
 		public void run() {
-			Game<S> g = conf.<S> getCheckedGame();
-			TopDownMutaGame game;
-			if (conf.getGame() instanceof TopDownMutaGame) {
-				game = (TopDownMutaGame) conf.getGame();
-			} else {
-				game = wrapGame(g);
-			}
-			Record defaultRecord = game.newRecord();
-			defaultRecord.value = Value.UNDECIDED;
-			DatabaseHandle readHandle = db.getHandle(true);
-			DatabaseHandle writeHandle = db.getHandle(false);
-			try {
-				db.fill(writeHandle, game.recordToLong(defaultRecord));
-			} catch (IOException e) {
-				throw new Error(e);
-			}
+			TopDownMutaGame game = getGame(conf);
+			SolveStack stack = new SolveStack(game);
 			for (int startNum = 0; startNum < game.numStartingPositions(); startNum++) {
 				game.setStartingPosition(startNum);
 				long currentTimeMillis = System.currentTimeMillis();
-				solve(game, game.newRecord(), 0, readHandle, writeHandle);
+				stack.solve(0);
 				System.out.println(Util.millisToETA(System.currentTimeMillis()
 						- currentTimeMillis)
 						+ " time to complete");
 			}
+			stack.finish();
+			long millis = Math.max(System.currentTimeMillis() - startMillis, 1L);
+			System.out.println(nodesVisited.get() + " positions visited ("
+					+ nodesVisited.get() * 1000L / millis + " per second)");
+		}
+	}
+
+	private class SubtreeTask implements Runnable {
+		private final long hash;
+
+		private SubtreeTask(long hash) {
+			this.hash = hash;
+		}
+
+		public void run() {
+			TopDownMutaGame game = getGame(conf.cloneAll());
+			game.setToHash(hash);
+			SolveStack stack = new SolveStack(game);
+			stack.solve(splitDepth);
+			stack.finish();
+			subtreesFinished.countDown();
 		}
+	}
 
-		private TopDownMutaGame wrapGame(Game<S> g) {
+	private TopDownMutaGame getGame(Configuration conf) {
+		if (conf.getGame() instanceof TopDownMutaGame) {
+			return (TopDownMutaGame) conf.getGame();
+		} else {
+			Game<S> g = conf.<S> getCheckedGame();
 			return new TopDownGame<S>(g);
 		}
+	}
 
-		private void solve(TopDownMutaGame game, Record value, int depth,
-				DatabaseHandle readDh, DatabaseHandle writeDh) {
-			if (depth < 3 && debugSolver) {
-				if (Util.debug(DebugFacility.SOLVER)) {
+	/**
+	 * One position on the path from the root of a search to the position
+	 * being searched
+	 */
+	private static final class Frame {
+		private final Record best;
+		private long hash;
+		private CountDownLatch claim;
+		private int child;
+		private int numChildren;
+
+		private Frame(Record best) {
+			this.best = best;
+		}
+	}
+
+	/**
+	 * Searches the tree below a position without recursion. The frames are
+	 * kept between searches so a game of any depth only allocates as many as
+	 * its deepest line.
+	 */
+	private final class SolveStack {
+		private final TopDownMutaGame game;
+		private final DatabaseHandle readDh, writeDh;
+		private final Record value;
+		private Frame[] frames = new Frame[16];
+		// The claim made by the last call to enter, if any
+		private CountDownLatch claim;
+		private long nodes = 0L;
+
+		private SolveStack(TopDownMutaGame game) {
+			this.game = game;
+			readDh = db.getHandle(true);
+			writeDh = db.getHandle(false);
+			value = game.newRecord();
+		}
+
+		/**
+		 * Solves the game's current position and everything below it
+		 *
+		 * @param depth
+		 *            The depth of the current position, which decides which
+		 *            positions below it are claimed
+		 * @return The record of the current position (reused on the next call)
+		 */
+		private Record solve(int depth) {
+			int top = 0;
+			while (true) {
+				// Enter the game's current position
+				nodes++;
+				if (top + depth < 3 && debugSolver)
 					System.out.println(game.displayState());
+				long hash = game.getHash();
+				if (enter(hash, top + depth)) {
+					Value pv = game.primitiveValue();
+					switch (pv) {
+					case UNDECIDED:
+						int numChildren = game.makeMove();
+						if (numChildren > 0) {
+							Frame f = push(top++);
+							f.hash = hash;
+							f.claim = claim;
+							claim = null;
+							f.child = 0;
+							f.numChildren = numChildren;
+							f.best.value = Value.UNDECIDED;
+							continue;
+						}
+						value.value = Value.UNDECIDED;
+						break;
+					case IMPOSSIBLE:
+						throw new Error(
+								"Top-down solve should not reach impossible positions");
+					default:
+						value.value = pv;
+						value.remoteness = 0;
+					}
+					store(hash, claim);
+					claim = null;
 				}
-			}
-			long hash = game.getHash();
-			try {
-				game.longToRecord(db.readRecord(readDh, hash), value);
-			} catch (IOException e) {
-				throw new Error(e);
-			}
-			if (value.value != Value.UNDECIDED)
-				return;
-			Value pv = game.primitiveValue();
-			switch (pv) {
-			case UNDECIDED:
-				Record bestRecord = game.getPoolRecord();
-				bestRecord.value = Value.UNDECIDED;
-				int numChildren = game.makeMove();
-				for (int child = 0; child < numChildren; child++) {
-					solve(game, value, depth + 1, readDh, writeDh);
+				// value holds the record of the position just left
+				while (top > 0) {
+					Frame f = frames[top - 1];
 					value.previousPosition();
-					if (bestRecord.value == Value.UNDECIDED
-							|| value.compareTo(bestRecord) > 0)
-						bestRecord.set(value);
+					if (f.best.value == Value.UNDECIDED
+							|| value.compareTo(f.best) > 0)
+						f.best.set(value);
 					game.changeMove();
-				}
-				if (numChildren > 0)
+					if (++f.child < f.numChildren)
+						break;
 					game.undoMove();
-				value.set(bestRecord);
-				game.release(bestRecord);
-				break;
-			case IMPOSSIBLE:
-				throw new Error(
-						"Top-down solve should not reach impossible positions");
-			default:
-				value.value = pv;
-				value.remoteness = 0;
+					value.set(f.best);
+					top--;
+					store(f.hash, f.claim);
+					f.claim = null;
+				}
+				if (top == 0)
+					return value;
 			}
+		}
+
+		/**
+		 * Reads the record of a position into value and, if it is undecided,
+		 * other threads are searching and it is shallow enough, claims it
+		 * (leaving the claim in the claim field).
+		 *
+		 * @param ply
+		 *            The depth of the position below the root of the game
+		 * @return Whether this thread must solve the position
+		 */
+		private boolean enter(long hash, int ply) {
+			readRecord(game, readDh, hash, value);
+			if (value.value != Value.UNDECIDED)
+				return false;
+			if (!concurrent || ply >= claimDepth)
+				return true;
+			CountDownLatch newClaim = new CountDownLatch(1);
+			CountDownLatch owner = inProgress.putIfAbsent(hash, newClaim);
+			if (owner != null) {
+				try {
+					owner.await();
+				} catch (InterruptedException e) {
+					throw new Error(e);
+				}
+				readRecord(game, readDh, hash, value);
+				return false;
+			}
+			// It may have been finished since it was read
+			readRecord(game, readDh, hash, value);
+			if (value.value != Value.UNDECIDED) {
+				inProgress.remove(hash);
+				newClaim.countDown();
+				return false;
+			}
+			claim = newClaim;
+			return true;
+		}
+
+		private void store(long hash, CountDownLatch claim) {
 			try {
-				db.writeRecord(writeDh, hash, game.recordToLong(value));
+				if (concurrent) {
+					synchronized (lock(hash)) {
+						db.writeRecord(writeDh, hash, game.recordToLong(value));
+					}
+					if (claim != null) {
+						inProgress.remove(hash);
+						claim.countDown();
+					}
+				} else
+					db.writeRecord(writeDh, hash, game.recordToLong(value));
 			} catch (IOException e) {
 				throw new Error(e);
 			}
 		}
+
+		private Frame push(int top) {
+			if (top == frames.length) {
+				Frame[] newFrames = new Frame[top * 2];
+				System.arraycopy(frames, 0, newFrames, 0, top);
+				frames = newFrames;
+			}
+			if (frames[top] == null)
+				frames[top] = new Frame(game.newRecord());
+			return frames[top];
+		}
+
+		/**
+		 * Adds the positions this stack visited to the solver's count
+		 */
+		private void finish() {
+			nodesVisited.addAndGet(nodes);
+			nodes = 0L;
+		}
+	}
+
+	private void readRecord(TopDownMutaGame game, DatabaseHandle dh,
+			long hash, Record value) {
+		long record;
+		try {
+			if (concurrent) {
+				synchronized (lock(hash)) {
+					record = db.readRecord(dh, hash);
+				}
+			} else
+				record = db.readRecord(dh, hash);
+		} catch (IOException e) {
+			throw new Error(e);
+		}
+		game.longToRecord(record, value);
+	}
+
+	private Object lock(long hash) {
+		long group = hash / db.myLogic.recordsPerGroup;
+		return locks[(int) (group ^ (group >>> 32)) & (NUM_LOCKS - 1)];
+	}
+
+	/**
+	 * Adds every distinct unsolved position at the split depth below the
+	 * current one
+	 */
+	private void addSubtrees(TopDownMutaGame game, int depth,
+			HashSet<Long> seen) {
+		if (game.primitiveValue() != Value.UNDECIDED)
+			return;
+		if (depth == splitDepth) {
+			if (seen.add(game.getHash()))
+				subtrees.add(game.getHash());
+			return;
+		}
+		int numChildren = game.makeMove();
+		for (int child = 0; child < numChildren; child++) {
+			addSubtrees(game, depth + 1, seen);
+			game.changeMove();
+		}
+		if (numChildren > 0)
+			game.undoMove();
 	}
 
 	@Override
-	public Runnable nextAvailableJob() {
-		if (askedJob) {
-			return null;
-		} else {
+	public Runnable nextAvailableJob() throws InterruptedException {
+		if (!askedJob) {
 			askedJob = true;
-			return new TopDownSolveTask();
+			startMillis = System.currentTimeMillis();
+			TopDownMutaGame game = getGame(conf.cloneAll());
+			Record defaultRecord = game.newRecord();
+			defaultRecord.value = Value.UNDECIDED;
+			try {
+				db.fill(db.getHandle(false), game.recordToLong(defaultRecord));
+			} catch (IOException e) {
+				throw new Error(e);
+			}
+			if (nThreads > 1 && splitDepth > 0) {
+				HashSet<Long> seen = new HashSet<Long>();
+				for (int startNum = 0; startNum < game.numStartingPositions(); startNum++) {
+					game.setStartingPosition(startNum);
+					addSubtrees(game, 0, seen);
+				}
+				Util.debug(DebugFacility.SOLVER, "Split into " + subtrees.size()
+						+ " subtrees at depth " + splitDepth);
+				concurrent = true;
+				subtreesFinished = new CountDownLatch(subtrees.size());
+			}
 		}
+		if (!subtrees.isEmpty())
+			return new SubtreeTask(subtrees.remove());
+		else if (subtreesFinished != null) {
+			subtreesFinished.await();
+			subtreesFinished = null;
+			return new TopDownSolveTask();
+		} else
+			return null;
 	}
 }
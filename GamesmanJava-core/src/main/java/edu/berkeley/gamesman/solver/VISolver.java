@@ -91,7 +91,8 @@ public class VISolver extends Solver {
 		splitPlaces = Util.getSplits(firstHash, numHashes,
 				conf.getLong("gamesman.minimum.split.size", 65536),
 				conf.getInteger("gamesman.minimum.splits", nThreads),
-				conf.getInteger("gamesman.preferred.split.size", 1 << 22));
+				conf.getInteger("gamesman.preferred.split.size", 1 << 22),
+				db.myLogic.recordsPerGroup);
 		solveSplits = new LinkedList<Runnable>();
 		if (withRepeats) {
 			VIInitTask vi = new VIInitTask();
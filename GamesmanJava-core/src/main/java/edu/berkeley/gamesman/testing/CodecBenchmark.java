@@ -0,0 +1,109 @@
+package edu.berkeley.gamesman.testing;
+
+import java.io.IOException;
+import java.util.Random;
+
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.database.Database;
+import edu.berkeley.gamesman.database.DatabaseHandle;
+import edu.berkeley.gamesman.database.GZippedDatabase;
+import edu.berkeley.gamesman.database.codec.BlockCodec;
+
+/**
+ * Compares block codecs on the bytes of a solved database. The database is
+ * cut into entries of entry.bytes bytes (as a GZippedDatabase would cut it)
+ * and each codec compresses and decompresses every entry. For each codec this
+ * prints the compression ratio, the compression and decompression throughput
+ * and the average time to decompress one randomly chosen entry, which is what
+ * a random read from a compressed database costs on a cache miss.
+ */
+@SuppressWarnings("javadoc")
+public class CodecBenchmark {
+	private static final String[] DEFAULT_CODECS = { "DeflateCodec", "LZCodec",
+			"RecordCodec" };
+	private static final int RANDOM_READS = 1000;
+
+	/**
+	 * @param args
+	 *            A solved database file, optionally followed by a
+	 *            comma-separated list of codec classes
+	 */
+	public static void main(String[] args) throws IOException,
+			ClassNotFoundException {
+		Database db = Database.openDatabase(args[0]);
+		String[] codecs = args.length > 1 ? args[1].split(",") : DEFAULT_CODECS;
+		Configuration conf = db.conf;
+		int entrySize = (int) Math.min(Integer.MAX_VALUE,
+				conf.getNumBytes("entry.bytes", 1 << 16));
+		long firstByteIndex = db.myLogic.getByteIndex(db.firstRecordIndex);
+		long numBytes = db.myLogic.getNumBytes(db.firstRecordIndex,
+				db.numRecords);
+		int numEntries = (int) ((numBytes + entrySize - 1) / entrySize);
+		byte[][] entries = new byte[numEntries][];
+		DatabaseHandle dh = db.getHandle(true);
+		db.prepareReadRange(dh, firstByteIndex, numBytes);
+		for (int i = 0; i < numEntries; i++) {
+			entries[i] = new byte[(int) Math.min(entrySize, numBytes - i
+					* (long) entrySize)];
+			db.readFullBytes(dh, entries[i], 0, entries[i].length);
+		}
+		db.close();
+		System.out.println(numEntries + " entries of " + entrySize
+				+ " bytes (" + numBytes + " bytes in all)");
+		System.out.println("codec\tratio\tcompress\tdecompress\trandom read");
+		for (String name : codecs) {
+			BlockCodec codec = GZippedDatabase.makeCodec(conf, name);
+			// Warm up so the JIT has compiled both directions
+			byte[][] zipped = compressAll(codec, entries);
+			decompressAll(codec, entries, zipped);
+			long start = System.nanoTime();
+			zipped = compressAll(codec, entries);
+			long compressTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			decompressAll(codec, entries, zipped);
+			long decompressTime = System.nanoTime() - start;
+			long zippedBytes = 0L;
+			for (byte[] z : zipped)
+				zippedBytes += z.length;
+			Random r = new Random(0L);
+			start = System.nanoTime();
+			for (int i = 0; i < RANDOM_READS; i++) {
+				int entry = r.nextInt(numEntries);
+				byte[] dest = new byte[entries[entry].length];
+				codec.decompress(zipped[entry], 0, zipped[entry].length, dest,
+						0, dest.length);
+			}
+			long randomTime = System.nanoTime() - start;
+			System.out.printf("%s\t%.3f\t%.1fMB/s\t%.1fMB/s\t%.1fus%n",
+					codec.getClass().getSimpleName(), (double) zippedBytes
+							/ numBytes, mbPerSecond(numBytes, compressTime),
+					mbPerSecond(numBytes, decompressTime), randomTime
+							/ (1000D * RANDOM_READS));
+		}
+	}
+
+	private static byte[][] compressAll(BlockCodec codec, byte[][] entries)
+			throws IOException {
+		byte[][] zipped = new byte[entries.length][];
+		for (int i = 0; i < entries.length; i++)
+			zipped[i] = codec.compress(entries[i], 0, entries[i].length);
+		return zipped;
+	}
+
+	private static void decompressAll(BlockCodec codec, byte[][] entries,
+			byte[][] zipped) throws IOException {
+		for (int i = 0; i < entries.length; i++) {
+			byte[] dest = new byte[entries[i].length];
+			codec.decompress(zipped[i], 0, zipped[i].length, dest, 0,
+					dest.length);
+			for (int b = 0; b < dest.length; b++)
+				if (dest[b] != entries[i][b])
+					throw new Error(codec.getClass().getSimpleName()
+							+ " changed byte " + b + " of entry " + i);
+		}
+	}
+
+	private static double mbPerSecond(long bytes, long nanos) {
+		return bytes * 1000D / nanos;
+	}
+}
@@ -0,0 +1,85 @@
+package edu.berkeley.gamesman.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.database.Database;
+import edu.berkeley.gamesman.solver.Solver;
+import edu.berkeley.gamesman.util.Util;
+
+/**
+ * Times a complete solve of the game in a job file once for each combination
+ * of database class and thread count. The solve uses a plain TierSolver with
+ * no writing wrapper so that every child lookup goes to the database being
+ * measured. For the numbers we compare against, use
+ * jobs/Connect4/Connect4_55.job
+ */
+@SuppressWarnings("javadoc")
+public class DatabaseBenchmark {
+	private static final String[] DEFAULT_DATABASES = { "FileDatabase",
+			"PositionalFileDatabase", "MappedFileDatabase" };
+	private static final int[] DEFAULT_THREADS = { 1, 4, 16 };
+
+	/**
+	 * @param args
+	 *            The job file, optionally followed by a comma-separated list of
+	 *            database classes and a comma-separated list of thread counts
+	 */
+	public static void main(String[] args) throws IOException,
+			ClassNotFoundException {
+		Properties props = Configuration.readProperties(args[0]);
+		String[] databases = args.length > 1 ? args[1].split(",")
+				: DEFAULT_DATABASES;
+		int[] threads = DEFAULT_THREADS;
+		if (args.length > 2)
+			threads = Util.parseIntArray("[" + args[2] + "]");
+		File dbFile = File.createTempFile("benchmark", ".db");
+		dbFile.deleteOnExit();
+		long[][] times = new long[databases.length][threads.length];
+		for (int d = 0; d < databases.length; d++) {
+			for (int t = 0; t < threads.length; t++) {
+				Properties runProps = new Properties();
+				runProps.putAll(props);
+				runProps.setProperty("gamesman.solver", "TierSolver");
+				runProps.setProperty("gamesman.database", databases[d]);
+				runProps.remove("gamesman.database.writing.wrapper");
+				runProps.setProperty("gamesman.threads",
+						Integer.toString(threads[t]));
+				runProps.setProperty("gamesman.db.uri", dbFile.getPath());
+				Configuration conf = new Configuration(runProps);
+				Database db = Database.openDatabase(dbFile.getPath(), conf,
+						true, true);
+				Solver solver = makeSolver(conf, db);
+				long start = System.currentTimeMillis();
+				solver.solve();
+				times[d][t] = System.currentTimeMillis() - start;
+				db.close();
+			}
+		}
+		System.out.print("database");
+		for (int t = 0; t < threads.length; t++)
+			System.out.print("\t" + threads[t] + " threads");
+		System.out.println();
+		for (int d = 0; d < databases.length; d++) {
+			System.out.print(databases[d]);
+			for (int t = 0; t < threads.length; t++)
+				System.out.print("\t" + times[d][t] + "ms");
+			System.out.println();
+		}
+	}
+
+	private static Solver makeSolver(Configuration conf, Database db)
+			throws ClassNotFoundException {
+		Class<? extends Solver> solverClass = Util.typedForName(
+				"edu.berkeley.gamesman.solver."
+						+ conf.getProperty("gamesman.solver"), Solver.class);
+		try {
+			return solverClass.getConstructor(Configuration.class,
+					Database.class).newInstance(conf, db);
+		} catch (Exception e) {
+			throw new Error(e);
+		}
+	}
+}
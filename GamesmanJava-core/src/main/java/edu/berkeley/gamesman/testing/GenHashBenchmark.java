@@ -0,0 +1,77 @@
+package edu.berkeley.gamesman.testing;
+
+import java.util.Random;
+
+import edu.berkeley.gamesman.hasher.DBHasher;
+import edu.berkeley.gamesman.hasher.counting.CountingState;
+
+/**
+ * Compares hashing and unhashing with an OptimizingInvariantHasher's tables
+ * against counting completions for every element. Both unhash the same random
+ * hashes and hash the results back, and every state and hash is checked to be
+ * the same for both. This prints the time each takes per hash and unhash and
+ * how much memory the tables use.
+ */
+@SuppressWarnings("javadoc")
+public class GenHashBenchmark {
+	private static final int ROUNDS = 5;
+
+	/**
+	 * @param args
+	 *            The number of squares on the board (16 by default), the
+	 *            number of random hashes (1000000 by default) and the most
+	 *            memory the tables may use in bytes (unlimited by default)
+	 */
+	public static void main(String[] args) {
+		int boardSize = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int numHashes = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		long maxBytes = args.length > 2 ? Long.parseLong(args[2])
+				: Long.MAX_VALUE;
+		DBHasher counting = new DBHasher(boardSize);
+		counting.buildTables(0L);
+		DBHasher tables = new DBHasher(boardSize);
+		long start = System.nanoTime();
+		boolean complete = tables.buildTables(maxBytes);
+		System.out.println("Built " + (complete ? "all" : "some")
+				+ " tables in " + (System.nanoTime() - start) / 1000000
+				+ " ms (" + tables.tableBytes() + " bytes)");
+		long total = counting.totalPositions();
+		long[] hashes = new long[numHashes];
+		Random r = new Random(0L);
+		for (int i = 0; i < numHashes; i++)
+			hashes[i] = (long) (r.nextDouble() * total);
+		CountingState countingState = counting.newState();
+		CountingState tablesState = tables.newState();
+		for (int i = 0; i < numHashes; i++) {
+			counting.unhash(hashes[i], countingState);
+			tables.unhash(hashes[i], tablesState);
+			if (!countingState.equals(tablesState)
+					|| tables.hash(tablesState) != hashes[i])
+				throw new Error("Tables disagree on hash " + hashes[i] + ": "
+						+ countingState + " != " + tablesState);
+		}
+		System.out.println(total + " positions; " + numHashes
+				+ " random hashes agree");
+		System.out.println("round\tcounting\ttables\t(ns per unhash and hash)");
+		for (int round = 0; round < ROUNDS; round++) {
+			long countingNanos = time(counting, countingState, hashes);
+			long tablesNanos = time(tables, tablesState, hashes);
+			System.out.println(round + "\t" + countingNanos / numHashes + "\t"
+					+ tablesNanos / numHashes);
+		}
+	}
+
+	private static long time(DBHasher hasher, CountingState state,
+			long[] hashes) {
+		long start = System.nanoTime();
+		long sum = 0L;
+		for (long hash : hashes) {
+			hasher.unhash(hash, state);
+			sum += hasher.hash(state);
+		}
+		long nanos = System.nanoTime() - start;
+		if (sum == -1L)
+			System.out.println();
+		return nanos;
+	}
+}
@@ -0,0 +1,90 @@
+package edu.berkeley.gamesman.testing;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.database.Database;
+import edu.berkeley.gamesman.database.DatabaseHandle;
+import edu.berkeley.gamesman.game.TierGame;
+import edu.berkeley.gamesman.util.Util;
+
+/**
+ * Measures how long a TierCutDatabase takes to answer queries on positions
+ * in a missing tier for different numbers of search threads. The queries are
+ * random positions in the missing tier furthest from the next stored tier
+ * (or in the given tier), and the transposition table is turned off so that
+ * every query is searched. Prints the mean, median and worst latency for each
+ * thread count.
+ */
+@SuppressWarnings("javadoc")
+public class TierCutBenchmark {
+	/**
+	 * @param args
+	 *            A TierCutDatabase file, a comma-separated list of thread
+	 *            counts (1,2,4,8 by default), the number of queries (100 by
+	 *            default) and the tier to query
+	 */
+	public static void main(String[] args) throws IOException,
+			ClassNotFoundException {
+		Database db = Database.openDatabase(args[0]);
+		Configuration conf = db.conf.cloneAll();
+		db.close();
+		String[] threadCounts = (args.length > 1 ? args[1] : "1,2,4,8")
+				.split(",");
+		int numQueries = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		TierGame game = (TierGame) conf.getGame();
+		int tier = args.length > 3 ? Integer.parseInt(args[3])
+				: deepestCutTier(conf, game);
+		long[] queries = new long[numQueries];
+		Random r = new Random(0L);
+		long tierHashes = game.numHashesForTier(tier);
+		for (int i = 0; i < numQueries; i++)
+			queries[i] = game.hashOffsetForTier(tier)
+					+ (long) (r.nextDouble() * tierHashes);
+		System.out.println(numQueries + " queries in tier " + tier);
+		System.out.println("threads\tmean\tmedian\tmax");
+		conf.setProperty("gamesman.database.cut.cache.bytes", "0");
+		for (String threads : threadCounts) {
+			conf.setProperty("gamesman.database.cut.threads", threads);
+			Database cut = Database.openDatabase(
+					conf.getProperty("gamesman.database"), args[0], conf,
+					db.firstRecordIndex, db.numRecords, true, false);
+			DatabaseHandle dh = cut.getHandle(true);
+			// Warm up with one untimed pass
+			for (int i = 0; i < numQueries; i++)
+				cut.readRecord(dh, queries[i]);
+			long[] times = new long[numQueries];
+			long total = 0L;
+			for (int i = 0; i < numQueries; i++) {
+				long start = System.nanoTime();
+				cut.readRecord(dh, queries[i]);
+				times[i] = System.nanoTime() - start;
+				total += times[i];
+			}
+			cut.close();
+			Arrays.sort(times);
+			System.out.printf("%s\t%.2fms\t%.2fms\t%.2fms%n", threads, total
+					/ 1e6 / numQueries, times[numQueries / 2] / 1e6,
+					times[numQueries - 1] / 1e6);
+		}
+	}
+
+	private static int deepestCutTier(Configuration conf, TierGame game) {
+		int[] stored = Util.parseIntArray(conf
+				.getProperty("gamesman.database.stored.tiers"));
+		boolean[] inDatabase = new boolean[game.numberOfTiers()];
+		for (int tier : stored)
+			inDatabase[tier] = true;
+		int best = -1, bestDepth = 0, depth = 0;
+		for (int tier = inDatabase.length - 1; tier >= 0; tier--) {
+			depth = inDatabase[tier] ? 0 : depth + 1;
+			if (depth > bestDepth) {
+				best = tier;
+				bestDepth = depth;
+			}
+		}
+		return best;
+	}
+}
@@ -0,0 +1,88 @@
+package edu.berkeley.gamesman.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size set of bits indexed by longs which any number of threads may
+ * set at once. Setting a bit is atomic, so exactly one of several threads
+ * setting the same bit is told that it changed it.
+ */
+public final class ConcurrentBitSet {
+	private final AtomicLongArray words;
+	private final long numBits;
+
+	/**
+	 * @param numBits
+	 *            The number of bits (all initially clear)
+	 */
+	public ConcurrentBitSet(long numBits) {
+		this.numBits = numBits;
+		long numWords = (numBits + 63) >>> 6;
+		if (numWords > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(numBits + " bits is too many");
+		words = new AtomicLongArray((int) numWords);
+	}
+
+	/**
+	 * @return The number of bits in this set
+	 */
+	public long size() {
+		return numBits;
+	}
+
+	/**
+	 * @param index
+	 *            The bit to check
+	 * @return Whether it is set
+	 */
+	public boolean get(long index) {
+		return (words.get((int) (index >>> 6)) & (1L << index)) != 0;
+	}
+
+	/**
+	 * Sets a bit
+	 *
+	 * @param index
+	 *            The bit to set
+	 * @return true if this call set it, false if it was already set
+	 */
+	public boolean set(long index) {
+		int word = (int) (index >>> 6);
+		long mask = 1L << index;
+		while (true) {
+			long old = words.get(word);
+			if ((old & mask) != 0)
+				return false;
+			if (words.compareAndSet(word, old, old | mask))
+				return true;
+		}
+	}
+
+	/**
+	 * @param from
+	 *            The first bit to check
+	 * @return The index of the first set bit at or after from, or -1 if there
+	 *         is none
+	 */
+	public long nextSetBit(long from) {
+		if (from >= numBits)
+			return -1L;
+		int word = (int) (from >>> 6);
+		long bits = words.get(word) & (-1L << from);
+		while (bits == 0) {
+			if (++word == words.length())
+				return -1L;
+			bits = words.get(word);
+		}
+		return ((long) word << 6) + Long.numberOfTrailingZeros(bits);
+	}
+
+	/**
+	 * Clears every bit. This should not be called while other threads are
+	 * setting bits.
+	 */
+	public void clear() {
+		for (int i = 0; i < words.length(); i++)
+			words.set(i, 0L);
+	}
+}
@@ -92,6 +92,15 @@ public class RandomAccessFileDataOutputStream extends SeekableOutputStream
 		myRaf.writeUTF(s);
 	}
 
+	/**
+	 * Nothing is buffered, so this forces what has been written to the
+	 * device
+	 */
+	@Override
+	public void flush() throws IOException {
+		myRaf.getFD().sync();
+	}
+
 	@Override
 	public void close() throws IOException {
 		myRaf.close();
@@ -0,0 +1,188 @@
+package edu.berkeley.gamesman.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A fixed-size set of bits indexed by longs which can count the set bits
+ * before any index (rank) and find the index of the nth set bit (select).
+ * Bits are set first and then buildIndex is called once, after which rank
+ * takes constant time: the number of set bits before every block of 512 bits
+ * is stored (an eighth of a bit per bit) and at most eight words are counted
+ * within the block. Select does a binary search of the blocks.
+ */
+public final class RankBitVector {
+	private static final int WORDS_PER_BLOCK = 8;
+	private static final int BLOCK_SHIFT = 9;
+
+	private final long numBits;
+	private final long[] words;
+	// The number of set bits before each block, and then the total
+	private long[] blockRanks = null;
+
+	/**
+	 * @param numBits
+	 *            The number of bits (all initially clear)
+	 */
+	public RankBitVector(long numBits) {
+		this.numBits = numBits;
+		long numWords = (numBits + 63) >>> 6;
+		if (numWords > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(numBits + " bits is too many");
+		words = new long[(int) numWords];
+	}
+
+	/**
+	 * @return The number of bits
+	 */
+	public long size() {
+		return numBits;
+	}
+
+	/**
+	 * Sets a bit. This may not be called once the index has been built.
+	 *
+	 * @param index
+	 *            The bit to set
+	 * @return true if it was clear
+	 */
+	public boolean set(long index) {
+		assert blockRanks == null;
+		int word = (int) (index >>> 6);
+		long mask = 1L << index;
+		if ((words[word] & mask) != 0)
+			return false;
+		words[word] |= mask;
+		return true;
+	}
+
+	/**
+	 * @param index
+	 *            The bit to check
+	 * @return Whether it is set
+	 */
+	public boolean get(long index) {
+		return (words[(int) (index >>> 6)] & (1L << index)) != 0;
+	}
+
+	/**
+	 * @param from
+	 *            The first bit to check
+	 * @return The index of the first set bit at or after from, or -1 if there
+	 *         is none
+	 */
+	public long nextSetBit(long from) {
+		if (from >= numBits)
+			return -1L;
+		int word = (int) (from >>> 6);
+		long bits = words[word] & (-1L << from);
+		while (bits == 0) {
+			if (++word == words.length)
+				return -1L;
+			bits = words[word];
+		}
+		return ((long) word << 6) + Long.numberOfTrailingZeros(bits);
+	}
+
+	/**
+	 * Counts the set bits in each block so that rank and select can be used.
+	 * No more bits may be set afterwards.
+	 */
+	public void buildIndex() {
+		int numBlocks = (words.length + WORDS_PER_BLOCK - 1) / WORDS_PER_BLOCK;
+		long[] ranks = new long[numBlocks + 1];
+		long count = 0L;
+		for (int i = 0; i < words.length; i++) {
+			if (i % WORDS_PER_BLOCK == 0)
+				ranks[i / WORDS_PER_BLOCK] = count;
+			count += Long.bitCount(words[i]);
+		}
+		ranks[numBlocks] = count;
+		blockRanks = ranks;
+	}
+
+	/**
+	 * @return The number of set bits
+	 */
+	public long numSet() {
+		return blockRanks[blockRanks.length - 1];
+	}
+
+	/**
+	 * @param index
+	 *            A bit (or numBits)
+	 * @return The number of set bits before it
+	 */
+	public long rank(long index) {
+		if (index >= numBits)
+			return numSet();
+		int word = (int) (index >>> 6);
+		long count = blockRanks[(int) (index >>> BLOCK_SHIFT)];
+		for (int i = word & -WORDS_PER_BLOCK; i < word; i++)
+			count += Long.bitCount(words[i]);
+		return count + Long.bitCount(words[word] & ((1L << index) - 1));
+	}
+
+	/**
+	 * The inverse of rank for set bits
+	 *
+	 * @param n
+	 *            The number of set bits to skip
+	 * @return The index of the set bit after them, or -1 if there are no
+	 *         more than n set bits
+	 */
+	public long select(long n) {
+		if (n < 0 || n >= numSet())
+			return -1L;
+		// The last block with fewer than n+1 set bits before it
+		int low = 0, high = blockRanks.length - 2;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (blockRanks[mid] <= n)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+		n -= blockRanks[low];
+		int word = low * WORDS_PER_BLOCK;
+		int count;
+		while ((count = Long.bitCount(words[word])) <= n) {
+			n -= count;
+			word++;
+		}
+		long bits = words[word];
+		for (; n > 0; n--)
+			bits &= bits - 1;
+		return ((long) word << 6) + Long.numberOfTrailingZeros(bits);
+	}
+
+	/**
+	 * @param out
+	 *            Where to write the bits (not the index)
+	 * @throws IOException
+	 *             If out can't be written
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeLong(numBits);
+		for (long word : words)
+			out.writeLong(word);
+	}
+
+	/**
+	 * Reads bits written by writeTo and builds their index
+	 *
+	 * @param in
+	 *            Where to read the bits
+	 * @return The bit vector
+	 * @throws IOException
+	 *             If in can't be read
+	 */
+	public static RankBitVector readFrom(DataInput in) throws IOException {
+		RankBitVector result = new RankBitVector(in.readLong());
+		for (int i = 0; i < result.words.length; i++)
+			result.words[i] = in.readLong();
+		result.buildIndex();
+		return result;
+	}
+}
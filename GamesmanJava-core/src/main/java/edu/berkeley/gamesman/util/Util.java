@@ -603,6 +603,42 @@ public final class Util {
 		return splits;
 	}
 
+	/**
+	 * Same as getSplits(start, num, minSplitSize, minSplits,
+	 * preferredSplitSize) except that every split after the first begins at a
+	 * multiple of align. Splits which become empty are dropped.
+	 * 
+	 * @param start
+	 *            First element in range
+	 * @param num
+	 *            Number of elements in range
+	 * @param minSplitSize
+	 *            The minimum split size
+	 * @param minSplits
+	 *            The minimum number of splits
+	 * @param preferredSplitSize
+	 *            The prefferred size of each split
+	 * @param align
+	 *            The value the start of each split should be a multiple of
+	 * @return An array of n+1 longs ordered at the starts of each of n splits
+	 *         (the last element is just start+num)
+	 */
+	public static long[] getSplits(long start, long num, long minSplitSize,
+			int minSplits, long preferredSplitSize, long align) {
+		long[] splits = getSplits(start, num, minSplitSize, minSplits,
+				preferredSplitSize);
+		if (align <= 1)
+			return splits;
+		int numSplits = 0;
+		for (int i = 1; i < splits.length; i++) {
+			long split = i == splits.length - 1 ? splits[i] : splits[i]
+					- splits[i] % align;
+			if (split > splits[numSplits])
+				splits[++numSplits] = split;
+		}
+		return Arrays.copyOf(splits, numSplits + 1);
+	}
+
 	/**
 	 * Parses an array of ints. This method can be thought of as the inverse of
 	 * Arrays.toString(int[])
@@ -0,0 +1,41 @@
+package edu.berkeley.gamesman.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import edu.berkeley.gamesman.core.Configuration;
+
+/**
+ * Configurations and files shared by the database tests
+ */
+public class Fixtures {
+	/**
+	 * @param dbClass
+	 *            The database class
+	 * @param packed
+	 *            Whether records are packed into groups
+	 * @return A configuration for Connect 4 on a 4x4 board with four in a row
+	 *         to win, whose other properties may be set before use
+	 */
+	public static Configuration connect4x4(String dbClass, boolean packed)
+			throws ClassNotFoundException {
+		Properties props = new Properties();
+		props.setProperty("gamesman.game", "Connect4");
+		props.setProperty("gamesman.game.width", "4");
+		props.setProperty("gamesman.game.height", "4");
+		props.setProperty("gamesman.game.pieces", "4");
+		props.setProperty("gamesman.database", dbClass);
+		props.setProperty("gamesman.database.packed", Boolean.toString(packed));
+		return new Configuration(props);
+	}
+
+	/**
+	 * @return An empty file which is deleted when the tests exit
+	 */
+	public static File tempFile(String prefix) throws IOException {
+		File file = File.createTempFile(prefix, ".db");
+		file.deleteOnExit();
+		return file;
+	}
+}
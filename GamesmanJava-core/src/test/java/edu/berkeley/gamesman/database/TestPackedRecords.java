@@ -0,0 +1,159 @@
+package edu.berkeley.gamesman.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.gamesman.core.Configuration;
+
+public class TestPackedRecords {
+	@Test
+	public void fewStates() {
+		// Neither may loop forever or divide by zero
+		for (long states = 0; states <= 1; states++) {
+			Assert.assertFalse(new DatabaseLogic(states).packed);
+			DatabaseLogic packed = new DatabaseLogic(states, true);
+			byte[] group = new byte[packed.recordBytes];
+			for (long r = 0; r < packed.recordsPerGroup; r++) {
+				packed.fillBytes(0L, group, 0, r);
+				Assert.assertEquals(0L, packed.getRecord(group, 0, r));
+			}
+		}
+	}
+
+	@Test
+	public void groupRoundTrip() {
+		Random r = new Random(0);
+		for (long states : new long[] { 2, 3, 5, 22, 100, 256, 1000, 5000 }) {
+			DatabaseLogic logic = new DatabaseLogic(states, true);
+			Assert.assertTrue(logic.packed);
+			int numRecords = logic.recordsPerGroup * 5 + 3;
+			long[] records = new long[numRecords];
+			for (int i = 0; i < numRecords; i++)
+				records[i] = nextRecord(r, states);
+			byte[] bytes = new byte[(int) logic.getNumBytes(numRecords)];
+			logic.fillBytes(records, 0, numRecords, bytes, 0);
+			long[] read = new long[numRecords];
+			logic.getRecords(bytes, 0, read, 0, numRecords);
+			Assert.assertArrayEquals(records, read);
+			// Replacing one record leaves the rest of its group alone
+			for (int i = 0; i < numRecords; i++) {
+				records[i] = nextRecord(r, states);
+				int off = (int) logic.getByteIndex(i);
+				logic.fillBytes(records[i], bytes, off, i);
+				for (int j = 0; j < numRecords; j++)
+					Assert.assertEquals(records[j], logic.getRecord(bytes,
+							(int) logic.getByteIndex(j), j));
+			}
+		}
+	}
+
+	@Test
+	public void fileRangesAcrossGroups() throws Exception {
+		checkRangesAcrossGroups("FileDatabase", null);
+	}
+
+	@Test
+	public void memoryRangesAcrossGroups() throws Exception {
+		checkRangesAcrossGroups("FileDatabase", "MemoryDatabase");
+	}
+
+	@Test
+	public void writeOnlyPartialGroup() throws Exception {
+		Configuration conf = packedConf("FileDatabase", null);
+		File file = Fixtures.tempFile("packed");
+		Database db = Database.openDatabase(file.getPath(), conf, false, true);
+		int perGroup = db.myLogic.recordsPerGroup;
+		DatabaseHandle dh = db.getHandle(false);
+		// A whole range may still be written without reading
+		db.prepareWriteRecordRange(dh, 0L, perGroup);
+		for (int i = 0; i < perGroup; i++)
+			db.writeNextRecord(dh, 1L);
+		boolean refused = false;
+		try {
+			db.writeRecord(dh, 1L, 2L);
+		} catch (UnsupportedOperationException e) {
+			refused = true;
+		}
+		Assert.assertTrue(refused);
+		db.close();
+		file.delete();
+	}
+
+	private void checkRangesAcrossGroups(String dbClass, String wrapper)
+			throws Exception {
+		Configuration conf = packedConf(dbClass, wrapper);
+		File file = Fixtures.tempFile("packed");
+		Database db = Database.openDatabase(file.getPath(), conf, true, true);
+		Assert.assertTrue(db.myLogic.packed);
+		int perGroup = db.myLogic.recordsPerGroup;
+		long states = conf.getGame().recordStates();
+		int numRecords = (int) Math.min(db.numRecords, perGroup * 20);
+		long[] expected = new long[numRecords];
+		Random r = new Random(1);
+		DatabaseHandle dh = db.getHandle(true);
+		// Ranges which start and end part way through a group
+		for (int start = 0; start < numRecords;) {
+			int len = Math.min(numRecords - start, 1 + r.nextInt(perGroup * 2));
+			db.prepareWriteRecordRange(dh, start, len);
+			for (int i = start; i < start + len; i++) {
+				expected[i] = nextRecord(r, states);
+				db.writeNextRecord(dh, expected[i]);
+			}
+			start += len;
+		}
+		checkRecords(db, dh, expected);
+		// Single records, including the first and last of each group
+		for (int i = 0; i < numRecords * 2; i++) {
+			int index = i % 3 == 0 ? r.nextInt(numRecords / perGroup)
+					* perGroup + (i % 2 == 0 ? 0 : perGroup - 1) : r
+					.nextInt(numRecords);
+			expected[index] = nextRecord(r, states);
+			db.writeRecord(dh, index, expected[index]);
+			Assert.assertEquals(expected[index], db.readRecord(dh, index));
+		}
+		checkRecords(db, dh, expected);
+		// A range rewritten in the middle of others
+		int start = perGroup * 3 + perGroup / 2;
+		db.prepareWriteRecordRange(dh, start, perGroup * 2);
+		for (int i = start; i < start + perGroup * 2; i++) {
+			expected[i] = nextRecord(r, states);
+			db.writeNextRecord(dh, expected[i]);
+		}
+		checkRecords(db, dh, expected);
+		db.close();
+		if (wrapper != null) {
+			// What the wrapper wrote back must read the same from the file
+			db = Database.openDatabase(file.getPath());
+			checkRecords(db, db.getHandle(true), expected);
+			db.close();
+		}
+		file.delete();
+	}
+
+	private static void checkRecords(Database db, DatabaseHandle dh,
+			long[] expected) throws IOException {
+		for (int i = 0; i < expected.length; i++)
+			Assert.assertEquals(expected[i], db.readRecord(dh, i));
+		for (int start = 1; start < expected.length; start += 7) {
+			db.prepareReadRecordRange(dh, start, expected.length - start);
+			for (int i = start; i < expected.length; i++)
+				Assert.assertEquals(expected[i], db.readNextRecord(dh));
+		}
+	}
+
+	private static long nextRecord(Random r, long states) {
+		return (r.nextLong() >>> 1) % states;
+	}
+
+	private static Configuration packedConf(String dbClass, String wrapper)
+			throws ClassNotFoundException {
+		Configuration conf = Fixtures.connect4x4(dbClass, true);
+		if (wrapper != null)
+			conf.setProperty("gamesman.database.writing.wrapper", wrapper);
+		return conf;
+	}
+}
@@ -0,0 +1,104 @@
+package edu.berkeley.gamesman.database;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.game.TierGame;
+
+public class TestTierFileDatabase {
+	@Test
+	public void openBeforeClose() throws Exception {
+		Configuration conf = conf();
+		TierGame game = (TierGame) conf.getGame();
+		File file = Fixtures.tempFile("tier");
+		long numHashes = game.numHashes();
+		TierFileDatabase db = new TierFileDatabase(file.getPath(), conf, 0L,
+				numHashes, true, true);
+		long[] expected = new long[(int) numHashes];
+		Random r = new Random(0);
+		DatabaseHandle dh = db.getHandle(false);
+		int numTiers = game.numberOfTiers();
+		// Tiers are finished from last to first, as a tier solver does
+		for (int tier = numTiers - 1; tier >= numTiers / 2; tier--) {
+			long first = game.hashOffsetForTier(tier);
+			long num = game.numHashesForTier(tier);
+			db.prepareWriteRecordRange(dh, first, num);
+			for (long hash = first; hash < first + num; hash++) {
+				expected[(int) hash] = r.nextInt((int) game.recordStates());
+				db.writeNextRecord(dh, expected[(int) hash]);
+			}
+			db.tierFinished(tier);
+		}
+		// The file of an unfinished solve opens, and its finished sections
+		// pass their checksums
+		TierFileDatabase partial = new TierFileDatabase(file.getPath(), conf,
+				0L, numHashes, true, false);
+		int finished = 0;
+		for (int i = 0; i < partial.numSections(); i++) {
+			if (partial.isFinished(i))
+				finished++;
+		}
+		Assert.assertTrue(finished > 0);
+		Assert.assertTrue(finished < partial.numSections());
+		DatabaseHandle ph = partial.getHandle(true);
+		long solvedFrom = game.hashOffsetForTier(numTiers / 2);
+		for (long hash = solvedFrom; hash < numHashes; hash++)
+			Assert.assertEquals(expected[(int) hash], partial.readRecord(ph,
+					hash));
+		partial.close();
+		db.close();
+		TierFileDatabase closed = new TierFileDatabase(file.getPath(), conf,
+				0L, numHashes, true, false);
+		DatabaseHandle ch = closed.getHandle(true);
+		for (int i = 0; i < closed.numSections(); i++)
+			Assert.assertTrue(closed.isFinished(i));
+		for (long hash = 0L; hash < numHashes; hash++)
+			Assert.assertEquals(expected[(int) hash], closed.readRecord(ch,
+					hash));
+		closed.close();
+		file.delete();
+	}
+
+	@Test
+	public void mappedSectionsStayLoaded() throws Exception {
+		Configuration conf = conf();
+		File file = Fixtures.tempFile("tier");
+		long numHashes = conf.getGame().numHashes();
+		Database db = new TierFileDatabase(file.getPath(), conf, 0L,
+				numHashes, true, true);
+		db.fill(db.getHandle(false), 0L);
+		db.close();
+		TierFileDatabase read = new TierFileDatabase(file.getPath(), conf,
+				0L, numHashes, true, false);
+		DatabaseHandle dh = read.getHandle(true);
+		// Every section holds the start of a tier
+		TierGame game = (TierGame) conf.getGame();
+		for (int tier = 0; tier < game.numberOfTiers(); tier++)
+			read.readRecord(dh, game.hashOffsetForTier(tier));
+		// Heap pressure which would clear soft references
+		byte[][] pressure = new byte[64][];
+		try {
+			for (int i = 0; i < pressure.length; i++)
+				pressure[i] = new byte[1 << 24];
+		} catch (OutOfMemoryError e) {
+			pressure = null;
+		}
+		pressure = null;
+		System.gc();
+		for (int i = 0; i < read.numSections(); i++)
+			Assert.assertTrue(read.isLoaded(i));
+		read.close();
+		file.delete();
+	}
+
+	private static Configuration conf() throws ClassNotFoundException {
+		Configuration conf = Fixtures.connect4x4(TierFileDatabase.class
+				.getName(), true);
+		conf.setProperty("gamesman.database.tier.verify", "true");
+		return conf;
+	}
+}
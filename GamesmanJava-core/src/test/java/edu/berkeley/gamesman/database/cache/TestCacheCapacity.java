@@ -0,0 +1,101 @@
+package edu.berkeley.gamesman.database.cache;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.core.Record;
+import edu.berkeley.gamesman.core.Value;
+import edu.berkeley.gamesman.database.Database;
+import edu.berkeley.gamesman.database.DatabaseHandle;
+import edu.berkeley.gamesman.database.DatabaseLogic;
+import edu.berkeley.gamesman.database.Fixtures;
+import edu.berkeley.gamesman.game.Connect4;
+import edu.berkeley.gamesman.game.util.TierState;
+
+/**
+ * Checks that caches whose memory changes between chunks stay within it
+ */
+public class TestCacheCapacity {
+	@Test
+	public void rangeFollowsBudget() {
+		for (boolean packed : new boolean[] { false, true }) {
+			DatabaseLogic logic = new DatabaseLogic(22, packed);
+			RecordRangeCache cache = new RecordRangeCache(logic);
+			Random r = new Random(0);
+			int budget = 1 << 16;
+			for (int i = 0; i < 1000; i++) {
+				int last = cache.getByteCapacity();
+				int change = r.nextInt(4) == 0 ? budget / 2 : budget / 20;
+				budget = Math.max(logic.recordBytes, budget - change
+						+ r.nextInt(2 * change + 1));
+				int capacity = cache.fitByteCapacity(budget);
+				Assert.assertTrue(capacity <= budget);
+				// A small change to the budget keeps the array
+				if (last <= budget && last >= budget - budget / 8)
+					Assert.assertEquals(last, capacity);
+				// As does any range which fits in it
+				int numRecords = (int) logic.getNumRecords(capacity);
+				long first = logic.packed ? r.nextInt(1000)
+						* logic.recordsPerGroup : r.nextInt(1000);
+				cache.setRange(first, numRecords);
+				Assert.assertEquals(capacity, cache.getByteCapacity());
+			}
+		}
+	}
+
+	@Test
+	public void childCacheFollowsBudget() throws Exception {
+		for (boolean packed : new boolean[] { false, true }) {
+			Configuration conf = Fixtures.connect4x4("FileDatabase",
+					packed);
+			Connect4 game = (Connect4) conf.getGame();
+			File file = Fixtures.tempFile("cache");
+			Database db = Database.openDatabase(file.getPath(), conf, true,
+					true);
+			Random r = new Random(1);
+			long[] expected = new long[(int) db.numRecords];
+			DatabaseHandle dh = db.getHandle(false);
+			db.prepareWriteRecordRange(dh, 0L, expected.length);
+			for (int i = 0; i < expected.length; i++) {
+				expected[i] = r.nextInt((int) game.recordStates());
+				db.writeNextRecord(dh, expected[i]);
+			}
+			long memory = 4000L;
+			C4Cache cache = new C4Cache(game, db, memory);
+			TierState[] children = game.newStateArray(game.maxChildren());
+			int[] hints = new int[game.maxChildren()];
+			Record[] values = game.newRecordArray(game.maxChildren());
+			for (int tier = 0; tier < game.numberOfTiers() - 1; tier++) {
+				TierState position = game.hashToState(game
+						.hashOffsetForTier(tier));
+				game.setState(position);
+				for (long i = 0; i < game.numHashesForTier(tier); i++) {
+					if (i > 0)
+						game.nextHashInTier();
+					game.getState(position);
+					// As though a new grant came with each chunk
+					if (i % 50 == 0) {
+						memory = 800L + r.nextInt(8000);
+						cache.setAvailableMemory(memory);
+					}
+					if (game.primitiveValue() != Value.UNDECIDED)
+						continue;
+					int numChildren = game.validMoves(children, hints);
+					cache.fetchChildren(position, numChildren, children,
+							hints, values);
+					Assert.assertTrue(cache.getByteCapacity() <= memory);
+					for (int c = 0; c < numChildren; c++)
+						Assert.assertEquals(expected[(int) game
+								.stateToHash(children[c])], game.recordToLong(
+								children[c], values[c]));
+				}
+			}
+			db.close();
+			file.delete();
+		}
+	}
+}
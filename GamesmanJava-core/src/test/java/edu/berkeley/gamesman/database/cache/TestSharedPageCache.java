@@ -0,0 +1,360 @@
+package edu.berkeley.gamesman.database.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.core.Record;
+import edu.berkeley.gamesman.core.Value;
+import edu.berkeley.gamesman.database.Database;
+import edu.berkeley.gamesman.database.DatabaseHandle;
+import edu.berkeley.gamesman.database.Fixtures;
+import edu.berkeley.gamesman.game.Quarto;
+import edu.berkeley.gamesman.game.util.TierState;
+import edu.berkeley.gamesman.solver.CacheTierSolver;
+import edu.berkeley.gamesman.solver.TierSolver;
+
+public class TestSharedPageCache {
+	private static final int PAGE = 256;
+
+	@Test
+	public void readsMatchDatabase() throws Exception {
+		File file = Fixtures.tempFile("pages");
+		Database db = randomDatabase(file, 1);
+		byte[] expected = bytes(db);
+		SharedPageCache pages = new SharedPageCache(db, PAGE * 10, PAGE);
+		DatabaseHandle dh = db.getHandle(true);
+		Random r = new Random(2);
+		for (int i = 0; i < 2000; i++) {
+			int start = r.nextInt(expected.length);
+			int len = r.nextInt(Math.min(PAGE * 3, expected.length - start) + 1);
+			checkRead(pages, dh, expected, start, len);
+		}
+		// The last page may be short
+		checkRead(pages, dh, expected, expected.length - 1, 1);
+		checkRead(pages, dh, expected, 0, expected.length);
+		Assert.assertTrue(pages.getUsedBytes() <= PAGE * 10);
+		db.close();
+		file.delete();
+	}
+
+	@Test
+	public void clockGivesUsedPagesAnotherTurn() throws Exception {
+		File file = Fixtures.tempFile("pages");
+		Database db = randomDatabase(file, 3);
+		SharedPageCache pages = new SharedPageCache(db, PAGE * 4, PAGE);
+		DatabaseHandle dh = db.getHandle(true);
+		for (int page = 0; page < 4; page++)
+			Assert.assertFalse(readPage(pages, dh, page));
+		// The clock clears every page's reference and then takes page 0
+		Assert.assertFalse(readPage(pages, dh, 4));
+		// Page 1 is used again, so page 2 is taken rather than it
+		Assert.assertTrue(readPage(pages, dh, 1));
+		Assert.assertFalse(readPage(pages, dh, 5));
+		for (int page : new int[] { 1, 3, 4, 5 })
+			Assert.assertTrue("Page " + page, readPage(pages, dh, page));
+		Assert.assertFalse(readPage(pages, dh, 0));
+		Assert.assertEquals(PAGE * 4, pages.getUsedBytes());
+		db.close();
+		file.delete();
+	}
+
+	@Test
+	public void pinnedPagesStay() throws Exception {
+		File file = Fixtures.tempFile("pages");
+		Database db = randomDatabase(file, 4);
+		byte[] expected = bytes(db);
+		SharedPageCache pages = new SharedPageCache(db, PAGE * 2, PAGE);
+		DatabaseHandle dh = db.getHandle(true);
+		SharedPageCache.Page pinned = pages.acquire(dh, 0);
+		for (int page = 1; page < 8; page++)
+			Assert.assertFalse(readPage(pages, dh, page));
+		pages.release(pinned);
+		Assert.assertTrue(readPage(pages, dh, 0));
+		// With every page pinned the cache grows past its capacity for a
+		// moment rather than waiting
+		SharedPageCache.Page first = pages.acquire(dh, 0);
+		SharedPageCache.Page second = pages.acquire(dh, 9);
+		checkRead(pages, dh, expected, PAGE * 10, PAGE);
+		Assert.assertEquals(PAGE * 3, pages.getUsedBytes());
+		pages.release(first);
+		pages.release(second);
+		checkRead(pages, dh, expected, PAGE * 11, PAGE);
+		Assert.assertTrue(pages.getUsedBytes() <= PAGE * 2);
+		db.close();
+		file.delete();
+	}
+
+	@Test
+	public void failedReadsLetGo() throws Exception {
+		File file = Fixtures.tempFile("pages");
+		Database db = randomDatabase(file, 5);
+		long numRecords = db.numRecords;
+		Configuration conf = db.conf;
+		db.close();
+		// Pages past the end of the file can't be read
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() / 2);
+		raf.close();
+		db = Database.openDatabase(file.getPath(), conf, true, false);
+		Assert.assertEquals(numRecords, db.numRecords);
+		SharedPageCache pages = new SharedPageCache(db, PAGE * 2, PAGE);
+		// A whole page, so that holding it would leave no room for others
+		long lostPage = (db.getNumBytes(numRecords) - 1) / PAGE - 1;
+		for (int i = 0; i < 2; i++) {
+			boolean failed = false;
+			// A handle whose read failed is left part way through it
+			DatabaseHandle dh = db.getHandle(true);
+			try {
+				readPage(pages, dh, lostPage);
+			} catch (IOException e) {
+				failed = true;
+			}
+			Assert.assertTrue(failed);
+		}
+		// Neither failed page is still held
+		DatabaseHandle dh = db.getHandle(true);
+		for (int page = 0; page < 4; page++)
+			readPage(pages, dh, page);
+		Assert.assertTrue(pages.getUsedBytes() <= PAGE * 2);
+		db.close();
+		file.delete();
+	}
+
+	@Test
+	public void invalidateAfterWrite() throws Exception {
+		File file = Fixtures.tempFile("pages");
+		Database db = randomDatabase(file, 6);
+		byte[] expected = bytes(db);
+		SharedPageCache pages = new SharedPageCache(db, PAGE * 8, PAGE);
+		DatabaseHandle dh = db.getHandle(true);
+		DatabaseHandle wh = db.getHandle(false);
+		int start = PAGE * 3 - 10, len = PAGE + 20;
+		checkRead(pages, dh, expected, 0, PAGE * 6);
+		byte[] old = expected.clone();
+		db.prepareWriteRecordRange(wh, start, len);
+		for (int i = start; i < start + len; i++) {
+			expected[i] = (byte) ((expected[i] + 1) % 19);
+			db.writeNextRecord(wh, expected[i]);
+		}
+		// Until invalidated the old bytes are still read
+		checkRead(pages, dh, old, 0, PAGE * 6);
+		long misses = pages.getMisses();
+		pages.invalidate(db.myLogic.getByteIndex(start), db.getNumBytes(len));
+		checkRead(pages, dh, expected, 0, PAGE * 6);
+		// Only the three pages holding the written bytes were read again
+		Assert.assertEquals(misses + 3, pages.getMisses());
+		db.close();
+		file.delete();
+	}
+
+	@Test
+	public void concurrentReadAndInvalidate() throws Exception {
+		File file = Fixtures.tempFile("pages");
+		final Database db = randomDatabase(file, 7);
+		final byte[] expected = bytes(db);
+		final SharedPageCache pages = new SharedPageCache(db, PAGE * 16, 64);
+		// The written range, which holds a version rather than its record
+		final int start = 1000, len = 700;
+		final int versions = 200;
+		final int[] written = { 0 };
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] readers = new Thread[4];
+		for (int t = 0; t < readers.length; t++) {
+			final Random r = new Random(t);
+			readers[t] = new Thread() {
+				@Override
+				public void run() {
+					DatabaseHandle dh = db.getHandle(true);
+					byte[] read = new byte[expected.length];
+					try {
+						while (true) {
+							int version;
+							synchronized (written) {
+								version = written[0];
+							}
+							if (version == versions)
+								break;
+							int first = r.nextInt(expected.length - 1);
+							int num = 1 + r.nextInt(Math.min(2000,
+									expected.length - first));
+							pages.read(dh, db.myLogic.getByteIndex(first),
+									read, first, num);
+							for (int i = first; i < first + num; i++) {
+								if (i >= start && i < start + len)
+									// A version invalidated before the read
+									// began can't be seen
+									Assert.assertTrue(version == 0
+											|| (read[i] & 255) >= version);
+								else
+									Assert.assertEquals(expected[i], read[i]);
+							}
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			};
+			readers[t].start();
+		}
+		DatabaseHandle wh = db.getHandle(false);
+		for (int version = 1; version <= versions
+				&& failure.get() == null; version++) {
+			db.prepareWriteRecordRange(wh, start, len);
+			for (int i = 0; i < len; i++)
+				db.writeNextRecord(wh, version);
+			pages.invalidate(db.myLogic.getByteIndex(start), db
+					.getNumBytes(len));
+			synchronized (written) {
+				written[0] = version;
+			}
+			Thread.sleep(1L);
+		}
+		synchronized (written) {
+			written[0] = versions;
+		}
+		for (Thread reader : readers)
+			reader.join();
+		if (failure.get() != null)
+			throw new Error(failure.get());
+		Assert.assertTrue(pages.getHits() > 0);
+		db.close();
+		file.delete();
+	}
+
+	@Test
+	public void solveWithSharedPages() throws Exception {
+		// Large pages straddle tiers which are solved at different times
+		File expected = solve("TierSolver", null);
+		File actual = solve("CacheTierSolver", "4096");
+		Database db1 = Database.openDatabase(expected.getPath());
+		Database db2 = Database.openDatabase(actual.getPath());
+		Assert.assertArrayEquals(bytes(db1), bytes(db2));
+		db1.close();
+		db2.close();
+		expected.delete();
+		actual.delete();
+	}
+
+	@Test
+	public void quartoChildren() throws Exception {
+		Properties props = new Properties();
+		props.setProperty("gamesman.game", "Quarto");
+		props.setProperty("gamesman.database", "FileDatabase");
+		Configuration conf = new Configuration(props);
+		Quarto game = (Quarto) conf.getGame();
+		// Only the tiers whose children are fetched
+		int lastTier = 3;
+		long numRecords = game.hashOffsetForTier(lastTier + 2);
+		File file = Fixtures.tempFile("pages");
+		Database db = Database.openDatabase("FileDatabase", file.getPath(),
+				conf, 0L, numRecords, true, true);
+		Random r = new Random(8);
+		DatabaseHandle wh = db.getHandle(false);
+		db.prepareWriteRecordRange(wh, 0L, numRecords);
+		for (long i = 0; i < numRecords; i++)
+			db.writeNextRecord(wh, r.nextInt((int) game.recordStates()));
+		SharedPageCache pages = new SharedPageCache(db, 1 << 16, 4096);
+		TierCache cache = game.getCache(db, 1 << 18);
+		cache.setSharedCache(pages);
+		TierState[] children = game.newStateArray(game.maxChildren());
+		int[] hints = new int[game.maxChildren()];
+		Record[] values = game.newRecordArray(game.maxChildren());
+		Record expected = game.newRecord();
+		DatabaseHandle dh = db.getHandle(true);
+		for (int tier = 0; tier <= lastTier; tier++) {
+			TierState position = game.hashToState(game.hashOffsetForTier(tier));
+			game.setState(position);
+			for (long i = 0; i < game.numHashesForTier(tier); i++) {
+				if (i > 0)
+					game.nextHashInTier();
+				game.getState(position);
+				if (game.primitiveValue() != Value.UNDECIDED)
+					continue;
+				int numChildren = game.validMoves(children, hints);
+				cache.fetchChildren(position, numChildren, children, hints,
+						values);
+				for (int c = 0; c < numChildren; c++) {
+					game.longToRecord(children[c], db.readRecord(dh, game
+							.stateToHash(children[c])), expected);
+					Assert.assertEquals(expected, values[c]);
+				}
+			}
+		}
+		Assert.assertTrue(pages.getHits() > 0);
+		db.close();
+		file.delete();
+	}
+
+	private static File solve(String solver, String sharedPage)
+			throws Exception {
+		Configuration conf = Fixtures.connect4x4("FileDatabase", false);
+		conf.setProperty("gamesman.solver", solver);
+		conf.setProperty("gamesman.threads", "4");
+		conf.setProperty("gamesman.minimum.split.size", "500");
+		conf.setProperty("gamesman.preferred.split.size", "2000");
+		conf.setProperty("gamesman.memory", "40000");
+		if (sharedPage != null) {
+			conf.setProperty("gamesman.cache.shared", "20000");
+			conf.setProperty("gamesman.cache.shared.page", sharedPage);
+		}
+		File file = Fixtures.tempFile("pages");
+		Database db = Database.openDatabase(file.getPath(), conf, true, true);
+		TierSolver s = sharedPage == null ? new TierSolver(conf, db)
+				: new CacheTierSolver(conf, db);
+		s.solve();
+		db.close();
+		return file;
+	}
+
+	private static boolean readPage(SharedPageCache pages, DatabaseHandle dh,
+			long page) throws IOException {
+		long hits = pages.getHits();
+		// The whole page is read even though only its first byte is copied
+		pages.read(dh, page * PAGE, new byte[1], 0, 1);
+		return pages.getHits() > hits;
+	}
+
+	private static void checkRead(SharedPageCache pages, DatabaseHandle dh,
+			byte[] expected, int start, int len) throws IOException {
+		byte[] read = new byte[len + 2];
+		pages.read(dh, start, read, 1, len);
+		Assert.assertArrayEquals(Arrays.copyOfRange(expected, start, start
+				+ len), Arrays.copyOfRange(read, 1, len + 1));
+	}
+
+	/**
+	 * @return A database of one-byte records whose byte indices start at 0
+	 */
+	private static Database randomDatabase(File file, long seed)
+			throws Exception {
+		Configuration conf = Fixtures.connect4x4("FileDatabase", false);
+		Database db = Database.openDatabase(file.getPath(), conf, true, true);
+		Assert.assertEquals(1, db.myLogic.recordBytes);
+		Assert.assertEquals(0L, db.myLogic.getByteIndex(0L));
+		Random r = new Random(seed);
+		DatabaseHandle dh = db.getHandle(false);
+		db.prepareWriteRecordRange(dh, 0L, db.numRecords);
+		for (long i = 0; i < db.numRecords; i++)
+			db.writeNextRecord(dh, r.nextInt((int) conf.getGame()
+					.recordStates()));
+		return db;
+	}
+
+	private static byte[] bytes(Database db) throws IOException {
+		byte[] bytes = new byte[(int) db.numRecords];
+		DatabaseHandle dh = db.getHandle(true);
+		db.prepareReadRecordRange(dh, 0L, db.numRecords);
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) db.readNextRecord(dh);
+		return bytes;
+	}
+}
@@ -0,0 +1,89 @@
+package edu.berkeley.gamesman.database.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.gamesman.database.GZippedDatabase;
+
+/**
+ * Round trips for the codecs which treat a block as opaque bytes
+ */
+public class TestBlockCodecs {
+	private static final String[] CODECS = { "LZCodec", "DeflateCodec" };
+
+	@Test
+	public void emptyAndTiny() throws IOException {
+		Random r = new Random(0);
+		for (String name : CODECS) {
+			BlockCodec codec = GZippedDatabase.makeCodec(null, name);
+			for (int len = 0; len <= 20; len++) {
+				byte[] bytes = new byte[len];
+				r.nextBytes(bytes);
+				roundTrip(codec, bytes, 0, len);
+			}
+		}
+	}
+
+	@Test
+	public void incompressible() throws IOException {
+		Random r = new Random(1);
+		byte[] bytes = new byte[100003];
+		r.nextBytes(bytes);
+		for (String name : CODECS) {
+			BlockCodec codec = GZippedDatabase.makeCodec(null, name);
+			int compressed = roundTrip(codec, bytes, 3, bytes.length - 3);
+			// Random bytes grow by no more than a little bookkeeping
+			Assert.assertTrue(compressed < bytes.length + bytes.length / 200
+					+ 64);
+		}
+	}
+
+	@Test
+	public void repetitive() throws IOException {
+		Random r = new Random(2);
+		for (String name : CODECS) {
+			BlockCodec codec = GZippedDatabase.makeCodec(null, name);
+			byte[] zeros = new byte[1 << 20];
+			int compressed = roundTrip(codec, zeros, 0, zeros.length);
+			Assert.assertTrue(compressed < zeros.length / 100);
+			// Patterns repeating with periods shorter than, near and beyond
+			// LZCodec's 64K window, so matches overlap themselves, reach
+			// back as far as possible and can't reach at all
+			for (int period : new int[] { 1, 2, 3, 7, 255, 4096, 65535, 65536,
+					70000 }) {
+				byte[] pattern = new byte[period];
+				r.nextBytes(pattern);
+				byte[] bytes = new byte[Math.max(period * 3, 5000) + 11];
+				for (int i = 0; i < bytes.length; i++)
+					bytes[i] = pattern[i % period];
+				roundTrip(codec, bytes, 11, bytes.length - 11);
+			}
+			// Runs and literal stretches whose lengths fall either side of
+			// where LZCodec's lengths need extra bytes
+			for (int len : new int[] { 4, 14, 15, 18, 19, 20, 268, 269, 270,
+					274, 524, 525 }) {
+				byte[] bytes = new byte[len * 4];
+				r.nextBytes(bytes);
+				Arrays.fill(bytes, len, 2 * len, (byte) 7);
+				Arrays.fill(bytes, 3 * len, 4 * len, (byte) 9);
+				roundTrip(codec, bytes, 0, bytes.length);
+			}
+		}
+	}
+
+	private static int roundTrip(BlockCodec codec, byte[] bytes, int off,
+			int len) throws IOException {
+		byte[] compressed = codec.compress(bytes, off, len);
+		byte[] result = new byte[len + 2];
+		codec.decompress(compressed, 0, compressed.length, result, 1, len);
+		Assert.assertArrayEquals(Arrays.copyOfRange(bytes, off, off + len),
+				Arrays.copyOfRange(result, 1, len + 1));
+		Assert.assertEquals(0, result[0]);
+		Assert.assertEquals(0, result[len + 1]);
+		return compressed.length;
+	}
+}
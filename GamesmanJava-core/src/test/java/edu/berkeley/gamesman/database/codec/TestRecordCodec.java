@@ -0,0 +1,112 @@
+package edu.berkeley.gamesman.database.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.database.DatabaseLogic;
+import edu.berkeley.gamesman.database.Fixtures;
+
+public class TestRecordCodec {
+	private static final int NUM_RECORDS = 20000;
+
+	@Test
+	public void randomRecords() throws Exception {
+		for (boolean packed : new boolean[] { false, true }) {
+			Configuration conf = Fixtures.connect4x4("FileDatabase",
+					packed);
+			Random r = new Random(0);
+			long states = conf.getGame().recordStates();
+			long[] records = new long[NUM_RECORDS];
+			for (int i = 0; i < records.length; i++)
+				records[i] = (r.nextLong() >>> 1) % states;
+			roundTrip(conf, records);
+		}
+	}
+
+	@Test
+	public void skewedRecords() throws Exception {
+		for (boolean packed : new boolean[] { false, true }) {
+			Configuration conf = Fixtures.connect4x4("FileDatabase",
+					packed);
+			Random r = new Random(1);
+			long states = conf.getGame().recordStates();
+			// Mostly one record, in runs of every length
+			long[] dominant = new long[NUM_RECORDS];
+			for (int i = 0; i < dominant.length;) {
+				int run = 1 << r.nextInt(12);
+				long record = r.nextInt(8) == 0 ? r.nextInt((int) states) : 3L;
+				for (int j = 0; j < run && i < dominant.length; j++)
+					dominant[i++] = record;
+			}
+			Assert.assertTrue(roundTrip(conf, dominant) < bytes(conf,
+					NUM_RECORDS) / 10);
+			// A record which wanders up and down, as remoteness does
+			long[] wandering = new long[NUM_RECORDS];
+			long record = states / 2;
+			for (int i = 0; i < wandering.length; i++) {
+				if (r.nextInt(4) == 0)
+					record = Math.max(0, Math.min(states - 1, record
+							+ r.nextInt(3) - 1));
+				wandering[i] = record;
+			}
+			roundTrip(conf, wandering);
+			// A single record throughout
+			long[] constant = new long[NUM_RECORDS];
+			Arrays.fill(constant, states - 1);
+			Assert.assertTrue(roundTrip(conf, constant) < 32);
+		}
+	}
+
+	@Test
+	public void bytesWhichArentRecords() throws Exception {
+		for (boolean packed : new boolean[] { false, true }) {
+			RecordCodec codec = new RecordCodec(Fixtures.connect4x4(
+					"FileDatabase", packed));
+			Random r = new Random(2);
+			byte[] bytes = new byte[4099];
+			r.nextBytes(bytes);
+			roundTrip(codec, bytes, 3, bytes.length - 3);
+			roundTrip(codec, bytes, 0, 0);
+			roundTrip(codec, bytes, 0, 1);
+		}
+	}
+
+	private static int roundTrip(Configuration conf, long[] records)
+			throws IOException {
+		DatabaseLogic logic = new DatabaseLogic(conf.getGame().recordStates(),
+				conf.getBoolean("gamesman.database.packed", false));
+		RecordCodec codec = new RecordCodec(conf);
+		int len = (int) logic.getNumBytes(records.length);
+		// Blocks needn't start at the beginning of the array
+		byte[] bytes = new byte[len + 5];
+		logic.fillBytes(records, 0, records.length, bytes, 5);
+		int compressed = roundTrip(codec, bytes, 5, len);
+		// Any prefix of whole groups must work too
+		for (int prefix = logic.recordBytes; prefix < len; prefix = prefix
+				* 3 + logic.recordBytes)
+			roundTrip(codec, bytes, 5, prefix);
+		return compressed;
+	}
+
+	private static int roundTrip(BlockCodec codec, byte[] bytes, int off,
+			int len) throws IOException {
+		byte[] compressed = codec.compress(bytes, off, len);
+		Assert.assertTrue(compressed.length <= len + 1);
+		byte[] result = new byte[len + 2];
+		codec.decompress(compressed, 0, compressed.length, result, 1, len);
+		Assert.assertArrayEquals(Arrays.copyOfRange(bytes, off, off + len),
+				Arrays.copyOfRange(result, 1, len + 1));
+		return compressed.length;
+	}
+
+	private static int bytes(Configuration conf, int numRecords) {
+		return (int) new DatabaseLogic(conf.getGame().recordStates(), conf
+				.getBoolean("gamesman.database.packed", false))
+				.getNumBytes(numRecords);
+	}
+}
@@ -0,0 +1,90 @@
+package edu.berkeley.gamesman.game;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.gamesman.database.Fixtures;
+import edu.berkeley.gamesman.game.util.TierState;
+
+public class TestConnect4 {
+	@Test
+	public void canonicalHashIsMirror() throws Exception {
+		Connect4 game = connect4x4();
+		TierState state = game.newState();
+		for (long hash = 0; hash < game.numHashes(); hash++) {
+			game.hashToState(hash, state);
+			game.setState(state);
+			String display = game.displayState();
+			String mirror = mirror(display);
+			game.setFromString(mirror(game.stateToString(), game.gameWidth));
+			game.getState(state);
+			long mirrorHash = game.stateToHash(state);
+			long canonical = game.canonicalHash(hash);
+			Assert.assertEquals("Position " + hash, Math.min(hash, mirrorHash),
+					canonical);
+			Assert.assertEquals(canonical, game.canonicalHash(canonical));
+			Assert.assertEquals(canonical, game.canonicalHash(mirrorHash));
+			game.hashToState(canonical, state);
+			game.setState(state);
+			String canonicalDisplay = game.displayState();
+			Assert.assertTrue("Position " + hash, canonicalDisplay
+					.equals(display)
+					|| canonicalDisplay.equals(mirror));
+		}
+	}
+
+	@Test
+	public void childHashRangeHoldsChildren() throws Exception {
+		Connect4 game = connect4x4();
+		TierState state = game.newState();
+		TierState[] children = game.newStateArray(game.maxChildren());
+		for (int tier = 0; tier < game.numberOfTiers(); tier++) {
+			long tierOffset = game.hashOffsetForTier(tier);
+			long tierHashes = game.numHashesForTier(tier);
+			// Ranges from single positions to the whole tier, which seldom
+			// start or end at a change of column heights
+			for (long split : new long[] { 1, 2, 7, 100, 1009, tierHashes }) {
+				for (long first = tierOffset; first < tierOffset + tierHashes; first += split) {
+					long num = Math.min(split, tierOffset + tierHashes - first);
+					long[] range = game.childHashRange(first, num);
+					Assert.assertTrue(range[0] <= range[1]);
+					for (long hash = first; hash < first + num; hash++) {
+						game.hashToState(hash, state);
+						game.setState(state);
+						int numChildren = game.validMoves(children);
+						for (int c = 0; c < numChildren; c++) {
+							long child = game.stateToHash(children[c]);
+							Assert.assertTrue("Child " + child + " of " + hash,
+									child >= range[0] && child < range[1]);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static Connect4 connect4x4() throws ClassNotFoundException {
+		return (Connect4) Fixtures.connect4x4("FileDatabase", false).getGame();
+	}
+
+	/**
+	 * @return The board shown by displayState, reflected left to right
+	 */
+	private static String mirror(String display) {
+		StringBuilder mirror = new StringBuilder(display.length());
+		for (String line : display.split("\n"))
+			mirror.append(new StringBuilder(line).reverse()).append('\n');
+		return mirror.toString();
+	}
+
+	/**
+	 * @return The board given by stateToString, reflected left to right
+	 */
+	private static String mirror(String board, int width) {
+		StringBuilder mirror = new StringBuilder(board.length());
+		for (int row = 0; row < board.length(); row += width)
+			mirror.append(new StringBuilder(board.substring(row, row + width))
+					.reverse());
+		return mirror.toString();
+	}
+}
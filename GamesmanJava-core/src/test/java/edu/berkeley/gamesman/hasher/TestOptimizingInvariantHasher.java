@@ -0,0 +1,92 @@
+package edu.berkeley.gamesman.hasher;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.gamesman.hasher.counting.CountingState;
+import edu.berkeley.gamesman.hasher.invhasher.OptimizingInvariantHasher;
+
+public class TestOptimizingInvariantHasher {
+	/*
+	 * Boards of empty (0), X (1) and O (2) squares where X has placed as many
+	 * pieces as O or one more
+	 */
+	private static class TurnHasher extends
+			OptimizingInvariantHasher<CountingState> {
+		private TurnHasher(int boardSize) {
+			super(makeDigitBase(boardSize));
+		}
+
+		private static int[] makeDigitBase(int boardSize) {
+			int[] digitBase = new int[boardSize];
+			Arrays.fill(digitBase, 3);
+			return digitBase;
+		}
+
+		@Override
+		protected long getInvariant(CountingState state) {
+			return state.numPieces(1) - state.numPieces(2) + numElements;
+		}
+
+		@Override
+		protected boolean valid(CountingState state) {
+			int diff = state.numPieces(1) - state.numPieces(2);
+			return diff == 0 || diff == 1;
+		}
+
+		@Override
+		protected CountingState genHasherNewState() {
+			return new CountingState(this, numElements);
+		}
+	}
+
+	@Test
+	public void tablesMatchCounting() {
+		TurnHasher counting = new TurnHasher(9);
+		Assert.assertFalse(counting.buildTables(0L));
+		Assert.assertEquals(0L, counting.tableBytes());
+		TurnHasher lazy = new TurnHasher(9);
+		TurnHasher built = new TurnHasher(9);
+		Assert.assertTrue(built.buildTables(Long.MAX_VALUE));
+		long builtBytes = built.tableBytes();
+		CountingState state = counting.newState();
+		CountingState lazyState = lazy.newState();
+		CountingState builtState = built.newState();
+		long hash = 0L;
+		do {
+			Assert.assertEquals(hash, counting.hash(state));
+			lazy.unhash(hash, lazyState);
+			built.unhash(hash, builtState);
+			Assert.assertEquals(state, lazyState);
+			Assert.assertEquals(state, builtState);
+			Assert.assertEquals(hash, lazy.hash(lazyState));
+			Assert.assertEquals(hash, built.hash(builtState));
+			hash++;
+		} while (counting.step(state) != -1);
+		Assert.assertEquals(counting.totalPositions(), hash);
+		Assert.assertEquals(counting.totalPositions(), built.totalPositions());
+		// Every table needed was built up front
+		Assert.assertEquals(builtBytes, built.tableBytes());
+		Assert.assertEquals(builtBytes, lazy.tableBytes());
+	}
+
+	@Test
+	public void limitedTables() {
+		TurnHasher full = new TurnHasher(9);
+		Assert.assertTrue(full.buildTables(Long.MAX_VALUE));
+		TurnHasher limited = new TurnHasher(9);
+		long limit = full.tableBytes() / 3;
+		Assert.assertFalse(limited.buildTables(limit));
+		Assert.assertTrue(limited.tableBytes() <= limit);
+		CountingState state = full.newState();
+		for (long hash = 0L; hash < full.totalPositions(); hash += 7) {
+			full.unhash(hash, state);
+			Assert.assertEquals(hash, limited.hash(state));
+			limited.unhash(hash, state);
+			Assert.assertEquals(hash, full.hash(state));
+		}
+		Assert.assertTrue(limited.tableBytes() <= limit);
+	}
+}
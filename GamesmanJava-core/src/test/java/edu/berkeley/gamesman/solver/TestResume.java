@@ -0,0 +1,180 @@
+package edu.berkeley.gamesman.solver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.database.Database;
+import edu.berkeley.gamesman.database.DatabaseHandle;
+
+/**
+ * Kills checkpointed solves part way through and checks that resuming them
+ * gives the same database as a solve which was never interrupted
+ */
+public class TestResume {
+	private static final String[] GAME = { "gamesman.game = Connect4",
+			"gamesman.game.width = 5", "gamesman.game.height = 4",
+			"gamesman.game.pieces = 4", "gamesman.solver = TierSolver",
+			"gamesman.threads = 2", "gamesman.minimum.split.size = 1000",
+			"gamesman.preferred.split.size = 5000",
+			"gamesman.database.packed = false" };
+
+	@Test
+	public void resumeWithMemoryDatabase() throws Exception {
+		killAndResume("gamesman.database.writing.wrapper = MemoryDatabase");
+	}
+
+	@Test
+	public void resumeWithDirectMemoryDatabase() throws Exception {
+		killAndResume(
+				"gamesman.database.writing.wrapper = DirectMemoryDatabase",
+				"gamesman.database.direct.tiers = 2");
+	}
+
+	@Test
+	public void refuseSequentialCheckpoints() throws Exception {
+		File dir = tempDir();
+		Properties props = new Properties();
+		for (String line : GAME) {
+			String[] kv = line.split("=", 2);
+			props.setProperty(kv[0].trim(), kv[1].trim());
+		}
+		props.setProperty("gamesman.database", "GZippedFileDatabase");
+		props.setProperty("gamesman.database.writing.wrapper",
+				"MemoryDatabase");
+		props.setProperty("gamesman.solver.checkpoint", "true");
+		String uri = new File(dir, "sequential.db").getPath();
+		props.setProperty("gamesman.db.uri", uri);
+		Configuration conf = new Configuration(props);
+		Database db = Database.openDatabase(uri, conf, true, true);
+		boolean refused = false;
+		try {
+			new TierSolver(conf, db);
+		} catch (Error e) {
+			refused = true;
+		}
+		Assert.assertTrue(refused);
+		Assert.assertFalse(new File(uri + ".manifest").exists());
+	}
+
+	private void killAndResume(String... wrapper) throws Exception {
+		File dir = tempDir();
+		File reference = new File(dir, "reference.db");
+		File resumed = new File(dir, "resumed.db");
+		File manifest = new File(resumed.getPath() + ".manifest");
+		Assert.assertEquals(0, solve(writeJob(dir, "reference", reference,
+				"gamesman.database = FileDatabase")).waitFor());
+		String[] lines = new String[wrapper.length + 3];
+		lines[0] = "gamesman.database = FileDatabase";
+		lines[1] = "gamesman.solver.checkpoint = true";
+		lines[2] = "gamesman.solver.checkpoint.interval = 1";
+		System.arraycopy(wrapper, 0, lines, 3, wrapper.length);
+		File job = writeJob(dir, "resumed", resumed, lines);
+		Process p = solve(job);
+		while (!finishedTier(manifest)) {
+			try {
+				p.exitValue();
+				Assert.fail("The solve finished before it could be killed");
+			} catch (IllegalThreadStateException e) {
+				Thread.sleep(50L);
+			}
+		}
+		p.destroy();
+		p.waitFor();
+		Assert.assertFalse(isDone(manifest));
+		Assert.assertEquals(0, solve(job).waitFor());
+		Assert.assertTrue(isDone(manifest));
+		assertSameRecords(reference, resumed);
+	}
+
+	private static File tempDir() throws IOException {
+		File dir = File.createTempFile("resume", "");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	private static File writeJob(File dir, String name, File db,
+			String... lines) throws IOException {
+		File job = new File(dir, name + ".job");
+		PrintWriter out = new PrintWriter(new FileWriter(job));
+		for (String line : GAME)
+			out.println(line);
+		for (String line : lines)
+			out.println(line);
+		out.println("gamesman.db.uri = " + db.getPath());
+		out.close();
+		return job;
+	}
+
+	private static Process solve(File job) throws IOException {
+		String java = System.getProperty("java.home") + File.separator
+				+ "bin" + File.separator + "java";
+		ProcessBuilder pb = new ProcessBuilder(java, "-cp",
+				System.getProperty("java.class.path"),
+				"edu.berkeley.gamesman.Gamesman", job.getPath());
+		pb.redirectErrorStream(true);
+		final Process p = pb.start();
+		// Keeps the child from blocking on a full pipe
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (p.getInputStream().read() >= 0)
+						;
+				} catch (IOException e) {
+				}
+			}
+		}.start();
+		return p;
+	}
+
+	private static boolean finishedTier(File manifest) throws IOException {
+		return hasLine(manifest, "tier ");
+	}
+
+	private static boolean isDone(File manifest) throws IOException {
+		return hasLine(manifest, "done");
+	}
+
+	private static boolean hasLine(File manifest, String prefix)
+			throws IOException {
+		if (!manifest.exists())
+			return false;
+		BufferedReader in = new BufferedReader(new FileReader(manifest));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith(prefix))
+					return true;
+			}
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void assertSameRecords(File expected, File actual)
+			throws IOException, ClassNotFoundException {
+		Database db1 = Database.openDatabase(expected.getPath());
+		Database db2 = Database.openDatabase(actual.getPath());
+		Assert.assertEquals(db1.numRecords, db2.numRecords);
+		DatabaseHandle dh1 = db1.getHandle(true), dh2 = db2.getHandle(true);
+		db1.prepareReadRecordRange(dh1, 0L, db1.numRecords);
+		db2.prepareReadRecordRange(dh2, 0L, db2.numRecords);
+		for (long hash = 0L; hash < db1.numRecords; hash++)
+			Assert.assertEquals("Record " + hash, db1.readNextRecord(dh1),
+					db2.readNextRecord(dh2));
+		db1.close();
+		db2.close();
+	}
+}
@@ -0,0 +1,163 @@
+package edu.berkeley.gamesman.solver;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.core.Record;
+import edu.berkeley.gamesman.core.State;
+import edu.berkeley.gamesman.core.Value;
+import edu.berkeley.gamesman.database.Database;
+import edu.berkeley.gamesman.database.DatabaseHandle;
+import edu.berkeley.gamesman.game.Game;
+
+/**
+ * Compares RetrogradeSolver with repeated sweeps over every position until
+ * nothing changes, which is how loopy games were solved before it
+ */
+public class TestRetrogradeSolver {
+	@Test
+	public void quickCross3x3() throws Exception {
+		check(conf("QuickCross", 3, 3, 3, 1));
+	}
+
+	@Test
+	public void quickCross4x2() throws Exception {
+		check(conf("QuickCross", 4, 2, 3, 2));
+	}
+
+	@Test
+	public void unreachablePositions() throws Exception {
+		// Unlike QuickCross, some of its non-primitive positions can't be
+		// reached
+		Assert.assertTrue(check(conf("TicTacToeLoopy", 3, 3, 3, 2)) > 0);
+	}
+
+	/**
+	 * @return The number of unreachable non-primitive positions
+	 */
+	private static <S extends State<S>> int check(Configuration conf)
+			throws Exception {
+		Game<S> game = conf.getCheckedGame();
+		int numHashes = (int) game.numHashes();
+		BitSet reachable = reachable(game);
+		long[] expected = sweep(game, reachable);
+		File file = File.createTempFile("retrograde", ".db");
+		file.deleteOnExit();
+		Database db = Database.openDatabase(file.getPath(), conf, true, true);
+		new RetrogradeSolver<S>(conf, db).solve();
+		db.close();
+		db = Database.openDatabase(file.getPath());
+		DatabaseHandle dh = db.getHandle(true);
+		S state = game.newState();
+		Record record = game.newRecord();
+		int impossible = 0;
+		for (int hash = 0; hash < numHashes; hash++) {
+			long actual = db.readRecord(dh, hash);
+			game.hashToState(hash, state);
+			if (reachable.get(hash))
+				Assert.assertEquals("Position " + hash, expected[hash], actual);
+			else if (game.primitiveValue(state) == Value.UNDECIDED) {
+				game.longToRecord(state, actual, record);
+				Assert.assertEquals("Position " + hash, Value.IMPOSSIBLE,
+						record.value);
+				impossible++;
+			}
+		}
+		db.close();
+		file.delete();
+		return impossible;
+	}
+
+	private static <S extends State<S>> BitSet reachable(Game<S> game) {
+		BitSet reachable = new BitSet();
+		List<S> frontier = new ArrayList<S>();
+		for (S pos : game.startingPositions()) {
+			reachable.set((int) game.stateToHash(pos));
+			frontier.add(pos);
+		}
+		S[] children = game.newStateArray(game.maxChildren());
+		while (!frontier.isEmpty()) {
+			S pos = frontier.remove(frontier.size() - 1);
+			if (game.primitiveValue(pos) != Value.UNDECIDED)
+				continue;
+			int numChildren = game.validMoves(pos, children);
+			for (int i = 0; i < numChildren; i++) {
+				int hash = (int) game.stateToHash(children[i]);
+				if (!reachable.get(hash)) {
+					reachable.set(hash);
+					S child = game.newState();
+					child.set(children[i]);
+					frontier.add(child);
+				}
+			}
+		}
+		return reachable;
+	}
+
+	/**
+	 * @return The records of the reachable positions, found by starting every
+	 *         undecided position at a draw and recombining children until no
+	 *         record changes
+	 */
+	private static <S extends State<S>> long[] sweep(Game<S> game,
+			BitSet reachable) {
+		int numHashes = (int) game.numHashes();
+		long[] records = new long[numHashes];
+		S state = game.newState();
+		S[] children = game.newStateArray(game.maxChildren());
+		Record[] childRecords = game.newRecordArray(game.maxChildren());
+		Record record = game.newRecord();
+		for (int hash = 0; hash < numHashes; hash++) {
+			game.hashToState(hash, state);
+			Value v = game.primitiveValue(state);
+			record.value = v == Value.UNDECIDED ? Value.DRAW : v;
+			record.remoteness = 0;
+			records[hash] = game.recordToLong(state, record);
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int hash = reachable.nextSetBit(0); hash >= 0; hash = reachable
+					.nextSetBit(hash + 1)) {
+				game.hashToState(hash, state);
+				if (game.primitiveValue(state) != Value.UNDECIDED)
+					continue;
+				int numChildren = game.validMoves(state, children);
+				for (int i = 0; i < numChildren; i++) {
+					game.longToRecord(children[i], records[(int) game
+							.stateToHash(children[i])], childRecords[i]);
+					childRecords[i].previousPosition();
+				}
+				long result = game.recordToLong(state, game.combine(
+						childRecords, 0, numChildren));
+				if (result != records[hash]) {
+					records[hash] = result;
+					changed = true;
+				}
+			}
+		}
+		return records;
+	}
+
+	private static Configuration conf(String game, int width, int height,
+			int pieces, int threads) throws ClassNotFoundException {
+		Properties props = new Properties();
+		props.setProperty("gamesman.game", game);
+		props.setProperty("gamesman.game.width", Integer.toString(width));
+		props.setProperty("gamesman.game.height", Integer.toString(height));
+		props.setProperty("gamesman.game.pieces", Integer.toString(pieces));
+		props.setProperty("gamesman.solver", "RetrogradeSolver");
+		props.setProperty("gamesman.database", "FileDatabase");
+		props.setProperty("gamesman.threads", Integer.toString(threads));
+		props.setProperty("gamesman.minimum.split.size", "1000");
+		props.setProperty("gamesman.preferred.split.size", "3000");
+		return new Configuration(props);
+	}
+}
@@ -0,0 +1,138 @@
+package edu.berkeley.gamesman.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestRankBitVector {
+	// Either side of the ends of words and of 512-bit blocks
+	private static final long[] SIZES = { 0, 1, 63, 64, 65, 511, 512, 513,
+			1023, 1024, 1025, 4096 + 64 * 3 + 5 };
+
+	@Test
+	public void empty() {
+		for (long size : SIZES) {
+			RankBitVector bits = build(size, 0D, null);
+			Assert.assertEquals(0L, bits.numSet());
+			Assert.assertEquals(-1L, bits.nextSetBit(0L));
+			Assert.assertEquals(-1L, bits.select(0L));
+			for (long i = 0; i <= size; i++)
+				Assert.assertEquals(0L, bits.rank(i));
+		}
+	}
+
+	@Test
+	public void allOnes() {
+		for (long size : SIZES) {
+			RankBitVector bits = build(size, 1D, null);
+			Assert.assertEquals(size, bits.numSet());
+			for (long i = 0; i <= size; i++)
+				Assert.assertEquals(i, bits.rank(i));
+			for (long n = 0; n < size; n++)
+				Assert.assertEquals(n, bits.select(n));
+			Assert.assertEquals(-1L, bits.select(size));
+		}
+	}
+
+	@Test
+	public void blockBoundaries() {
+		for (long size : SIZES) {
+			// Only the first and last bits of each word
+			RankBitVector bits = new RankBitVector(size);
+			boolean[] expected = new boolean[(int) size];
+			for (long i = 0; i < size; i++) {
+				if ((i & 63) == 0 || (i & 63) == 63 || i == size - 1) {
+					bits.set(i);
+					expected[(int) i] = true;
+				}
+			}
+			bits.buildIndex();
+			check(bits, expected);
+		}
+	}
+
+	@Test
+	public void sparseAndDense() {
+		Random r = new Random(0);
+		for (double density : new double[] { 0.001, 0.05, 0.5, 0.95, 0.999 }) {
+			for (long size : SIZES) {
+				boolean[] expected = new boolean[(int) size];
+				check(build(size, density, expected, r), expected);
+			}
+			// Runs of empty blocks between blocks with bits set
+			boolean[] expected = new boolean[512 * 9 + 17];
+			RankBitVector bits = new RankBitVector(expected.length);
+			for (int i = 0; i < expected.length; i++) {
+				if ((i >>> 9) % 3 == 1 && r.nextDouble() < density) {
+					bits.set(i);
+					expected[i] = true;
+				}
+			}
+			bits.buildIndex();
+			check(bits, expected);
+		}
+	}
+
+	@Test
+	public void writeAndRead() throws IOException {
+		Random r = new Random(1);
+		for (long size : SIZES) {
+			boolean[] expected = new boolean[(int) size];
+			RankBitVector bits = build(size, 0.3, expected, r);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			bits.writeTo(new DataOutputStream(bytes));
+			RankBitVector read = RankBitVector.readFrom(new DataInputStream(
+					new ByteArrayInputStream(bytes.toByteArray())));
+			Assert.assertEquals(size, read.size());
+			check(read, expected);
+		}
+	}
+
+	private static RankBitVector build(long size, double density,
+			boolean[] expected) {
+		return build(size, density, expected, new Random(2));
+	}
+
+	private static RankBitVector build(long size, double density,
+			boolean[] expected, Random r) {
+		RankBitVector bits = new RankBitVector(size);
+		for (long i = 0; i < size; i++) {
+			if (r.nextDouble() < density) {
+				Assert.assertTrue(bits.set(i));
+				Assert.assertFalse(bits.set(i));
+				if (expected != null)
+					expected[(int) i] = true;
+			}
+		}
+		bits.buildIndex();
+		return bits;
+	}
+
+	private static void check(RankBitVector bits, boolean[] expected) {
+		long rank = 0L;
+		for (int i = 0; i < expected.length; i++) {
+			Assert.assertEquals(expected[i], bits.get(i));
+			Assert.assertEquals("rank " + i, rank, bits.rank(i));
+			if (expected[i]) {
+				Assert.assertEquals("select " + rank, i, bits.select(rank));
+				rank++;
+			}
+		}
+		Assert.assertEquals(rank, bits.rank(expected.length));
+		Assert.assertEquals(rank, bits.numSet());
+		Assert.assertEquals(-1L, bits.select(rank));
+		Assert.assertEquals(-1L, bits.select(-1L));
+		long next = -1L;
+		for (int i = expected.length - 1; i >= 0; i--) {
+			if (expected[i])
+				next = i;
+			Assert.assertEquals("next " + i, next, bits.nextSetBit(i));
+		}
+	}
+}